@@ -4,6 +4,7 @@ import numpy as np
 np.random.seed(1337)
 import lib.et_cleartk_io as ctk_io
 import lib.nn_models
+from lib.progress import ProgressReporter
 import sys
 import os.path
 import dataset, word2vec
@@ -76,6 +77,9 @@ def main(args):
     pickle.dump(provider.word2int, open(os.path.join(working_dir, 'word2int.p'),"wb"))
     pickle.dump(provider.label2int, open(os.path.join(working_dir, 'label2int.p'),"wb"))
 
+    # plain text copies of the tables for the java-side classifier
+    dataset.write_tables(working_dir, provider, maxlen)
+
     w2v = word2vec.Model('/home/dima/Data/Word2VecModels/mimic.txt')
     init_vectors = [w2v.select_vectors(provider.word2int)]
 
@@ -89,6 +93,7 @@ def main(args):
               epochs=NUM_EPOCHS,
               batch_size=BATCH_SIZE,
               verbose=0,
+              callbacks=[ProgressReporter()],
               validation_split=0.0)
 
     json_string = model.to_json()
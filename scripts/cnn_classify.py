@@ -3,55 +3,81 @@
 from keras.models import Sequential, model_from_json
 import numpy as np
 import lib.et_cleartk_io as ctk_io
+import lib.framing as framing
+import lib.ensemble as ensemble
+import dataset
 import sys
 import os.path
 import pickle
 from keras.preprocessing.sequence import pad_sequences
 
+def encode(line, word2int, maxlen):
+    """Map the tokens of one instance to indices, truncated to maxlen"""
+
+    feats = []
+    for unigram in line.split():
+        if unigram in word2int:
+            feats.append(word2int[unigram])
+        else:
+            feats.append(word2int['oov_word'])
+
+    return feats[0:maxlen]
+
 def main(args):
     if len(args) < 1:
         sys.stderr.write("Error - one required argument: <model directory>\n")
         sys.exit(-1)
     working_dir = args[0]
 
-    # model_dir = '/Users/Dima/Git/ctakes-neural/target/eval/thyme/train_and_test/event-time/'
-    target_dir = 'ctakes-neural/target/eval/thyme/train_and_test/event-time/'
-    model_dir = os.path.join(os.environ['CTAKES_ROOT'], target_dir)
-    maxlen   = pickle.load(open(os.path.join(model_dir, "maxlen.p"), "rb"))
-    word2int = pickle.load(open(os.path.join(model_dir, "word2int.p"), "rb"))
-    label2int = pickle.load(open(os.path.join(model_dir, "label2int.p"), "rb"))
-    model = model_from_json(open(os.path.join(model_dir, "model_0.json")).read())
-    model.load_weights(os.path.join(model_dir, "model_0.h5"))
+    if os.path.exists(os.path.join(working_dir, 'maxlen.txt')):
+        # the tables were packaged with the model
+        model_dir = working_dir
+        maxlen, word2int, label2int = dataset.read_tables(model_dir)
+    else:
+        # model_dir = '/Users/Dima/Git/ctakes-neural/target/eval/thyme/train_and_test/event-time/'
+        target_dir = 'ctakes-neural/target/eval/thyme/train_and_test/event-time/'
+        model_dir = os.path.join(os.environ['CTAKES_ROOT'], target_dir)
+        maxlen   = pickle.load(open(os.path.join(model_dir, "maxlen.p"), "rb"))
+        word2int = pickle.load(open(os.path.join(model_dir, "word2int.p"), "rb"))
+        label2int = pickle.load(open(os.path.join(model_dir, "label2int.p"), "rb"))
+    # the java side says which of the packaged models this process runs:
+    model = ensemble.load_model(model_dir, int(args[1]) if len(args) > 1 else 0)
 
     int2label = {}
     for label, integer in label2int.items():
       int2label[integer] = label
 
+    def predict(seqs):
+        """Score padded id sequences; every branch sees the same input"""
+        if isinstance(seqs, np.ndarray):
+            # already padded by the java side
+            test_x = seqs
+        else:
+            test_x = pad_sequences([seq[0:maxlen] for seq in seqs], maxlen=maxlen)
+        return model.predict([test_x, test_x, test_x, test_x], batch_size=50)
+
     while True:
         try:
             line = sys.stdin.readline().rstrip()
             if not line:
                 break
 
-            feats=[]
-            for unigram in line.rstrip().split():
-                if unigram in word2int:
-                    feats.append(word2int[unigram])
-                else:
-                    # TODO: 'none' is not in vocabulary!
-                    feats.append(word2int['none'])
-
-            if len(feats) > maxlen:
-                feats=feats[0:maxlen]
-            test_x = pad_sequences([feats], maxlen=maxlen)
+            if line.startswith(framing.HELLO):
+                # switch to id frames if the java side offers them, else stay with text
+                agreed = framing.handshake(line, sys.stdout)
+                if 'ids' in agreed:
+                    framing.serve(sys.stdin, sys.stdout, predict, agreed)
+                    break
+                continue
 
-            test_xs = []
-            test_xs.append(test_x)
-            test_xs.append(test_x)
-            test_xs.append(test_x)
-            test_xs.append(test_x)
+            if line.startswith('#BATCH '):
+                # the header is followed by n instances, one per line
+                n = int(line.split()[1])
+                lines = [sys.stdin.readline().rstrip() for i in range(n)]
+            else:
+                lines = [line]
 
-            out = model.predict(test_xs, batch_size=50)[0]
+            out = predict([encode(l, word2int, maxlen) for l in lines])
 
         except KeyboardInterrupt:
             sys.stderr.write("Caught keyboard interrupt\n")
@@ -61,8 +87,8 @@ def main(args):
             sys.stderr.write("Encountered empty string so exiting\n")
             break
 
-        out_str = int2label[out.argmax()]
-        print out_str
+        for scores in out:
+            print int2label[scores.argmax()]
         sys.stdout.flush()
 
     sys.exit(0)
@@ -2,6 +2,7 @@
 
 import numpy as np
 import sys
+import os.path
 sys.dont_write_bytecode = True
 import ConfigParser
 import glob, string, collections, operator
@@ -58,6 +59,32 @@ class DatasetProvider:
 
     return examples, labels
 
+def write_tables(working_dir, provider, maxlen):
+  """Write the vocabulary, label index and sequence length as text"""
+
+  for name, index in [('word2int.txt', provider.word2int),
+                      ('label2int.txt', provider.label2int)]:
+    out = open(os.path.join(working_dir, name), 'w')
+    for token, integer in index.items():
+      out.write('%s\t%d\n' % (token, integer))
+    out.close()
+
+  open(os.path.join(working_dir, 'maxlen.txt'), 'w').write('%d\n' % maxlen)
+
+def read_tables(working_dir):
+  """Read the tables written by write_tables; returns maxlen, word2int and label2int"""
+
+  indices = []
+  for name in ['word2int.txt', 'label2int.txt']:
+    index = {}
+    for line in open(os.path.join(working_dir, name)):
+      token, integer = line.rstrip('\n').rsplit('\t', 1)
+      index[token] = int(integer)
+    indices.append(index)
+
+  maxlen = int(open(os.path.join(working_dir, 'maxlen.txt')).read())
+  return maxlen, indices[0], indices[1]
+
 if __name__ == "__main__":
 
   cfg = ConfigParser.ConfigParser()
@@ -4,6 +4,7 @@ import numpy as np
 np.random.seed(1337)
 import lib.et_cleartk_io as ctk_io
 import lib.nn_models
+from lib.progress import ProgressReporter
 import sys
 import os.path
 import dataset
@@ -40,6 +41,9 @@ def main(args):
     pickle.dump(provider.word2int, open(os.path.join(working_dir, 'word2int.p'),"wb"))
     pickle.dump(provider.label2int, open(os.path.join(working_dir, 'label2int.p'),"wb"))
 
+    # plain text copies of the tables for the java-side classifier
+    dataset.write_tables(working_dir, provider, maxlen)
+
     print 'train_x shape:', train_x.shape
     print 'train_y shape:', train_y.shape
 
@@ -66,6 +70,7 @@ def main(args):
               epochs=10,
               batch_size=50,
               verbose=0,
+              callbacks=[ProgressReporter()],
               validation_split=0.0,
               class_weight=None)
 
@@ -0,0 +1,89 @@
+#!/usr/bin/env python
+
+"""Writes the fixture KerasSequentialModelTest checks the JVM engine against.
+
+Builds a small model with the architecture of cnn_train.py (four merged convolutional
+branches) from a toy data set, saves it and its tables the way the training scripts do,
+and writes the probabilities keras gives a few instances, some of them with out of
+vocabulary words, to expected.txt as 'text<TAB>p0 p1 ...' lines. The weights are random
+but seeded; the model does not need to be any good to show that both engines agree.
+
+  python keras_parity.py src/test/resources/org/apache/ctakes/neural/keras/parity
+"""
+
+import numpy as np
+np.random.seed(1337)
+import sys
+import os.path
+import dataset
+from cnn_classify import encode
+from keras.preprocessing.sequence import pad_sequences
+from keras.models import Sequential
+from keras.layers import Merge
+from keras.layers.core import Dense, Activation, Flatten
+from keras.layers.convolutional import Convolution1D, MaxPooling1D
+from keras.layers.embeddings import Embedding
+
+TRAIN = ['contains|<e> biopsy </e> performed on <t> monday </t>',
+         'contains|<t> 2010 </t> scan showed <e> mass </e>',
+         'before|<e> surgery </e> was done before <t> march </t>',
+         'overlap|patient had <e> pain </e> since <t> yesterday </t> and fever',
+         'none|<e> follow-up </e> in clinic <t> today </t>']
+
+TEST = ['<e> biopsy </e> performed on <t> monday </t>',
+        'scan showed <e> mass </e>',
+        '<e> chemotherapy </e> started last <t> week </t>',
+        'unseen words only',
+        'patient had <e> pain </e> since <t> yesterday </t> and fever with more words than maxlen']
+
+def main(args):
+    if len(args) < 1:
+        sys.stderr.write("Error - one required argument: <fixture directory>\n")
+        sys.exit(-1)
+    working_dir = args[0]
+    if not os.path.exists(working_dir):
+        os.makedirs(working_dir)
+    data_file = os.path.join(working_dir, 'training-data.liblinear')
+    open(data_file, 'w').write('\n'.join(TRAIN) + '\n')
+
+    provider = dataset.DatasetProvider(data_file)
+    train_x, train_y = provider.load(data_file)
+    maxlen = max([len(seq) for seq in train_x])
+    classes = len(set(train_y))
+    dataset.write_tables(working_dir, provider, maxlen)
+    os.remove(data_file)
+
+    branches = []
+    for filter_len in '2,3,4,5'.split(','):
+        branch = Sequential()
+        branch.add(Embedding(len(provider.word2int),
+                             8,
+                             input_length=maxlen))
+        branch.add(Convolution1D(nb_filter=4,
+                                 filter_length=int(filter_len),
+                                 border_mode='valid',
+                                 activation='relu',
+                                 subsample_length=1))
+        branch.add(MaxPooling1D(pool_length=2))
+        branch.add(Flatten())
+        branches.append(branch)
+
+    model = Sequential()
+    model.add(Merge(branches, mode='concat'))
+    model.add(Dense(6))
+    model.add(Activation('relu'))
+    model.add(Dense(classes))
+    model.add(Activation('softmax'))
+
+    open(os.path.join(working_dir, 'model_0.json'), 'w').write(model.to_json())
+    model.save_weights(os.path.join(working_dir, 'model_0.h5'), overwrite=True)
+
+    test_x = pad_sequences([encode(line, provider.word2int, maxlen) for line in TEST], maxlen=maxlen)
+    out = model.predict([test_x, test_x, test_x, test_x])
+    expected = open(os.path.join(working_dir, 'expected.txt'), 'w')
+    for line, scores in zip(TEST, out):
+        expected.write('%s\t%s\n' % (line, ' '.join(['%.8f' % p for p in scores])))
+    expected.close()
+
+if __name__ == "__main__":
+    main(sys.argv[1:])
@@ -0,0 +1,18 @@
+#!/usr/bin/env python
+
+"""The models KerasStringOutcomeClassifierBuilder packages with a classifier, model_0 up
+to model_N. A classify process runs one of them; to use several as an ensemble the java
+side starts a process per model and combines their scores."""
+
+import os.path
+from keras.models import model_from_json
+
+def load_model(model_dir, num=0):
+    """Load model_<num> from model_dir"""
+
+    path = os.path.join(model_dir, 'model_%d' % num)
+    if not os.path.exists(path + '.json'):
+        raise IOError('no model_%d.json in %s' % (num, model_dir))
+    model = model_from_json(open(path + '.json').read())
+    model.load_weights(path + '.h5')
+    return model
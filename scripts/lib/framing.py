@@ -0,0 +1,128 @@
+#!/usr/bin/env python
+
+"""Binary protocol between ScriptStringOutcomeClassifier and the classify scripts.
+
+The java side offers it with a '#HELLO ids' line; once the script answers '#OK ids'
+each request is a big-endian int instance count (0 ends the session) followed, per
+instance, by an int length and that many int token ids. The reply is the int instance
+count, an int number of scores per instance (0 here) and, per instance, the int class id.
+If 'tagged' is agreed as well, every request and reply starts with the int request id,
+which is positive so that a lone 0 still ends the session. If 'padded' is agreed, the
+instance count is followed by one int row length and the rows, padded and truncated by the
+java side, which are read as a single matrix.
+
+'shm=<path>' offers a memory-mapped file shared with the java side (it needs 'tagged' and
+'padded'). A request may then come as its id, an instance count of -1 and the int offset,
+length and reply capacity of a region of that file, which holds the padded request frame
+without its id. The reply frame, again without its id, is written into the file right
+after the request, and only the id and -1 are sent back. A reply that does not fit is sent
+the usual way.
+
+'scores' asks for the class probabilities as well: the number of scores per instance is
+then the length of a score row, and each class id is followed by that many float scores.
+"""
+
+import mmap
+import struct
+import numpy as np
+
+HELLO = '#HELLO'
+CAPABILITIES = ['ids', 'tagged', 'padded', 'scores', 'shm']
+IN_SHARED_MEMORY = -1
+
+def handshake(line, stdout):
+    """Answer a hello line with the capabilities we share; returns them as a dict from
+    name to value (the mapped file for 'shm', else None)"""
+
+    agreed = {}
+    for offer in line.split()[1:]:
+        name, _, value = offer.partition('=')
+        if name not in CAPABILITIES:
+            continue
+        if name == 'shm':
+            try:
+                agreed[name] = map_file(value)
+            except (IOError, OSError, ValueError):
+                continue
+        else:
+            agreed[name] = None
+    stdout.write('#OK %s\n' % ' '.join(cap for cap in CAPABILITIES if cap in agreed))
+    stdout.flush()
+    return agreed
+
+def map_file(path):
+    with open(path, 'r+b') as f:
+        return mmap.mmap(f.fileno(), 0)
+
+def read_exactly(stream, n):
+    data = stream.read(n)
+    if len(data) < n:
+        raise EOFError('expected %d bytes but got %d' % (n, len(data)))
+    return data
+
+def read_request(stdin, tagged=False, padded=False, shm=None):
+    """Read one request frame; returns the request id (None if untagged), a list of id
+    lists (a matrix of padded rows if padded) and, for requests in shared memory, the
+    offset and capacity of the reply region (else None); or None when the session ends"""
+
+    request_id = None
+    header = stdin.read(4)
+    if len(header) < 4:
+        return None
+    n, = struct.unpack('>i', header)
+    if tagged and n != 0:
+        request_id = n
+        n, = struct.unpack('>i', read_exactly(stdin, 4))
+    if n == 0:
+        return None
+
+    if n == IN_SHARED_MEMORY:
+        offset, length, capacity = struct.unpack('>iii', read_exactly(stdin, 12))
+        n, row_length = struct.unpack_from('>ii', shm, offset)
+        rows = np.frombuffer(shm, dtype='>i4', count=n * row_length, offset=offset + 8)
+        return request_id, rows.reshape(n, row_length), (offset + length, capacity)
+
+    if padded:
+        length, = struct.unpack('>i', read_exactly(stdin, 4))
+        rows = np.frombuffer(read_exactly(stdin, 4 * n * length), dtype='>i4')
+        return request_id, rows.reshape(n, length), None
+
+    seqs = []
+    for i in range(n):
+        length, = struct.unpack('>i', read_exactly(stdin, 4))
+        seqs.append(list(struct.unpack('>%di' % length, read_exactly(stdin, 4 * length))))
+    return request_id, seqs, None
+
+def write_reply(stdout, request_id, class_ids, shm=None, region=None, scores=None):
+    if scores is None:
+        body = struct.pack('>ii', len(class_ids), 0) + struct.pack('>%di' % len(class_ids), *class_ids)
+    else:
+        k = len(scores[0]) if len(scores) > 0 else 0
+        body = struct.pack('>ii', len(class_ids), k) + b''.join(
+            struct.pack('>i%df' % k, class_id, *row) for class_id, row in zip(class_ids, scores))
+    if region is not None and len(body) <= region[1]:
+        offset = region[0]
+        shm[offset:offset + len(body)] = body
+        stdout.write(struct.pack('>ii', request_id, IN_SHARED_MEMORY))
+    else:
+        if request_id is not None:
+            stdout.write(struct.pack('>i', request_id))
+        stdout.write(body)
+    stdout.flush()
+
+def serve(stdin, stdout, predict, agreed):
+    """Answer id frames until the session ends; predict maps a list of id lists (or a
+    matrix of padded rows) to score rows. agreed is what handshake returned"""
+
+    shm = agreed.get('shm')
+    while True:
+        request = read_request(stdin, 'tagged' in agreed, 'padded' in agreed, shm)
+        if request is None:
+            break
+        request_id, seqs, region = request
+        out = predict(seqs)
+        class_ids = [int(scores.argmax()) for scores in out]
+        if 'scores' in agreed:
+            write_reply(stdout, request_id, class_ids, shm, region, [[float(p) for p in scores] for scores in out])
+        else:
+            write_reply(stdout, request_id, class_ids, shm, region)
@@ -0,0 +1,40 @@
+#!/usr/bin/env python
+
+"""Training progress for ScriptStringOutcomeClassifierBuilder.
+
+Keras' own progress bars are meant for a terminal, so the training scripts fit with
+verbose=0 and report through this callback instead: one line per epoch on stdout, e.g.
+
+  #PROGRESS epoch=3/10 loss=0.4231 acc=0.8712 examples_per_sec=5120.3
+
+with the logged metrics of the epoch as name=value pairs.
+"""
+
+import sys
+import time
+from keras.callbacks import Callback
+
+PROGRESS = '#PROGRESS'
+
+class ProgressReporter(Callback):
+
+    def __init__(self, stream=sys.stdout):
+        Callback.__init__(self)
+        self.stream = stream
+        self.start = None
+
+    def on_epoch_begin(self, epoch, logs=None):
+        self.start = time.time()
+
+    def on_epoch_end(self, epoch, logs=None):
+        logs = logs or {}
+        epochs = self.params.get('epochs', self.params.get('nb_epoch'))
+        fields = ['epoch=%d/%d' % (epoch + 1, epochs)]
+        for name in sorted(logs):
+            fields.append('%s=%.6g' % (name, logs[name]))
+        samples = self.params.get('samples')
+        elapsed = time.time() - self.start
+        if samples and elapsed > 0:
+            fields.append('examples_per_sec=%.1f' % (samples / elapsed))
+        self.stream.write('%s %s\n' % (PROGRESS, ' '.join(fields)))
+        self.stream.flush()
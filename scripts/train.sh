@@ -1,7 +1,11 @@
 #!/bin/bash
 
 source $(dirname $0)/env/bin/activate
-python $(dirname $0)/ft_train.py $*
+python $(dirname $0)/ft_train.py $* &
+child=$!
+# pass a kill on to the training process so it does not outlive us:
+trap 'kill -TERM $child 2>/dev/null; wait $child; exit 143' TERM INT
+wait $child
 ret=$?
 deactivate
 exit $ret
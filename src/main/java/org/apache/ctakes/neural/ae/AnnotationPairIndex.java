@@ -0,0 +1,167 @@
+package org.apache.ctakes.neural.ae;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.uima.jcas.tcas.Annotation;
+
+/**
+ * A map from ordered pairs of annotations of one CAS to values, like a
+ * <code>Map&lt;List&lt;Annotation&gt;, V&gt;</code> keyed by <code>Arrays.asList(arg1, arg2)</code>
+ * but without a list per lookup. An annotation is identified by its CAS address, as
+ * {@link Annotation#equals} does, and a pair by both addresses packed into a long. The keys
+ * are found by open addressing in a table of entry numbers, and the entries are kept in
+ * insertion order, which is the order of {@link #values()}.
+ *
+ * Pairs can be looked up in their order ({@link #get}) or in either order ({@link #getEither}).
+ * There is no removal; the indexes are made per document.
+ */
+public class AnnotationPairIndex<V> {
+
+  private static final int EMPTY = -1;
+
+  private long[] keys;
+  private Object[] values;
+  private int size = 0;
+  // entry numbers, or EMPTY; always at least twice as long as there are entries
+  private int[] table;
+  private int shift;
+
+  public AnnotationPairIndex() {
+    this(16);
+  }
+
+  public AnnotationPairIndex(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+    this.keys = new long[capacity / 2];
+    this.values = new Object[capacity / 2];
+    this.table = new int[capacity];
+    Arrays.fill(this.table, EMPTY);
+    this.shift = 64 - Integer.numberOfTrailingZeros(capacity);
+  }
+
+  /**
+   * @return the value of the pair (<code>arg1</code>, <code>arg2</code>) in this order, or
+   * <code>null</code>
+   */
+  @SuppressWarnings("unchecked")
+  public V get(Annotation arg1, Annotation arg2) {
+    int entry = find(key(arg1, arg2));
+    return entry == EMPTY ? null : (V) this.values[entry];
+  }
+
+  /**
+   * @return the value of the pair (<code>arg1</code>, <code>arg2</code>), else that of
+   * (<code>arg2</code>, <code>arg1</code>), or <code>null</code>
+   */
+  public V getEither(Annotation arg1, Annotation arg2) {
+    V value = get(arg1, arg2);
+    return value != null ? value : get(arg2, arg1);
+  }
+
+  public boolean containsKey(Annotation arg1, Annotation arg2) {
+    return find(key(arg1, arg2)) != EMPTY;
+  }
+
+  /**
+   * @return whether either order of the pair is in the index
+   */
+  public boolean containsEither(Annotation arg1, Annotation arg2) {
+    return containsKey(arg1, arg2) || containsKey(arg2, arg1);
+  }
+
+  /**
+   * @return the value the pair had before, or <code>null</code>
+   */
+  @SuppressWarnings("unchecked")
+  public V put(Annotation arg1, Annotation arg2, V value) {
+    long key = key(arg1, arg2);
+    int slot = slot(key);
+    while(this.table[slot] != EMPTY) {
+      int entry = this.table[slot];
+      if(this.keys[entry] == key) {
+        V before = (V) this.values[entry];
+        this.values[entry] = value;
+        return before;
+      }
+      slot = (slot + 1) & (this.table.length - 1);
+    }
+    if(this.size == this.keys.length) {
+      grow();
+      put(arg1, arg2, value);
+      return null;
+    }
+    this.keys[this.size] = key;
+    this.values[this.size] = value;
+    this.table[slot] = this.size;
+    this.size++;
+    return null;
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  public boolean isEmpty() {
+    return this.size == 0;
+  }
+
+  /**
+   * @return the values in the order their pairs were first put, as a view of the index
+   */
+  public List<V> values() {
+    return new AbstractList<V>() {
+      @SuppressWarnings("unchecked")
+      @Override
+      public V get(int index) {
+        if(index < 0 || index >= AnnotationPairIndex.this.size) {
+          throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        return (V) AnnotationPairIndex.this.values[index];
+      }
+
+      @Override
+      public int size() {
+        return AnnotationPairIndex.this.size;
+      }
+    };
+  }
+
+  private static long key(Annotation arg1, Annotation arg2) {
+    return ((long) arg1.getAddress() << 32) | (arg2.getAddress() & 0xFFFFFFFFL);
+  }
+
+  private int slot(long key) {
+    // Fibonacci hashing: the top bits of the product are the best mixed ones
+    return (int) ((key * 0x9E3779B97F4A7C15L) >>> this.shift);
+  }
+
+  private int find(long key) {
+    int slot = slot(key);
+    while(this.table[slot] != EMPTY) {
+      int entry = this.table[slot];
+      if(this.keys[entry] == key) {
+        return entry;
+      }
+      slot = (slot + 1) & (this.table.length - 1);
+    }
+    return EMPTY;
+  }
+
+  private void grow() {
+    int capacity = this.table.length * 2;
+    this.keys = Arrays.copyOf(this.keys, capacity / 2);
+    this.values = Arrays.copyOf(this.values, capacity / 2);
+    this.table = new int[capacity];
+    Arrays.fill(this.table, EMPTY);
+    this.shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    for(int entry = 0; entry < this.size; entry++) {
+      int slot = slot(this.keys[entry]);
+      while(this.table[slot] != EMPTY) {
+        slot = (slot + 1) & (this.table.length - 1);
+      }
+      this.table[slot] = entry;
+    }
+  }
+}
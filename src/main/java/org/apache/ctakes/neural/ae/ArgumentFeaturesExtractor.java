@@ -0,0 +1,112 @@
+package org.apache.ctakes.neural.ae;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.ctakes.relationextractor.ae.features.RelationFeaturesExtractor;
+import org.apache.ctakes.temporal.ae.feature.EventArgumentPropertyExtractor;
+import org.apache.ctakes.temporal.ae.feature.UmlsFeatureExtractor;
+import org.apache.ctakes.typesystem.type.textsem.IdentifiedAnnotation;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.jcas.JCas;
+import org.cleartk.ml.Feature;
+
+/**
+ * Pair features made of a part that depends on the first argument only, followed by a part
+ * that depends on the second argument only. Each part is extracted once per mention and
+ * position and then reused for every pair the mention is in, so a sentence with n events
+ * costs n extractions instead of n^2.
+ *
+ * Only named features are kept, since those are the ones the feature-based annotators use.
+ * An instance remembers the mentions it has seen until {@link #clear()}, so it is meant for
+ * one document at a time.
+ */
+public abstract class ArgumentFeaturesExtractor implements RelationFeaturesExtractor<IdentifiedAnnotation, IdentifiedAnnotation> {
+
+  private final Map<IdentifiedAnnotation, List<Feature>> arg1Features = new HashMap<>();
+  private final Map<IdentifiedAnnotation, List<Feature>> arg2Features = new HashMap<>();
+
+  /**
+   * Wraps an extractor that looks at each argument on its own and skips an argument that is
+   * missing, like {@link EventArgumentPropertyExtractor} and {@link UmlsFeatureExtractor}:
+   * the part of the first argument is what it extracts when the second one is
+   * <code>null</code>, and vice versa.
+   */
+  public static ArgumentFeaturesExtractor separable(
+      final RelationFeaturesExtractor<IdentifiedAnnotation, IdentifiedAnnotation> extractor) {
+    return new ArgumentFeaturesExtractor() {
+      @Override
+      protected List<Feature> extractArg1(JCas jCas, IdentifiedAnnotation arg1) throws AnalysisEngineProcessException {
+        return extractor.extract(jCas, arg1, null);
+      }
+
+      @Override
+      protected List<Feature> extractArg2(JCas jCas, IdentifiedAnnotation arg2) throws AnalysisEngineProcessException {
+        return extractor.extract(jCas, null, arg2);
+      }
+    };
+  }
+
+  /**
+   * @return the features <code>arg1</code> contributes as the first argument of a pair
+   */
+  protected abstract List<Feature> extractArg1(JCas jCas, IdentifiedAnnotation arg1) throws AnalysisEngineProcessException;
+
+  /**
+   * @return the features <code>arg2</code> contributes as the second argument of a pair
+   */
+  protected abstract List<Feature> extractArg2(JCas jCas, IdentifiedAnnotation arg2) throws AnalysisEngineProcessException;
+
+  /**
+   * @return whether the pair gets any features at all; by default every pair does
+   */
+  protected boolean applies(IdentifiedAnnotation arg1, IdentifiedAnnotation arg2) {
+    return true;
+  }
+
+  @Override
+  public List<Feature> extract(JCas jCas, IdentifiedAnnotation arg1, IdentifiedAnnotation arg2)
+      throws AnalysisEngineProcessException {
+    if(!applies(arg1, arg2)) {
+      return new ArrayList<>();
+    }
+    List<Feature> first = this.arg1Features.get(arg1);
+    if(first == null) {
+      first = named(extractArg1(jCas, arg1));
+      this.arg1Features.put(arg1, first);
+    }
+    List<Feature> second = this.arg2Features.get(arg2);
+    if(second == null) {
+      second = named(extractArg2(jCas, arg2));
+      this.arg2Features.put(arg2, second);
+    }
+    List<Feature> features = new ArrayList<>(first.size() + second.size());
+    features.addAll(first);
+    features.addAll(second);
+    return features;
+  }
+
+  /**
+   * Forgets the features of the mentions seen so far, before the next document.
+   */
+  public void clear() {
+    this.arg1Features.clear();
+    this.arg2Features.clear();
+  }
+
+  private static List<Feature> named(List<Feature> features) {
+    if(features == null) {
+      return Collections.emptyList();
+    }
+    List<Feature> named = new ArrayList<>(features.size());
+    for(Feature feature : features) {
+      if(feature.getName() != null) {
+        named.add(feature);
+      }
+    }
+    return named;
+  }
+}
@@ -0,0 +1,73 @@
+package org.apache.ctakes.neural.ae;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cleartk.ml.Feature;
+
+/**
+ * Turns named features into the binary features the feature-based annotators classify:
+ * <code>name_value</code>, with line breaks turned into spaces. The same names and values
+ * come up in document after document, so each binary feature is made once and then looked up
+ * by name and value, which allocates nothing. Once <code>capacity</code> binary features are
+ * kept, new ones are made without being kept.
+ *
+ * Not thread-safe; each annotator instance has its own.
+ */
+public class BinaryFeatureCache {
+
+  public static final int DEFAULT_CAPACITY = 1 << 20;
+
+  private final Map<String, Map<Object, Feature>> featuresByName = new HashMap<>();
+  private final int capacity;
+  private int size = 0;
+
+  public BinaryFeatureCache() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public BinaryFeatureCache(int capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * @return the binary features of the named features in <code>features</code>, in order;
+   * unnamed ones are left out
+   */
+  public List<Feature> toBinaryFeatures(List<Feature> features) {
+    List<Feature> binaryFeatures = new ArrayList<>(features.size());
+    for(Feature feature : features) {
+      if(feature.getName() != null) {
+        binaryFeatures.add(get(feature.getName(), feature.getValue()));
+      }
+    }
+    return binaryFeatures;
+  }
+
+  public Feature get(String name, Object value) {
+    Map<Object, Feature> features = this.featuresByName.get(name);
+    Feature feature = features == null ? null : features.get(value);
+    if(feature != null) {
+      return feature;
+    }
+    feature = new Feature(replaceLineBreaks(name) + "_" + replaceLineBreaks(value.toString()));
+    if(this.size < this.capacity) {
+      if(features == null) {
+        features = new HashMap<>();
+        this.featuresByName.put(name, features);
+      }
+      features.put(value, feature);
+      this.size++;
+    }
+    return feature;
+  }
+
+  private static String replaceLineBreaks(String text) {
+    if(text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+      return text;
+    }
+    return text.replace('\n', ' ').replace('\r', ' ');
+  }
+}
@@ -0,0 +1,23 @@
+package org.apache.ctakes.neural.ae;
+
+import java.util.List;
+
+import org.apache.ctakes.temporal.ae.TemporalRelationExtractorAnnotator.IdentifiedAnnotationPair;
+import org.apache.ctakes.typesystem.type.textsem.EventMention;
+import org.apache.ctakes.typesystem.type.textspan.Sentence;
+
+/**
+ * Chooses the event pairs of a sentence that the event-event annotators classify.
+ */
+public interface CandidatePairGenerator {
+
+  /**
+   * Called on the sentence worker threads, so only reads <code>index</code>, not the CAS.
+   *
+   * @param index the tokens of the sentences of the document
+   * @param events the events covered by <code>sentence</code>, in index order
+   * @return the pairs to classify, each with its first argument before the second
+   */
+  public List<IdentifiedAnnotationPair> getCandidatePairs(SentenceTokenIndex index, Sentence sentence,
+      List<EventMention> events);
+}
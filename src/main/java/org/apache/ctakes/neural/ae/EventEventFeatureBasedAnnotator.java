@@ -1,11 +1,19 @@
 package org.apache.ctakes.neural.ae;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
+import org.apache.ctakes.neural.keras.AsyncBatchClassifier;
+import org.apache.ctakes.neural.keras.KerasStringOutcomeDataWriter;
+import org.apache.ctakes.neural.keras.ScoredOutcome;
+import org.apache.ctakes.neural.keras.ScoringClassifier;
+import org.apache.ctakes.neural.keras.SharedClassifierRegistry;
+import org.apache.ctakes.neural.keras.SharedJarClassifierFactory;
 import org.apache.ctakes.relationextractor.ae.features.PartOfSpeechFeaturesExtractor;
 import org.apache.ctakes.temporal.ae.TemporalRelationExtractorAnnotator.IdentifiedAnnotationPair;
 import org.apache.ctakes.temporal.ae.feature.DependencyPathFeaturesExtractor;
@@ -19,126 +27,358 @@ import org.apache.ctakes.typesystem.type.relation.TemporalTextRelation;
 import org.apache.ctakes.typesystem.type.textsem.EventMention;
 import org.apache.ctakes.typesystem.type.textsem.IdentifiedAnnotation;
 import org.apache.ctakes.typesystem.type.textspan.Sentence;
+import org.apache.uima.UimaContext;
 import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.fit.descriptor.ConfigurationParameter;
+import org.apache.uima.fit.factory.initializable.InitializableFactory;
 import org.apache.uima.fit.util.JCasUtil;
 import org.apache.uima.jcas.JCas;
 import org.apache.uima.jcas.tcas.Annotation;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.util.Level;
+import org.cleartk.ml.Classifier;
 import org.cleartk.ml.CleartkAnnotator;
+import org.cleartk.ml.DataWriter;
 import org.cleartk.ml.Feature;
 import org.cleartk.ml.Instance;
 import org.cleartk.util.ViewUriUtil;
 
-import com.google.common.collect.Lists;
-
 public class EventEventFeatureBasedAnnotator extends CleartkAnnotator<String> {
 
   public static final String NO_RELATION_CATEGORY = "none";
   // private Random coin = new Random(0);
 
+  /**
+   * The category the pre-filter tells apart from {@link #NO_RELATION_CATEGORY}: any relation.
+   */
+  public static final String PREFILTER_RELATION_CATEGORY = "relation";
+
+  public static final String PARAM_PREFILTER_DIRECTORY = "PrefilterDirectory";
+  @ConfigurationParameter(name = PARAM_PREFILTER_DIRECTORY, mandatory=false,
+      description = "during training, where to write the training data of the pre-filter as well")
+  private File prefilterDirectory = null;
+
+  public static final String PARAM_PREFILTER_JAR_PATH = "PrefilterJarPath";
+  @ConfigurationParameter(name = PARAM_PREFILTER_JAR_PATH, mandatory=false,
+      description = "the packaged pre-filter; without one every pair gets all the features")
+  private String prefilterJarPath = null;
+
+  public static final String PARAM_PREFILTER_THRESHOLD = "PrefilterThreshold";
+  @ConfigurationParameter(name = PARAM_PREFILTER_THRESHOLD, mandatory=false,
+      description = "the probability of no relation from which the pre-filter drops a pair")
+  private float prefilterThreshold = 0.95f;
+
+  public static final String PARAM_MAX_TOKEN_DISTANCE = "MaxTokenDistance";
+  @ConfigurationParameter(name = PARAM_MAX_TOKEN_DISTANCE, mandatory=false,
+      description = "the most tokens between the events of a candidate pair, or -1 for no bound")
+  private int maxTokenDistance = EventPairGenerator.UNBOUNDED;
+
+  public static final String PARAM_MAX_PAIRS_PER_SENTENCE = "MaxPairsPerSentence";
+  @ConfigurationParameter(name = PARAM_MAX_PAIRS_PER_SENTENCE, mandatory=false,
+      description = "the most candidate pairs of one sentence, the closest ones, or -1 for no bound")
+  private int maxPairsPerSentence = EventPairGenerator.UNBOUNDED;
+
+  public static final String PARAM_PAIR_DISTANCE_FILE = "PairDistanceFile";
+  @ConfigurationParameter(name = PARAM_PAIR_DISTANCE_FILE, mandatory=false,
+      description = "where training saves the token distances of the gold pairs, which then bound the candidate pairs")
+  private File pairDistanceFile = null;
+
+  public static final String PARAM_PAIR_DISTANCE_COVERAGE = "PairDistanceCoverage";
+  @ConfigurationParameter(name = PARAM_PAIR_DISTANCE_COVERAGE, mandatory=false,
+      description = "the share of the gold pairs that the bound from the PairDistanceFile keeps")
+  private float pairDistanceCoverage = 0.99f;
+
+  protected CandidatePairGenerator pairGenerator;
+  private PairDistanceStatistics pairStatistics = null;
+
+  private UnexpandedTokenFeaturesExtractor fe1;
+  private PartOfSpeechFeaturesExtractor fe2;
+  // the event properties and UMLS types of an event are the same in every pair it is in:
+  private ArgumentFeaturesExtractor fe3;
+  private ArgumentFeaturesExtractor fe4;
+  private DependencyPathFeaturesExtractor fe5;
+  private OverlappedHeadFeaturesExtractor fe6;
+  private BinaryFeatureCache binaryFeatures;
+
+  // the pre-filter only sees the cheap features (tokens and parts of speech), and the pairs it
+  // is sure are not related are left out before the other features are extracted:
+  private DataWriter<String> prefilterDataWriter = null;
+  private Classifier<String> prefilter = null;
+  private int screenedPairs = 0;
+  private int droppedPairs = 0;
+
+  @Override
+  public void initialize(UimaContext context) throws ResourceInitializationException {
+    super.initialize(context);
+    this.fe1 = new UnexpandedTokenFeaturesExtractor();
+    this.fe2 = new PartOfSpeechFeaturesExtractor();
+    this.fe3 = ArgumentFeaturesExtractor.separable(new EventArgumentPropertyExtractor());
+    this.fe4 = ArgumentFeaturesExtractor.separable(new UmlsFeatureExtractor());
+    this.fe5 = new DependencyPathFeaturesExtractor();
+    this.fe6 = new OverlappedHeadFeaturesExtractor();
+    this.binaryFeatures = new BinaryFeatureCache();
+    try {
+      // the distances of the gold pairs only bound the candidate pairs once they are trained on
+      this.pairGenerator = EventPairGenerator.create(this.maxTokenDistance, this.maxPairsPerSentence,
+          this.isTraining() ? null : this.pairDistanceFile, PairDistanceStatistics.toCoverage(this.pairDistanceCoverage));
+    } catch (IOException e) {
+      throw new ResourceInitializationException(e);
+    }
+    if(this.isTraining()) {
+      this.pairStatistics = new PairDistanceStatistics();
+    }
+
+    if(this.isTraining() && this.prefilterDirectory != null) {
+      try {
+        KerasStringOutcomeDataWriter writer = new KerasStringOutcomeDataWriter(this.prefilterDirectory);
+        writer.initialize(context);
+        this.prefilterDataWriter = writer;
+      } catch (FileNotFoundException e) {
+        throw new ResourceInitializationException(e);
+      }
+    }
+    if(!this.isTraining() && this.prefilterJarPath != null) {
+      SharedJarClassifierFactory factory = new SharedJarClassifierFactory();
+      factory.setClassifierJarPath(this.prefilterJarPath);
+      try {
+        this.prefilter = factory.createClassifier();
+      } catch (IOException e) {
+        throw new ResourceInitializationException(e);
+      }
+      // like the main classifier, take the classify process settings of this annotator's context
+      InitializableFactory.initialize(this.prefilter, context);
+    }
+  }
+
+  @Override
+  public void collectionProcessComplete() throws AnalysisEngineProcessException {
+    super.collectionProcessComplete();
+    if(this.prefilterDataWriter != null) {
+      this.prefilterDataWriter.finish();
+    }
+    if(this.pairStatistics != null) {
+      this.getLogger().log(Level.INFO, this.pairStatistics.getReport(PairDistanceStatistics.toCoverage(this.pairDistanceCoverage)));
+      if(this.pairDistanceFile != null) {
+        try {
+          this.pairStatistics.write(this.pairDistanceFile);
+        } catch (IOException e) {
+          throw new AnalysisEngineProcessException(e);
+        }
+      }
+    }
+    if(this.prefilter != null) {
+      this.getLogger().log(Level.INFO, "Pre-filter dropped " + this.droppedPairs + " of "
+          + this.screenedPairs + " event pairs");
+    }
+  }
+
+  @Override
+  public void destroy() {
+    super.destroy();
+    try {
+      // hand a shared classifier back (or stop the classify processes we own):
+      SharedClassifierRegistry.release(this.classifier);
+      if(this.prefilter != null) {
+        SharedClassifierRegistry.release(this.prefilter);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   @Override
   public void process(JCas jCas) throws AnalysisEngineProcessException {
 
     // get all gold relation lookup
-    Map<List<Annotation>, BinaryTextRelation> relationLookup;
-    relationLookup = new HashMap<>();
+    AnnotationPairIndex<BinaryTextRelation> relationLookup;
+    relationLookup = new AnnotationPairIndex<>();
     if (this.isTraining()) {
-      relationLookup = new HashMap<>();
+      relationLookup = new AnnotationPairIndex<>();
       for (BinaryTextRelation relation : JCasUtil.select(jCas, BinaryTextRelation.class)) {
         Annotation arg1 = relation.getArg1().getArgument();
         Annotation arg2 = relation.getArg2().getArgument();
-        // The key is a list of args so we can do bi-directional lookup
-        List<Annotation> key = Arrays.asList(arg1, arg2);
-        if(relationLookup.containsKey(key)){
-          String reln = relationLookup.get(key).getCategory();
+        // The key is the ordered pair of args so we can do bi-directional lookup
+        if(relationLookup.containsKey(arg1, arg2)){
+          String reln = relationLookup.get(arg1, arg2).getCategory();
           System.err.println("Error in: "+ ViewUriUtil.getURI(jCas).toString());
           System.err.println("Error! This attempted relation " + relation.getCategory() + 
               " already has a relation " + reln + " at this span: " + 
               arg1.getCoveredText() + " -- " + arg2.getCoveredText());
         } else {
-          relationLookup.put(key, relation);
+          relationLookup.put(arg1, arg2, relation);
         }
       }
     }
 
-    UnexpandedTokenFeaturesExtractor fe1 = new UnexpandedTokenFeaturesExtractor();
-    PartOfSpeechFeaturesExtractor fe2 = new PartOfSpeechFeaturesExtractor();
-    EventArgumentPropertyExtractor fe3 = new EventArgumentPropertyExtractor();
-    UmlsFeatureExtractor fe4 = new UmlsFeatureExtractor();
-    DependencyPathFeaturesExtractor fe5 = new DependencyPathFeaturesExtractor();
-    OverlappedHeadFeaturesExtractor fe6 = new OverlappedHeadFeaturesExtractor();
+    // the per-argument features of the previous document are of no use any more
+    this.fe3.clear();
+    this.fe4.clear();
+
+    // the tokens and events of each sentence, and the gold relations by their first argument
+    SentenceTokenIndex index = new SentenceTokenIndex(jCas);
+    Map<Annotation, List<BinaryTextRelation>> goldByArg1 = null;
+    if(this.pairStatistics != null) {
+      goldByArg1 = PairDistanceStatistics.byFirstArgument(relationLookup.values());
+    }
     
+    // during classification, each sentence is handed to the classifier as soon as its instances
+    // are extracted, and the predictions are collected once the whole document is submitted
+    List<IdentifiedAnnotationPair> pairsToClassify = new ArrayList<>();
+    List<CompletableFuture<List<ScoredOutcome<String>>>> predictions = new ArrayList<>();
+    // the sentence whose pre-filter outcomes are awaited while the next one is extracted
+    ScreenedSentence previous = null;
+
     for(Sentence sentence : JCasUtil.select(jCas, Sentence.class)) {
       // collect all relevant relation arguments from the sentence
-      List<IdentifiedAnnotationPair> candidatePairs = getCandidateRelationArgumentPairs(jCas, sentence);
-
-      // walk through the pairs of annotations
+      List<EventMention> events = index.getEvents(sentence);
+      List<IdentifiedAnnotationPair> candidatePairs = this.pairGenerator.getCandidatePairs(index, sentence, events);
+      if(this.pairStatistics != null) {
+        this.pairStatistics.add(index.getTokenDistances(sentence), events, goldByArg1, candidatePairs);
+      }
+      List<List<Feature>> cheapInstances = new ArrayList<>();
       for (IdentifiedAnnotationPair pair : candidatePairs) {
-        IdentifiedAnnotation arg1 = pair.getArg1();
-        IdentifiedAnnotation arg2 = pair.getArg2();
-
-        List<Feature> allCleartkFeatures = new ArrayList<>();
-        
-        List<Feature> f1 = fe1.extract(jCas, arg1, arg2);
-        List<Feature> f2 = fe2.extract(jCas, arg1, arg2);
-        List<Feature> f3 = fe3.extract(jCas, arg1, arg2);
-        List<Feature> f4 = fe4.extract(jCas, arg1, arg2);
-        List<Feature> f5 = fe5.extract(jCas, arg1, arg2);
-        List<Feature> f6 = fe6.extract(jCas, arg1, arg2);
-        
-        if (f1 != null) allCleartkFeatures.addAll(f1);
-        if (f2 != null) allCleartkFeatures.addAll(f2);
-        if (f3 != null) allCleartkFeatures.addAll(f3);
-        if (f4 != null) allCleartkFeatures.addAll(f4);
-        if (f5 != null) allCleartkFeatures.addAll(f5);
-        if (f6 != null) allCleartkFeatures.addAll(f6);
-        
-        List<Feature> allBinaryFeatures = new ArrayList<>();
-        for(Feature feature : allCleartkFeatures) {
-          if(feature.getName() != null) {
-            String featureName = feature.getName().replaceAll("[\r\n]", " ");
-            String featureValue = feature.getValue().toString().replaceAll("[\r\n]", " ");
-            allBinaryFeatures.add(new Feature(featureName + "_" + featureValue));
-          }
-        }
-        
-        // during training, feed the features to the data writer
-        if(this.isTraining()) {
+        cheapInstances.add(extractCheapFeatures(jCas, pair.getArg1(), pair.getArg2()));
+      }
+
+      // during training, feed the features to the data writers
+      if(this.isTraining()) {
+        for(int i = 0; i < candidatePairs.size(); i++) {
+          IdentifiedAnnotation arg1 = candidatePairs.get(i).getArg1();
+          IdentifiedAnnotation arg2 = candidatePairs.get(i).getArg2();
           String category = getRelationCategory(relationLookup, arg1, arg2);
-          
+
           // drop some portion of negative examples during training
           // if(category == null && coin.nextDouble() <= 0.5) {
           //   continue; // skip this negative example
           // }
-          
+
           if(category == null) {
             category = NO_RELATION_CATEGORY;
           } else{
             category = category.toLowerCase();
           }
-          this.dataWriter.write(new Instance<>(category, allBinaryFeatures));
-        } else {
-          String predictedCategory = this.classifier.classify(allBinaryFeatures);
+          this.dataWriter.write(new Instance<>(category, extractAllFeatures(jCas, arg1, arg2, cheapInstances.get(i))));
+          if(this.prefilterDataWriter != null) {
+            String prefilterCategory = category.equals(NO_RELATION_CATEGORY) ? NO_RELATION_CATEGORY : PREFILTER_RELATION_CATEGORY;
+            this.prefilterDataWriter.write(new Instance<>(prefilterCategory, cheapInstances.get(i)));
+          }
+        }
+        continue;
+      }
+
+      // the pre-filter screens this sentence while the previous one gets all its features
+      ScreenedSentence screened = new ScreenedSentence(candidatePairs, cheapInstances);
+      if(this.prefilter != null && !cheapInstances.isEmpty()) {
+        screened.outcomes = ScoringClassifier.submitAllWithScores(this.prefilter, cheapInstances);
+      }
+      if(previous != null) {
+        classifyScreened(jCas, previous, pairsToClassify, predictions);
+      }
+      previous = screened;
+    }
+    if(previous != null) {
+      classifyScreened(jCas, previous, pairsToClassify, predictions);
+    }
 
-          // add a relation annotation if a true relation was predicted
-          if (predictedCategory != null && !predictedCategory.equals(NO_RELATION_CATEGORY)) {
+    if(!this.isTraining()) {
+      // collect the predictions for all pairs and create annotations
+      List<ScoredOutcome<String>> predictedOutcomes = AsyncBatchClassifier.collect(predictions);
+      for(int i = 0; i < pairsToClassify.size(); i++) {
+        IdentifiedAnnotation arg1 = pairsToClassify.get(i).getArg1();
+        IdentifiedAnnotation arg2 = pairsToClassify.get(i).getArg2();
+        String predictedCategory = predictedOutcomes.get(i).getOutcome();
 
-            // if we predict an inverted relation, reverse the order of the
-            // arguments
-            if (predictedCategory.endsWith("-1")) {
-              predictedCategory = predictedCategory.substring(0, predictedCategory.length() - 2);
-              IdentifiedAnnotation temp = arg1;
-              arg1 = arg2;
-              arg2 = temp;
-            }
+        // add a relation annotation if a true relation was predicted
+        if (predictedCategory != null && !predictedCategory.equals(NO_RELATION_CATEGORY)) {
 
-            createRelation(jCas, arg1, arg2, predictedCategory.toUpperCase(), 0.0);
+          // if we predict an inverted relation, reverse the order of the
+          // arguments
+          if (predictedCategory.endsWith("-1")) {
+            predictedCategory = predictedCategory.substring(0, predictedCategory.length() - 2);
+            IdentifiedAnnotation temp = arg1;
+            arg1 = arg2;
+            arg2 = temp;
           }
+
+          createRelation(jCas, arg1, arg2, predictedCategory.toUpperCase(), predictedOutcomes.get(i).getConfidence());
         }
       }
+    }
+  }
+
+  /**
+   * Drops the pairs of a sentence the pre-filter is sure are not related, once its outcomes are
+   * in, and submits the rest with all their features to the classifier.
+   */
+  private void classifyScreened(JCas jCas, ScreenedSentence sentence, List<IdentifiedAnnotationPair> pairsToClassify,
+      List<CompletableFuture<List<ScoredOutcome<String>>>> predictions) throws AnalysisEngineProcessException {
+    List<ScoredOutcome<String>> outcomes = null;
+    if(sentence.outcomes != null) {
+      outcomes = AsyncBatchClassifier.await(sentence.outcomes);
+      this.screenedPairs += outcomes.size();
+    }
+    List<List<Feature>> instancesToClassify = new ArrayList<>();
+    for(int i = 0; i < sentence.pairs.size(); i++) {
+      if(outcomes != null && isSurelyUnrelated(outcomes.get(i))) {
+        this.droppedPairs++;
+        continue;
+      }
+      IdentifiedAnnotationPair pair = sentence.pairs.get(i);
+      pairsToClassify.add(pair);
+      instancesToClassify.add(extractAllFeatures(jCas, pair.getArg1(), pair.getArg2(), sentence.cheapInstances.get(i)));
+    }
 
+    // classify this sentence while the instances of the next one are extracted
+    if(!instancesToClassify.isEmpty()) {
+      predictions.add(ScoringClassifier.submitAllWithScores(this.classifier, instancesToClassify));
     }
   }
 
+  /**
+   * @return the binary token and part-of-speech features of a pair, which the pre-filter uses
+   */
+  private List<Feature> extractCheapFeatures(JCas jCas, IdentifiedAnnotation arg1, IdentifiedAnnotation arg2)
+      throws AnalysisEngineProcessException {
+    List<Feature> features = new ArrayList<>();
+    List<Feature> f1 = this.fe1.extract(jCas, arg1, arg2);
+    List<Feature> f2 = this.fe2.extract(jCas, arg1, arg2);
+    if (f1 != null) features.addAll(f1);
+    if (f2 != null) features.addAll(f2);
+    return this.binaryFeatures.toBinaryFeatures(features);
+  }
+
+  /**
+   * @return the cheap features of a pair followed by the binary features of the other extractors
+   */
+  private List<Feature> extractAllFeatures(JCas jCas, IdentifiedAnnotation arg1, IdentifiedAnnotation arg2,
+      List<Feature> cheapFeatures) throws AnalysisEngineProcessException {
+    List<Feature> features = new ArrayList<>();
+    List<Feature> f3 = this.fe3.extract(jCas, arg1, arg2);
+    List<Feature> f4 = this.fe4.extract(jCas, arg1, arg2);
+    List<Feature> f5 = this.fe5.extract(jCas, arg1, arg2);
+    List<Feature> f6 = this.fe6.extract(jCas, arg1, arg2);
+    if (f3 != null) features.addAll(f3);
+    if (f4 != null) features.addAll(f4);
+    if (f5 != null) features.addAll(f5);
+    if (f6 != null) features.addAll(f6);
+
+    List<Feature> allBinaryFeatures = new ArrayList<>(cheapFeatures);
+    allBinaryFeatures.addAll(this.binaryFeatures.toBinaryFeatures(features));
+    return allBinaryFeatures;
+  }
+
+  /**
+   * @return whether the pre-filter gives no relation at least the threshold probability; a
+   * pre-filter without scores only has to predict no relation
+   */
+  private boolean isSurelyUnrelated(ScoredOutcome<String> screened) {
+    if(screened.getScores().isEmpty()) {
+      return NO_RELATION_CATEGORY.equals(screened.getOutcome());
+    }
+    Double unrelated = screened.getScores().get(NO_RELATION_CATEGORY);
+    return unrelated != null && unrelated >= this.prefilterThreshold;
+  }
+
   /**
    * original way of getting label
    * @param relationLookup
@@ -147,11 +387,11 @@ public class EventEventFeatureBasedAnnotator extends CleartkAnnotator<String> {
    * @return
    */
   protected String getRelationCategory(
-      Map<List<Annotation>, BinaryTextRelation> relationLookup,
+      AnnotationPairIndex<BinaryTextRelation> relationLookup,
       IdentifiedAnnotation arg1,
       IdentifiedAnnotation arg2) {
 
-    BinaryTextRelation relation = relationLookup.get(Arrays.asList(arg1, arg2));
+    BinaryTextRelation relation = relationLookup.get(arg1, arg2);
     String category = null;
     if (relation != null) {
       if (arg2.getBegin() < arg1.getBegin()) {
@@ -160,7 +400,7 @@ public class EventEventFeatureBasedAnnotator extends CleartkAnnotator<String> {
         category = relation.getCategory();
       }
     } else {
-      relation = relationLookup.get(Arrays.asList(arg2, arg1));
+      relation = relationLookup.get(arg2, arg1);
       if (relation != null) {
         if(arg2.getBegin() < arg1.getBegin()){
           category = relation.getCategory();
@@ -173,13 +413,13 @@ public class EventEventFeatureBasedAnnotator extends CleartkAnnotator<String> {
     return category;
   }
 
-  protected String getRelationCategory2(Map<List<Annotation>, BinaryTextRelation> relationLookup,
+  protected String getRelationCategory2(AnnotationPairIndex<BinaryTextRelation> relationLookup,
       IdentifiedAnnotation arg1,
       IdentifiedAnnotation arg2) {
     
     // gold view representation (i.e. only contains relations)
-    BinaryTextRelation arg1ContainsArg2 = relationLookup.get(Arrays.asList(arg1, arg2));
-    BinaryTextRelation arg2ContainsArg1 = relationLookup.get(Arrays.asList(arg2, arg1));
+    BinaryTextRelation arg1ContainsArg2 = relationLookup.get(arg1, arg2);
+    BinaryTextRelation arg2ContainsArg1 = relationLookup.get(arg2, arg1);
 
     // now translate to position dependent representation (i.e. contains and contains-1)
     if(arg1ContainsArg2 != null) {
@@ -219,28 +459,18 @@ public class EventEventFeatureBasedAnnotator extends CleartkAnnotator<String> {
     relation.addToIndexes();
   }
 
-  private static List<IdentifiedAnnotationPair> getCandidateRelationArgumentPairs(JCas jCas, Sentence sentence) {
-
-    List<IdentifiedAnnotationPair> pairs = Lists.newArrayList();
-    List<EventMention> events = new ArrayList<>(JCasUtil.selectCovered(jCas, EventMention.class, sentence));
-    // filter events
-    List<EventMention> realEvents = Lists.newArrayList();
-    for( EventMention event : events){
-      if(event.getClass().equals(EventMention.class)){
-        realEvents.add(event);
-      }
-    }
-    events = realEvents;
+  /**
+   * The candidate pairs of a sentence, their cheap features and the pre-filter's outcomes for
+   * them, if there is a pre-filter.
+   */
+  private static class ScreenedSentence {
+    final List<IdentifiedAnnotationPair> pairs;
+    final List<List<Feature>> cheapInstances;
+    CompletableFuture<List<ScoredOutcome<String>>> outcomes = null;
 
-    int eventNum = events.size();
-    for (int i = 0; i < eventNum-1; i++) {
-      for(int j = i+1; j < eventNum; j++) {
-        EventMention eventA = events.get(i);
-        EventMention eventB = events.get(j);
-        pairs.add(new IdentifiedAnnotationPair(eventA, eventB));
-      }
+    ScreenedSentence(List<IdentifiedAnnotationPair> pairs, List<List<Feature>> cheapInstances) {
+      this.pairs = pairs;
+      this.cheapInstances = cheapInstances;
     }
-
-    return pairs;
   }
 }
@@ -1,122 +1,251 @@
 package org.apache.ctakes.neural.ae;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
+import org.apache.ctakes.neural.keras.AsyncBatchClassifier;
+import org.apache.ctakes.neural.keras.ScoredOutcome;
+import org.apache.ctakes.neural.keras.ScoringClassifier;
+import org.apache.ctakes.neural.keras.SharedClassifierRegistry;
 import org.apache.ctakes.temporal.ae.TemporalRelationExtractorAnnotator.IdentifiedAnnotationPair;
-import org.apache.ctakes.temporal.nn.data.ArgContextProvider;
 import org.apache.ctakes.typesystem.type.relation.BinaryTextRelation;
 import org.apache.ctakes.typesystem.type.relation.RelationArgument;
 import org.apache.ctakes.typesystem.type.relation.TemporalTextRelation;
 import org.apache.ctakes.typesystem.type.textsem.EventMention;
 import org.apache.ctakes.typesystem.type.textsem.IdentifiedAnnotation;
 import org.apache.ctakes.typesystem.type.textspan.Sentence;
+import org.apache.uima.UimaContext;
 import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.fit.descriptor.ConfigurationParameter;
 import org.apache.uima.fit.util.JCasUtil;
 import org.apache.uima.jcas.JCas;
 import org.apache.uima.jcas.tcas.Annotation;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.util.Level;
 import org.cleartk.ml.CleartkAnnotator;
+import org.cleartk.ml.CleartkProcessingException;
 import org.cleartk.ml.Feature;
 import org.cleartk.ml.Instance;
 import org.cleartk.util.ViewUriUtil;
 
-import com.google.common.collect.Lists;
-
 public class EventEventTokenBasedAnnotator extends CleartkAnnotator<String> {
 
   public static final String NO_RELATION_CATEGORY = "none";
   // private Random coin = new Random(0);
 
+  public static final String PARAM_MAX_TOKEN_DISTANCE = "MaxTokenDistance";
+  @ConfigurationParameter(name = PARAM_MAX_TOKEN_DISTANCE, mandatory=false,
+      description = "the most tokens between the events of a candidate pair, or -1 for no bound")
+  private int maxTokenDistance = EventPairGenerator.UNBOUNDED;
+
+  public static final String PARAM_MAX_PAIRS_PER_SENTENCE = "MaxPairsPerSentence";
+  @ConfigurationParameter(name = PARAM_MAX_PAIRS_PER_SENTENCE, mandatory=false,
+      description = "the most candidate pairs of one sentence, the closest ones, or -1 for no bound")
+  private int maxPairsPerSentence = EventPairGenerator.UNBOUNDED;
+
+  public static final String PARAM_PAIR_DISTANCE_FILE = "PairDistanceFile";
+  @ConfigurationParameter(name = PARAM_PAIR_DISTANCE_FILE, mandatory=false,
+      description = "where training saves the token distances of the gold pairs, which then bound the candidate pairs")
+  private File pairDistanceFile = null;
+
+  public static final String PARAM_PAIR_DISTANCE_COVERAGE = "PairDistanceCoverage";
+  @ConfigurationParameter(name = PARAM_PAIR_DISTANCE_COVERAGE, mandatory=false,
+      description = "the share of the gold pairs that the bound from the PairDistanceFile keeps")
+  private float pairDistanceCoverage = 0.99f;
+
+  public static final String PARAM_SENTENCE_THREADS = "SentenceThreads";
+  @ConfigurationParameter(name = PARAM_SENTENCE_THREADS, mandatory=false,
+      description = "the number of threads that extract and classify the instances of the sentences of a document; 1 does it on the calling thread")
+  private int sentenceThreads = 1;
+
+  protected CandidatePairGenerator pairGenerator;
+  private PairDistanceStatistics pairStatistics = null;
+  private SentenceWorkers sentenceWorkers;
+
+  @Override
+  public void initialize(UimaContext context) throws ResourceInitializationException {
+    super.initialize(context);
+    try {
+      // the distances of the gold pairs only bound the candidate pairs once they are trained on
+      this.pairGenerator = EventPairGenerator.create(this.maxTokenDistance, this.maxPairsPerSentence,
+          this.isTraining() ? null : this.pairDistanceFile, PairDistanceStatistics.toCoverage(this.pairDistanceCoverage));
+    } catch (IOException e) {
+      throw new ResourceInitializationException(e);
+    }
+    if(this.isTraining()) {
+      this.pairStatistics = new PairDistanceStatistics();
+    }
+    this.sentenceWorkers = new SentenceWorkers(this.sentenceThreads);
+  }
+
+  @Override
+  public void collectionProcessComplete() throws AnalysisEngineProcessException {
+    super.collectionProcessComplete();
+    if(this.pairStatistics != null) {
+      this.getLogger().log(Level.INFO, this.pairStatistics.getReport(PairDistanceStatistics.toCoverage(this.pairDistanceCoverage)));
+      if(this.pairDistanceFile != null) {
+        try {
+          this.pairStatistics.write(this.pairDistanceFile);
+        } catch (IOException e) {
+          throw new AnalysisEngineProcessException(e);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void destroy() {
+    super.destroy();
+    this.sentenceWorkers.shutdown();
+    try {
+      // hand a shared classifier back (or stop the classify processes we own):
+      SharedClassifierRegistry.release(this.classifier);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   @Override
   public void process(JCas jCas) throws AnalysisEngineProcessException {
 
     // get all gold relation lookup
-    Map<List<Annotation>, BinaryTextRelation> relationLookup;
-    relationLookup = new HashMap<>();
+    AnnotationPairIndex<BinaryTextRelation> relationLookup;
+    relationLookup = new AnnotationPairIndex<>();
     if (this.isTraining()) {
-      relationLookup = new HashMap<>();
+      relationLookup = new AnnotationPairIndex<>();
       for (BinaryTextRelation relation : JCasUtil.select(jCas, BinaryTextRelation.class)) {
         Annotation arg1 = relation.getArg1().getArgument();
         Annotation arg2 = relation.getArg2().getArgument();
-        // The key is a list of args so we can do bi-directional lookup
-        List<Annotation> key = Arrays.asList(arg1, arg2);
-        if(relationLookup.containsKey(key)){
-          String reln = relationLookup.get(key).getCategory();
+        // The key is the ordered pair of args so we can do bi-directional lookup
+        if(relationLookup.containsKey(arg1, arg2)){
+          String reln = relationLookup.get(arg1, arg2).getCategory();
           System.err.println("Error in: "+ ViewUriUtil.getURI(jCas).toString());
           System.err.println("Error! This attempted relation " + relation.getCategory() + 
               " already has a relation " + reln + " at this span: " + 
               arg1.getCoveredText() + " -- " + arg2.getCoveredText());
         } else {
-          relationLookup.put(key, relation);
+          relationLookup.put(arg1, arg2, relation);
         }
       }
     }
 
-    for(Sentence sentence : JCasUtil.select(jCas, Sentence.class)) {
-      // collect all relevant relation arguments from the sentence
-      List<IdentifiedAnnotationPair> candidatePairs = getCandidateRelationArgumentPairs(jCas, sentence);
+    // the tokens and events of each sentence, so they are not selected again per pair
+    final SentenceTokenIndex index = new SentenceTokenIndex(jCas);
+    final AnnotationPairIndex<BinaryTextRelation> goldRelations = relationLookup;
+    Map<Annotation, List<BinaryTextRelation>> goldByArg1 = null;
+    if(this.pairStatistics != null) {
+      goldByArg1 = PairDistanceStatistics.byFirstArgument(relationLookup.values());
+    }
 
-      // walk through the pairs of annotations
-      for (IdentifiedAnnotationPair pair : candidatePairs) {
-        IdentifiedAnnotation arg1 = pair.getArg1();
-        IdentifiedAnnotation arg2 = pair.getArg2();
+    // during classification, each sentence is handed to the classifier as soon as its instances
+    // are extracted, and the predictions are collected once the whole document is submitted
+    List<SentenceInstances> sentenceInstances = this.sentenceWorkers.run(JCasUtil.select(jCas, Sentence.class),
+        new SentenceWorkers.SentenceTask<SentenceInstances>() {
+      @Override
+      public SentenceInstances run(Sentence sentence) throws Exception {
+        return extractInstances(index, sentence, goldRelations);
+      }
+    });
 
-        String context;
-        if(arg2.getBegin() < arg1.getBegin()) {
-          // ... event2 ... event1 ... scenario
-          System.out.println("\n-------------- THIS NEVER NAPPENS ------------\n");
-          context = ArgContextProvider.getTokenContext(jCas, sentence, arg2, "e2", arg1, "e1", 2); 
-        } else {
-          // ... event1 ... event2 ... scenario
-          context = ArgContextProvider.getTokenContext(jCas, sentence, arg1, "e1", arg2, "e2", 2);
+    // data is written and relations are made here, in sentence order, whichever thread extracted them
+    List<IdentifiedAnnotationPair> pairsToClassify = new ArrayList<>();
+    List<CompletableFuture<List<ScoredOutcome<String>>>> predictions = new ArrayList<>();
+    for(SentenceInstances instances : sentenceInstances) {
+      if(this.pairStatistics != null) {
+        this.pairStatistics.add(index.getTokenDistances(instances.sentence), instances.events, goldByArg1, instances.pairs);
+      }
+      if(this.isTraining()) {
+        for(int i = 0; i < instances.features.size(); i++) {
+          this.dataWriter.write(new Instance<>(instances.categories.get(i), instances.features.get(i)));
         }
+      } else if(instances.predictions != null) {
+        pairsToClassify.addAll(instances.pairs);
+        predictions.add(instances.predictions);
+      }
+    }
 
-        //derive features based on context:
-        List<Feature> feats = new ArrayList<>();
-        String[] tokens = context.split(" ");
-        for (String token: tokens){
-          feats.add(new Feature(token.toLowerCase()));
-        }
+    if(!this.isTraining()) {
+      // collect the predictions for all pairs and create annotations
+      List<ScoredOutcome<String>> predictedOutcomes = AsyncBatchClassifier.collect(predictions);
+      for(int i = 0; i < pairsToClassify.size(); i++) {
+        IdentifiedAnnotation arg1 = pairsToClassify.get(i).getArg1();
+        IdentifiedAnnotation arg2 = pairsToClassify.get(i).getArg2();
+        String predictedCategory = predictedOutcomes.get(i).getOutcome();
+
+        // add a relation annotation if a true relation was predicted
+        if (predictedCategory != null && !predictedCategory.equals(NO_RELATION_CATEGORY)) {
 
-        // during training, feed the features to the data writer
-        if(this.isTraining()) {
-          String category = getRelationCategory(relationLookup, arg1, arg2);
-          
-          // drop some portion of negative examples during training
-          // if(category == null && coin.nextDouble() <= 0.5) {
-          //   continue; // skip this negative example
-          // }
-          
-          if(category == null) {
-            category = NO_RELATION_CATEGORY;
-          } else{
-            category = category.toLowerCase();
+          // if we predict an inverted relation, reverse the order of the
+          // arguments
+          if (predictedCategory.endsWith("-1")) {
+            predictedCategory = predictedCategory.substring(0, predictedCategory.length() - 2);
+            IdentifiedAnnotation temp = arg1;
+            arg1 = arg2;
+            arg2 = temp;
           }
-          this.dataWriter.write(new Instance<>(category, feats));
-        } else {
-          String predictedCategory = this.classifier.classify(feats);
 
-          // add a relation annotation if a true relation was predicted
-          if (predictedCategory != null && !predictedCategory.equals(NO_RELATION_CATEGORY)) {
+          createRelation(jCas, arg1, arg2, predictedCategory.toUpperCase(), predictedOutcomes.get(i).getConfidence());
+        }
+      }
+    }
+  }
+
+  /**
+   * The instances of the candidate pairs of one sentence, with their categories during training
+   * and their classification submitted otherwise. Only reads the index, not the CAS.
+   */
+  private SentenceInstances extractInstances(SentenceTokenIndex index, Sentence sentence,
+      AnnotationPairIndex<BinaryTextRelation> relationLookup) throws CleartkProcessingException {
+    SentenceInstances instances = new SentenceInstances(sentence);
+    // collect all relevant relation arguments from the sentence
+    instances.events = index.getEvents(sentence);
+    List<IdentifiedAnnotationPair> candidatePairs = this.pairGenerator.getCandidatePairs(index, sentence, instances.events);
+
+    // walk through the pairs of annotations
+    for (IdentifiedAnnotationPair pair : candidatePairs) {
+      IdentifiedAnnotation arg1 = pair.getArg1();
+      IdentifiedAnnotation arg2 = pair.getArg2();
 
-            // if we predict an inverted relation, reverse the order of the
-            // arguments
-            if (predictedCategory.endsWith("-1")) {
-              predictedCategory = predictedCategory.substring(0, predictedCategory.length() - 2);
-              IdentifiedAnnotation temp = arg1;
-              arg1 = arg2;
-              arg2 = temp;
-            }
+      //derive features based on context:
+      List<Feature> feats;
+      if(arg2.getBegin() < arg1.getBegin()) {
+        // ... event2 ... event1 ... scenario
+        System.out.println("\n-------------- THIS NEVER NAPPENS ------------\n");
+        feats = index.getTokenContextFeatures(sentence, arg2, "e2", arg1, "e1", 2);
+      } else {
+        // ... event1 ... event2 ... scenario
+        feats = index.getTokenContextFeatures(sentence, arg1, "e1", arg2, "e2", 2);
+      }
 
-            createRelation(jCas, arg1, arg2, predictedCategory.toUpperCase(), 0.0);
-          }
+      // during training, label the features for the data writer
+      if(this.isTraining()) {
+        String category = getRelationCategory(relationLookup, arg1, arg2);
+        
+        // drop some portion of negative examples during training
+        // if(category == null && coin.nextDouble() <= 0.5) {
+        //   continue; // skip this negative example
+        // }
+        
+        if(category == null) {
+          category = NO_RELATION_CATEGORY;
+        } else{
+          category = category.toLowerCase();
         }
+        instances.categories.add(category);
       }
+      instances.pairs.add(pair);
+      instances.features.add(feats);
+    }
 
+    // classify this sentence while the instances of the next one are extracted
+    if(!this.isTraining() && !instances.features.isEmpty()) {
+      instances.predictions = ScoringClassifier.submitAllWithScores(this.classifier, instances.features);
     }
+    return instances;
   }
 
   /**
@@ -127,11 +256,11 @@ public class EventEventTokenBasedAnnotator extends CleartkAnnotator<String> {
    * @return
    */
   protected String getRelationCategory(
-      Map<List<Annotation>, BinaryTextRelation> relationLookup,
+      AnnotationPairIndex<BinaryTextRelation> relationLookup,
       IdentifiedAnnotation arg1,
       IdentifiedAnnotation arg2) {
 
-    BinaryTextRelation relation = relationLookup.get(Arrays.asList(arg1, arg2));
+    BinaryTextRelation relation = relationLookup.get(arg1, arg2);
     String category = null;
     if (relation != null) {
       if (arg2.getBegin() < arg1.getBegin()) {
@@ -140,7 +269,7 @@ public class EventEventTokenBasedAnnotator extends CleartkAnnotator<String> {
         category = relation.getCategory();
       }
     } else {
-      relation = relationLookup.get(Arrays.asList(arg2, arg1));
+      relation = relationLookup.get(arg2, arg1);
       if (relation != null) {
         if(arg2.getBegin() < arg1.getBegin()){
           category = relation.getCategory();
@@ -153,13 +282,13 @@ public class EventEventTokenBasedAnnotator extends CleartkAnnotator<String> {
     return category;
   }
 
-  protected String getRelationCategory2(Map<List<Annotation>, BinaryTextRelation> relationLookup,
+  protected String getRelationCategory2(AnnotationPairIndex<BinaryTextRelation> relationLookup,
       IdentifiedAnnotation arg1,
       IdentifiedAnnotation arg2) {
     
     // gold view representation (i.e. only contains relations)
-    BinaryTextRelation arg1ContainsArg2 = relationLookup.get(Arrays.asList(arg1, arg2));
-    BinaryTextRelation arg2ContainsArg1 = relationLookup.get(Arrays.asList(arg2, arg1));
+    BinaryTextRelation arg1ContainsArg2 = relationLookup.get(arg1, arg2);
+    BinaryTextRelation arg2ContainsArg1 = relationLookup.get(arg2, arg1);
 
     // now translate to position dependent representation (i.e. contains and contains-1)
     if(arg1ContainsArg2 != null) {
@@ -199,28 +328,19 @@ public class EventEventTokenBasedAnnotator extends CleartkAnnotator<String> {
     relation.addToIndexes();
   }
 
-  private static List<IdentifiedAnnotationPair> getCandidateRelationArgumentPairs(JCas jCas, Sentence sentence) {
+  /**
+   * The candidate pairs of one sentence and what was made of them.
+   */
+  private static class SentenceInstances {
+    final Sentence sentence;
+    List<EventMention> events;
+    final List<IdentifiedAnnotationPair> pairs = new ArrayList<>();
+    final List<List<Feature>> features = new ArrayList<>();
+    final List<String> categories = new ArrayList<>();
+    CompletableFuture<List<ScoredOutcome<String>>> predictions = null;
 
-    List<IdentifiedAnnotationPair> pairs = Lists.newArrayList();
-    List<EventMention> events = new ArrayList<>(JCasUtil.selectCovered(jCas, EventMention.class, sentence));
-    // filter events
-    List<EventMention> realEvents = Lists.newArrayList();
-    for( EventMention event : events){
-      if(event.getClass().equals(EventMention.class)){
-        realEvents.add(event);
-      }
+    SentenceInstances(Sentence sentence) {
+      this.sentence = sentence;
     }
-    events = realEvents;
-
-    int eventNum = events.size();
-    for (int i = 0; i < eventNum-1; i++) {
-      for(int j = i+1; j < eventNum; j++) {
-        EventMention eventA = events.get(i);
-        EventMention eventB = events.get(j);
-        pairs.add(new IdentifiedAnnotationPair(eventA, eventB));
-      }
-    }
-
-    return pairs;
   }
 }
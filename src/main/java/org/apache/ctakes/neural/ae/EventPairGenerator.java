@@ -0,0 +1,189 @@
+package org.apache.ctakes.neural.ae;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.ctakes.temporal.ae.TemporalRelationExtractorAnnotator.IdentifiedAnnotationPair;
+import org.apache.ctakes.typesystem.type.textsem.EventMention;
+import org.apache.ctakes.typesystem.type.textspan.Sentence;
+import org.apache.uima.jcas.tcas.Annotation;
+
+/**
+ * Pairs up the plain events of a sentence (not their subtypes), each with every event after
+ * it. Long list-like sentences make thousands of such pairs, so the pairs can be bounded: by
+ * the number of tokens between the two events, and by a number of pairs per sentence, of
+ * which the closest ones are kept. Without bounds, every pair is made. Both arguments are
+ * always plain events, so there are no argument types left to prune pairs by.
+ */
+public class EventPairGenerator implements CandidatePairGenerator {
+
+  public static final int UNBOUNDED = -1;
+
+  private final int maxTokenDistance;
+  private final int maxPairsPerSentence;
+
+  public EventPairGenerator() {
+    this(UNBOUNDED, UNBOUNDED);
+  }
+
+  /**
+   * @param maxTokenDistance the most tokens there may be between the events of a pair, or
+   * {@link #UNBOUNDED}
+   * @param maxPairsPerSentence the most pairs to make of one sentence, or {@link #UNBOUNDED}
+   */
+  public EventPairGenerator(int maxTokenDistance, int maxPairsPerSentence) {
+    this.maxTokenDistance = maxTokenDistance;
+    this.maxPairsPerSentence = maxPairsPerSentence;
+  }
+
+  /**
+   * @return a generator like {@link #EventPairGenerator(int, int)}, with the distance bound
+   * tightened to keep just <code>coverage</code> of the gold pairs counted in
+   * <code>pairDistanceFile</code> (see {@link PairDistanceStatistics}), if there is one
+   */
+  public static EventPairGenerator create(int maxTokenDistance, int maxPairsPerSentence,
+      File pairDistanceFile, double coverage) throws IOException {
+    if(pairDistanceFile != null) {
+      int covering = PairDistanceStatistics.read(pairDistanceFile).getDistanceCovering(coverage);
+      if(maxTokenDistance == UNBOUNDED || (covering != UNBOUNDED && covering < maxTokenDistance)) {
+        maxTokenDistance = covering;
+      }
+    }
+    return new EventPairGenerator(maxTokenDistance, maxPairsPerSentence);
+  }
+
+  public int getMaxTokenDistance() {
+    return this.maxTokenDistance;
+  }
+
+  public int getMaxPairsPerSentence() {
+    return this.maxPairsPerSentence;
+  }
+
+  @Override
+  public List<IdentifiedAnnotationPair> getCandidatePairs(SentenceTokenIndex index, Sentence sentence,
+      List<EventMention> events) {
+    events = getPlainEvents(events);
+    int eventNum = events.size();
+    List<IdentifiedAnnotationPair> pairs = new ArrayList<>();
+    if(this.maxTokenDistance == UNBOUNDED && this.maxPairsPerSentence == UNBOUNDED) {
+      for(int i = 0; i < eventNum-1; i++) {
+        for(int j = i+1; j < eventNum; j++) {
+          pairs.add(new IdentifiedAnnotationPair(events.get(i), events.get(j)));
+        }
+      }
+      return pairs;
+    }
+
+    TokenDistances distances = index.getTokenDistances(sentence);
+    final List<Integer> pairDistances = new ArrayList<>();
+    for(int i = 0; i < eventNum-1; i++) {
+      for(int j = i+1; j < eventNum; j++) {
+        int distance = distances.between(events.get(i), events.get(j));
+        if(this.maxTokenDistance == UNBOUNDED || distance <= this.maxTokenDistance) {
+          pairs.add(new IdentifiedAnnotationPair(events.get(i), events.get(j)));
+          pairDistances.add(distance);
+        }
+      }
+    }
+    if(this.maxPairsPerSentence == UNBOUNDED || pairs.size() <= this.maxPairsPerSentence) {
+      return pairs;
+    }
+
+    // keep the closest pairs, and of those at the same distance the first ones, in their order
+    List<Integer> order = new ArrayList<>(pairs.size());
+    for(int i = 0; i < pairs.size(); i++) {
+      order.add(i);
+    }
+    Collections.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        int byDistance = Integer.compare(pairDistances.get(a), pairDistances.get(b));
+        return byDistance != 0 ? byDistance : Integer.compare(a, b);
+      }
+    });
+    List<Integer> kept = new ArrayList<>(order.subList(0, this.maxPairsPerSentence));
+    Collections.sort(kept);
+    List<IdentifiedAnnotationPair> closest = new ArrayList<>(kept.size());
+    for(int i : kept) {
+      closest.add(pairs.get(i));
+    }
+    return closest;
+  }
+
+  /**
+   * @return the events whose type is exactly {@link EventMention}, in the same order
+   */
+  public static List<EventMention> getPlainEvents(List<EventMention> events) {
+    List<EventMention> plainEvents = new ArrayList<>();
+    for(EventMention event : events) {
+      if(event.getClass().equals(EventMention.class)) {
+        plainEvents.add(event);
+      }
+    }
+    return plainEvents;
+  }
+
+  /**
+   * The number of tokens of a sentence between two annotations in it, counted the way
+   * {@link org.apache.uima.fit.util.JCasUtil#selectBetween} selects them: the tokens that begin
+   * at or after the end of the first annotation and end at or before the beginning of the
+   * second. The token offsets are those of a {@link SentenceTokenIndex}, so counting issues no
+   * selects on the CAS.
+   */
+  public static class TokenDistances {
+    private final int[] begins;
+    private final int[] ends;
+
+    /**
+     * @param begins the sorted begins of the tokens of the sentence, which are not copied
+     * @param ends their ends, sorted as well
+     */
+    TokenDistances(int[] begins, int[] ends) {
+      this.begins = begins;
+      this.ends = ends;
+    }
+
+    /**
+     * @return the number of tokens between <code>arg1</code> and <code>arg2</code>, in
+     * either order; 0 if they overlap
+     */
+    public int between(Annotation arg1, Annotation arg2) {
+      Annotation left = arg1.getEnd() > arg2.getBegin() ? arg2 : arg1;
+      Annotation right = left == arg1 ? arg2 : arg1;
+      return Math.max(0, countEndingBy(right.getBegin()) - firstBeginningAt(left.getEnd()));
+    }
+
+    private int countEndingBy(int offset) {
+      int low = 0;
+      int high = this.ends.length;
+      while(low < high) {
+        int mid = (low + high) >>> 1;
+        if(this.ends[mid] <= offset) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    private int firstBeginningAt(int offset) {
+      int low = 0;
+      int high = this.begins.length;
+      while(low < high) {
+        int mid = (low + high) >>> 1;
+        if(this.begins[mid] < offset) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+  }
+}
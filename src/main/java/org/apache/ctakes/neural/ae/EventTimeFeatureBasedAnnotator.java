@@ -1,18 +1,20 @@
 package org.apache.ctakes.neural.ae;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
+import org.apache.ctakes.neural.keras.AsyncBatchClassifier;
+import org.apache.ctakes.neural.keras.ScoredOutcome;
+import org.apache.ctakes.neural.keras.ScoringClassifier;
+import org.apache.ctakes.neural.keras.SharedClassifierRegistry;
 import org.apache.ctakes.temporal.ae.TemporalRelationExtractorAnnotator.IdentifiedAnnotationPair;
 import org.apache.ctakes.temporal.ae.feature.CheckSpecialWordRelationExtractor;
 import org.apache.ctakes.temporal.ae.feature.ConjunctionRelationFeaturesExtractor;
 import org.apache.ctakes.temporal.ae.feature.DependencyPathFeaturesExtractor;
 import org.apache.ctakes.temporal.ae.feature.EventArgumentPropertyExtractor;
 import org.apache.ctakes.temporal.ae.feature.NearestFlagFeatureExtractor;
-import org.apache.ctakes.temporal.ae.feature.TemporalAttributeFeatureExtractor;
 import org.apache.ctakes.temporal.ae.feature.UnexpandedTokenFeaturesExtractor;
 import org.apache.ctakes.typesystem.type.relation.BinaryTextRelation;
 import org.apache.ctakes.typesystem.type.relation.RelationArgument;
@@ -21,10 +23,12 @@ import org.apache.ctakes.typesystem.type.textsem.EventMention;
 import org.apache.ctakes.typesystem.type.textsem.IdentifiedAnnotation;
 import org.apache.ctakes.typesystem.type.textsem.TimeMention;
 import org.apache.ctakes.typesystem.type.textspan.Sentence;
+import org.apache.uima.UimaContext;
 import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
 import org.apache.uima.fit.util.JCasUtil;
 import org.apache.uima.jcas.JCas;
 import org.apache.uima.jcas.tcas.Annotation;
+import org.apache.uima.resource.ResourceInitializationException;
 import org.cleartk.ml.CleartkAnnotator;
 import org.cleartk.ml.Feature;
 import org.cleartk.ml.Instance;
@@ -36,42 +40,77 @@ public class EventTimeFeatureBasedAnnotator extends CleartkAnnotator<String> {
 
   public static final String NO_RELATION_CATEGORY = "none";
 
+  private UnexpandedTokenFeaturesExtractor fe1;
+  private NearestFlagFeatureExtractor fe2;
+  private DependencyPathFeaturesExtractor fe3;
+  // the features of a single argument are the same in every pair it is in:
+  private ArgumentFeaturesExtractor fe4;
+  private ConjunctionRelationFeaturesExtractor fe5;
+  private CheckSpecialWordRelationExtractor fe6;
+  private ArgumentFeaturesExtractor fe7;
+  private BinaryFeatureCache binaryFeatures;
+
   public EventTimeFeatureBasedAnnotator() {
   }
 
+  @Override
+  public void initialize(UimaContext context) throws ResourceInitializationException {
+    super.initialize(context);
+    this.fe1 = new UnexpandedTokenFeaturesExtractor();
+    this.fe2 = new NearestFlagFeatureExtractor();
+    this.fe3 = new DependencyPathFeaturesExtractor();
+    this.fe4 = ArgumentFeaturesExtractor.separable(new EventArgumentPropertyExtractor());
+    this.fe5 = new ConjunctionRelationFeaturesExtractor();
+    this.fe6 = new CheckSpecialWordRelationExtractor();
+    this.fe7 = new TemporalAttributeArgumentExtractor();
+    this.binaryFeatures = new BinaryFeatureCache();
+  }
+
+  @Override
+  public void destroy() {
+    super.destroy();
+    try {
+      // hand a shared classifier back (or stop the classify processes we own):
+      SharedClassifierRegistry.release(this.classifier);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   @Override
   public void process(JCas jCas) throws AnalysisEngineProcessException {
 
     //get all gold relation lookup
-    Map<List<Annotation>, BinaryTextRelation> relationLookup;
-    relationLookup = new HashMap<>();
+    AnnotationPairIndex<BinaryTextRelation> relationLookup;
+    relationLookup = new AnnotationPairIndex<>();
     if(this.isTraining()) {
-      relationLookup = new HashMap<>();
+      relationLookup = new AnnotationPairIndex<>();
       for(BinaryTextRelation relation : JCasUtil.select(jCas, BinaryTextRelation.class)) {
         Annotation arg1 = relation.getArg1().getArgument();
         Annotation arg2 = relation.getArg2().getArgument();
-        // The key is a list of args so we can do bi-directional lookup
-        List<Annotation> key = Arrays.asList(arg1, arg2);
-        if(relationLookup.containsKey(key)){
-          String reln = relationLookup.get(key).getCategory();
+        // The key is the ordered pair of args so we can do bi-directional lookup
+        if(relationLookup.containsKey(arg1, arg2)){
+          String reln = relationLookup.get(arg1, arg2).getCategory();
           System.err.println("Error in: "+ ViewUriUtil.getURI(jCas).toString());
           System.err.println("Error! This attempted relation " + relation.getCategory() + " already has a relation " + reln + " at this span: " + arg1.getCoveredText() + " -- " + arg2.getCoveredText());
         } else{
-          relationLookup.put(key, relation);
+          relationLookup.put(arg1, arg2, relation);
         }
       }
     }
 
-    UnexpandedTokenFeaturesExtractor fe1 = new UnexpandedTokenFeaturesExtractor();
-    NearestFlagFeatureExtractor fe2 = new NearestFlagFeatureExtractor();
-    DependencyPathFeaturesExtractor fe3 = new DependencyPathFeaturesExtractor();
-    EventArgumentPropertyExtractor fe4 = new EventArgumentPropertyExtractor();
-    ConjunctionRelationFeaturesExtractor fe5 = new ConjunctionRelationFeaturesExtractor();
-    CheckSpecialWordRelationExtractor fe6 = new CheckSpecialWordRelationExtractor();
-    TemporalAttributeFeatureExtractor fe7 = new TemporalAttributeFeatureExtractor();
+    // the per-argument features of the previous document are of no use any more
+    this.fe4.clear();
+    this.fe7.clear();
     
+    // during classification, each sentence is handed to the classifier as soon as its instances
+    // are extracted, and the predictions are collected once the whole document is submitted
+    List<IdentifiedAnnotationPair> pairsToClassify = new ArrayList<>();
+    List<CompletableFuture<List<ScoredOutcome<String>>>> predictions = new ArrayList<>();
+
     // go over sentences, extracting event-time relation instances
     for(Sentence sentence : JCasUtil.select(jCas, Sentence.class)) {
+      List<List<Feature>> instancesToClassify = new ArrayList<>();
       // collect all relevant relation arguments from the sentence
       List<IdentifiedAnnotationPair> candidatePairs =
           getCandidateRelationArgumentPairs(jCas, sentence);
@@ -83,13 +122,13 @@ public class EventTimeFeatureBasedAnnotator extends CleartkAnnotator<String> {
 
         List<Feature> allCleartkFeatures = new ArrayList<>();
         
-        List<Feature> f1 = fe1.extract(jCas, arg1, arg2);
-        List<Feature> f2 = fe2.extract(jCas, arg1, arg2);
-        List<Feature> f3 = fe3.extract(jCas, arg1, arg2);
-        List<Feature> f4 = fe4.extract(jCas, arg1, arg2);
-        List<Feature> f5 = fe5.extract(jCas, arg1, arg2);
-        List<Feature> f6 = fe6.extract(jCas, arg1, arg2);
-        List<Feature> f7 = fe7.extract(jCas, arg1, arg2);
+        List<Feature> f1 = this.fe1.extract(jCas, arg1, arg2);
+        List<Feature> f2 = this.fe2.extract(jCas, arg1, arg2);
+        List<Feature> f3 = this.fe3.extract(jCas, arg1, arg2);
+        List<Feature> f4 = this.fe4.extract(jCas, arg1, arg2);
+        List<Feature> f5 = this.fe5.extract(jCas, arg1, arg2);
+        List<Feature> f6 = this.fe6.extract(jCas, arg1, arg2);
+        List<Feature> f7 = this.fe7.extract(jCas, arg1, arg2);
         
         if (f1 != null) allCleartkFeatures.addAll(f1);
         if (f2 != null) allCleartkFeatures.addAll(f2);
@@ -99,14 +138,7 @@ public class EventTimeFeatureBasedAnnotator extends CleartkAnnotator<String> {
         if (f6 != null) allCleartkFeatures.addAll(f6);
         if (f7 != null) allCleartkFeatures.addAll(f7);
         
-        List<Feature> allBinaryFeatures = new ArrayList<>();
-        for(Feature feature : allCleartkFeatures) {
-          if(feature.getName() != null) {
-            String featureName = feature.getName().replaceAll("[\r\n]", " ");
-            String featureValue = feature.getValue().toString().replaceAll("[\r\n]", " ");
-            allBinaryFeatures.add(new Feature(featureName + "_" + featureValue));
-          }
-        }
+        List<Feature> allBinaryFeatures = this.binaryFeatures.toBinaryFeatures(allCleartkFeatures);
 
         // during training, feed the features to the data writer
         if(this.isTraining()) {
@@ -119,34 +151,49 @@ public class EventTimeFeatureBasedAnnotator extends CleartkAnnotator<String> {
           this.dataWriter.write(new Instance<>(category, allBinaryFeatures));
         }
 
-        // during classification feed the features to the classifier and create annotations
+        // during classification collect the features for the batch
         else {
-          String predictedCategory = this.classifier.classify(allBinaryFeatures);
-
-          // add a relation annotation if a true relation was predicted
-          if(predictedCategory != null && !predictedCategory.equals(NO_RELATION_CATEGORY)) {
-
-            // if we predict an inverted relation, reverse the order of the arguments
-            if(predictedCategory.endsWith("-1")) {
-              predictedCategory = predictedCategory.substring(0, predictedCategory.length() - 2);
-              if(arg1 instanceof TimeMention){
-                IdentifiedAnnotation temp = arg1;
-                arg1 = arg2;
-                arg2 = temp;
-              }
-            } else {
-              if(arg1 instanceof EventMention){
-                IdentifiedAnnotation temp = arg1;
-                arg1 = arg2;
-                arg2 = temp;
-              }
-            }
+          pairsToClassify.add(pair);
+          instancesToClassify.add(allBinaryFeatures);
+        }
+      }
+
+      // classify this sentence while the instances of the next one are extracted
+      if(!this.isTraining() && !instancesToClassify.isEmpty()) {
+        predictions.add(ScoringClassifier.submitAllWithScores(this.classifier, instancesToClassify));
+      }
+    }
+
+    if(!this.isTraining()) {
+      // collect the predictions for all pairs and create annotations
+      List<ScoredOutcome<String>> predictedOutcomes = AsyncBatchClassifier.collect(predictions);
+      for(int i = 0; i < pairsToClassify.size(); i++) {
+        IdentifiedAnnotation arg1 = pairsToClassify.get(i).getArg1();
+        IdentifiedAnnotation arg2 = pairsToClassify.get(i).getArg2();
+        String predictedCategory = predictedOutcomes.get(i).getOutcome();
 
-            createRelation(jCas, arg1, arg2, predictedCategory.toUpperCase(), 0.0);
+        // add a relation annotation if a true relation was predicted
+        if(predictedCategory != null && !predictedCategory.equals(NO_RELATION_CATEGORY)) {
+
+          // if we predict an inverted relation, reverse the order of the arguments
+          if(predictedCategory.endsWith("-1")) {
+            predictedCategory = predictedCategory.substring(0, predictedCategory.length() - 2);
+            if(arg1 instanceof TimeMention){
+              IdentifiedAnnotation temp = arg1;
+              arg1 = arg2;
+              arg2 = temp;
+            }
+          } else {
+            if(arg1 instanceof EventMention){
+              IdentifiedAnnotation temp = arg1;
+              arg1 = arg2;
+              arg2 = temp;
+            }
           }
+
+          createRelation(jCas, arg1, arg2, predictedCategory.toUpperCase(), predictedOutcomes.get(i).getConfidence());
         }
       }
-
     }
   }
   /** Dima's way of getting lables
@@ -155,10 +202,10 @@ public class EventTimeFeatureBasedAnnotator extends CleartkAnnotator<String> {
    * @param arg2
    * @return
    */
-  protected String getRelationCategory(Map<List<Annotation>, BinaryTextRelation> relationLookup,
+  protected String getRelationCategory(AnnotationPairIndex<BinaryTextRelation> relationLookup,
       IdentifiedAnnotation arg1,
       IdentifiedAnnotation arg2){
-    BinaryTextRelation relation = relationLookup.get(Arrays.asList(arg1, arg2));
+    BinaryTextRelation relation = relationLookup.get(arg1, arg2);
     String category = null;
     if (relation != null) {
       category = relation.getCategory();
@@ -166,7 +213,7 @@ public class EventTimeFeatureBasedAnnotator extends CleartkAnnotator<String> {
         category = category + "-1";
       }
     } else {
-      relation = relationLookup.get(Arrays.asList(arg2, arg1));
+      relation = relationLookup.get(arg2, arg1);
       if (relation != null) {
         category = relation.getCategory();
         if(arg2 instanceof EventMention){
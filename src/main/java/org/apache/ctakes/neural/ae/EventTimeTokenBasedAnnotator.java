@@ -1,13 +1,15 @@
 package org.apache.ctakes.neural.ae;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
+import org.apache.ctakes.neural.keras.AsyncBatchClassifier;
+import org.apache.ctakes.neural.keras.ScoredOutcome;
+import org.apache.ctakes.neural.keras.ScoringClassifier;
+import org.apache.ctakes.neural.keras.SharedClassifierRegistry;
 import org.apache.ctakes.temporal.ae.TemporalRelationExtractorAnnotator.IdentifiedAnnotationPair;
-import org.apache.ctakes.temporal.nn.data.ArgContextProvider;
 import org.apache.ctakes.typesystem.type.relation.BinaryTextRelation;
 import org.apache.ctakes.typesystem.type.relation.RelationArgument;
 import org.apache.ctakes.typesystem.type.relation.TemporalTextRelation;
@@ -15,11 +17,15 @@ import org.apache.ctakes.typesystem.type.textsem.EventMention;
 import org.apache.ctakes.typesystem.type.textsem.IdentifiedAnnotation;
 import org.apache.ctakes.typesystem.type.textsem.TimeMention;
 import org.apache.ctakes.typesystem.type.textspan.Sentence;
+import org.apache.uima.UimaContext;
 import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.fit.descriptor.ConfigurationParameter;
 import org.apache.uima.fit.util.JCasUtil;
 import org.apache.uima.jcas.JCas;
 import org.apache.uima.jcas.tcas.Annotation;
+import org.apache.uima.resource.ResourceInitializationException;
 import org.cleartk.ml.CleartkAnnotator;
+import org.cleartk.ml.CleartkProcessingException;
 import org.cleartk.ml.Feature;
 import org.cleartk.ml.Instance;
 import org.cleartk.util.ViewUriUtil;
@@ -30,111 +36,175 @@ public class EventTimeTokenBasedAnnotator extends CleartkAnnotator<String> {
 
   public static final String NO_RELATION_CATEGORY = "none";
 
+  public static final String PARAM_SENTENCE_THREADS = "SentenceThreads";
+  @ConfigurationParameter(name = PARAM_SENTENCE_THREADS, mandatory=false,
+      description = "the number of threads that extract and classify the instances of the sentences of a document; 1 does it on the calling thread")
+  private int sentenceThreads = 1;
+
+  private SentenceWorkers sentenceWorkers;
+
   public EventTimeTokenBasedAnnotator() {
   }
 
+  @Override
+  public void initialize(UimaContext context) throws ResourceInitializationException {
+    super.initialize(context);
+    this.sentenceWorkers = new SentenceWorkers(this.sentenceThreads);
+  }
+
+  @Override
+  public void destroy() {
+    super.destroy();
+    this.sentenceWorkers.shutdown();
+    try {
+      // hand a shared classifier back (or stop the classify processes we own):
+      SharedClassifierRegistry.release(this.classifier);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   @Override
   public void process(JCas jCas) throws AnalysisEngineProcessException {
 
     //get all gold relation lookup
-    Map<List<Annotation>, BinaryTextRelation> relationLookup;
-    relationLookup = new HashMap<>();
+    AnnotationPairIndex<BinaryTextRelation> relationLookup;
+    relationLookup = new AnnotationPairIndex<>();
     if(this.isTraining()) {
-      relationLookup = new HashMap<>();
+      relationLookup = new AnnotationPairIndex<>();
       for(BinaryTextRelation relation : JCasUtil.select(jCas, BinaryTextRelation.class)) {
         Annotation arg1 = relation.getArg1().getArgument();
         Annotation arg2 = relation.getArg2().getArgument();
-        // The key is a list of args so we can do bi-directional lookup
-        List<Annotation> key = Arrays.asList(arg1, arg2);
-        if(relationLookup.containsKey(key)){
-          String reln = relationLookup.get(key).getCategory();
+        // The key is the ordered pair of args so we can do bi-directional lookup
+        if(relationLookup.containsKey(arg1, arg2)){
+          String reln = relationLookup.get(arg1, arg2).getCategory();
           System.err.println("Error in: "+ ViewUriUtil.getURI(jCas).toString());
           System.err.println("Error! This attempted relation " + relation.getCategory() + " already has a relation " + reln + " at this span: " + arg1.getCoveredText() + " -- " + arg2.getCoveredText());
         } else{
-          relationLookup.put(key, relation);
+          relationLookup.put(arg1, arg2, relation);
         }
       }
     }
 
-    // go over sentences, extracting event-time relation instances
-    for(Sentence sentence : JCasUtil.select(jCas, Sentence.class)) {
-      // collect all relevant relation arguments from the sentence
-      List<IdentifiedAnnotationPair> candidatePairs =
-          getCandidateRelationArgumentPairs(jCas, sentence);
-
-      // walk through the pairs of annotations
-      for(IdentifiedAnnotationPair pair : candidatePairs) {
-        IdentifiedAnnotation arg1 = pair.getArg1();
-        IdentifiedAnnotation arg2 = pair.getArg2();
-
-        String context;
-        if(arg2.getBegin() < arg1.getBegin()) {
-          // ... time ... event ... scenario
-          context = ArgContextProvider.getTokenContext(jCas, sentence, arg2, "t", arg1, "e", 2);
-        } else {
-          // ... event ... time ... scenario
-          context = ArgContextProvider.getTokenContext(jCas, sentence, arg1, "e", arg2, "t", 2);
-        }
+    // the tokens, events and times of each sentence, so they are not selected again per pair
+    final SentenceTokenIndex index = new SentenceTokenIndex(jCas);
+    final AnnotationPairIndex<BinaryTextRelation> goldRelations = relationLookup;
 
-        // derive features based on context
-        List<Feature> features = new ArrayList<>();
-        String [] tokens = context.split(" ");
-        for(String token: tokens){
-          features.add(new Feature(token.toLowerCase()));
+    // go over sentences, extracting event-time relation instances; during classification, each
+    // sentence is handed to the classifier as soon as its instances are extracted, and the
+    // predictions are collected once the whole document is submitted
+    List<SentenceInstances> sentenceInstances = this.sentenceWorkers.run(JCasUtil.select(jCas, Sentence.class),
+        new SentenceWorkers.SentenceTask<SentenceInstances>() {
+      @Override
+      public SentenceInstances run(Sentence sentence) throws Exception {
+        return extractInstances(index, sentence, goldRelations);
+      }
+    });
+
+    // data is written and relations are made here, in sentence order, whichever thread extracted them
+    List<IdentifiedAnnotationPair> pairsToClassify = new ArrayList<>();
+    List<CompletableFuture<List<ScoredOutcome<String>>>> predictions = new ArrayList<>();
+    for(SentenceInstances instances : sentenceInstances) {
+      if(this.isTraining()) {
+        for(int i = 0; i < instances.features.size(); i++) {
+          this.dataWriter.write(new Instance<>(instances.categories.get(i), instances.features.get(i)));
         }
+      } else if(instances.predictions != null) {
+        pairsToClassify.addAll(instances.pairs);
+        predictions.add(instances.predictions);
+      }
+    }
+
+    if(!this.isTraining()) {
+      // collect the predictions for all pairs and create annotations
+      List<ScoredOutcome<String>> predictedOutcomes = AsyncBatchClassifier.collect(predictions);
+      for(int i = 0; i < pairsToClassify.size(); i++) {
+        IdentifiedAnnotation arg1 = pairsToClassify.get(i).getArg1();
+        IdentifiedAnnotation arg2 = pairsToClassify.get(i).getArg2();
+        String predictedCategory = predictedOutcomes.get(i).getOutcome();
 
-        // during training, feed the features to the data writer
-        if(this.isTraining()) {
-          String category = getRelationCategory(relationLookup, arg1, arg2);
-          if(category == null) {
-            category = NO_RELATION_CATEGORY;
-          } else{
-            category = category.toLowerCase();
+        // add a relation annotation if a true relation was predicted
+        if(predictedCategory != null && !predictedCategory.equals(NO_RELATION_CATEGORY)) {
+
+          // if we predict an inverted relation, reverse the order of the arguments
+          if(predictedCategory.endsWith("-1")) {
+            predictedCategory = predictedCategory.substring(0, predictedCategory.length() - 2);
+            if(arg1 instanceof TimeMention){
+              IdentifiedAnnotation temp = arg1;
+              arg1 = arg2;
+              arg2 = temp;
+            }
+          } else {
+            if(arg1 instanceof EventMention){
+              IdentifiedAnnotation temp = arg1;
+              arg1 = arg2;
+              arg2 = temp;
+            }
           }
-          this.dataWriter.write(new Instance<>(category, features));
+
+          createRelation(jCas, arg1, arg2, predictedCategory.toUpperCase(), predictedOutcomes.get(i).getConfidence());
         }
+      }
+    }
+  }
+  
+  /**
+   * The instances of the candidate pairs of one sentence, with their categories during training
+   * and their classification submitted otherwise. Only reads the CAS.
+   */
+  private SentenceInstances extractInstances(SentenceTokenIndex index, Sentence sentence,
+      AnnotationPairIndex<BinaryTextRelation> relationLookup) throws CleartkProcessingException {
+    SentenceInstances instances = new SentenceInstances();
+    // collect all relevant relation arguments from the sentence
+    List<IdentifiedAnnotationPair> candidatePairs =
+        getCandidateRelationArgumentPairs(index.getEvents(sentence), index.getTimes(sentence));
 
-        // during classification feed the features to the classifier and create annotations
-        else {
-          String predictedCategory = this.classifier.classify(features);
-
-          // add a relation annotation if a true relation was predicted
-          if(predictedCategory != null && !predictedCategory.equals(NO_RELATION_CATEGORY)) {
-
-            // if we predict an inverted relation, reverse the order of the arguments
-            if(predictedCategory.endsWith("-1")) {
-              predictedCategory = predictedCategory.substring(0, predictedCategory.length() - 2);
-              if(arg1 instanceof TimeMention){
-                IdentifiedAnnotation temp = arg1;
-                arg1 = arg2;
-                arg2 = temp;
-              }
-            } else {
-              if(arg1 instanceof EventMention){
-                IdentifiedAnnotation temp = arg1;
-                arg1 = arg2;
-                arg2 = temp;
-              }
-            }
+    // walk through the pairs of annotations
+    for(IdentifiedAnnotationPair pair : candidatePairs) {
+      IdentifiedAnnotation arg1 = pair.getArg1();
+      IdentifiedAnnotation arg2 = pair.getArg2();
 
-            createRelation(jCas, arg1, arg2, predictedCategory.toUpperCase(), 0.0);
-          }
+      // derive features based on context
+      List<Feature> features;
+      if(arg2.getBegin() < arg1.getBegin()) {
+        // ... time ... event ... scenario
+        features = index.getTokenContextFeatures(sentence, arg2, "t", arg1, "e", 2);
+      } else {
+        // ... event ... time ... scenario
+        features = index.getTokenContextFeatures(sentence, arg1, "e", arg2, "t", 2);
+      }
+
+      // during training, label the features for the data writer
+      if(this.isTraining()) {
+        String category = getRelationCategory(relationLookup, arg1, arg2);
+        if(category == null) {
+          category = NO_RELATION_CATEGORY;
+        } else{
+          category = category.toLowerCase();
         }
+        instances.categories.add(category);
       }
+      instances.pairs.add(pair);
+      instances.features.add(features);
+    }
 
+    // classify this sentence while the instances of the next one are extracted
+    if(!this.isTraining() && !instances.features.isEmpty()) {
+      instances.predictions = ScoringClassifier.submitAllWithScores(this.classifier, instances.features);
     }
+    return instances;
   }
-  
+
   /** Dima's way of getting lables
    * @param relationLookup
    * @param arg1
    * @param arg2
    * @return
    */
-  protected String getRelationCategory(Map<List<Annotation>, BinaryTextRelation> relationLookup,
+  protected String getRelationCategory(AnnotationPairIndex<BinaryTextRelation> relationLookup,
       IdentifiedAnnotation arg1,
       IdentifiedAnnotation arg2){
-    BinaryTextRelation relation = relationLookup.get(Arrays.asList(arg1, arg2));
+    BinaryTextRelation relation = relationLookup.get(arg1, arg2);
     String category = null;
     if (relation != null) {
       category = relation.getCategory();
@@ -142,7 +212,7 @@ public class EventTimeTokenBasedAnnotator extends CleartkAnnotator<String> {
         category = category + "-1";
       }
     } else {
-      relation = relationLookup.get(Arrays.asList(arg2, arg1));
+      relation = relationLookup.get(arg2, arg1);
       if (relation != null) {
         category = relation.getCategory();
         if(arg2 instanceof EventMention){
@@ -173,15 +243,32 @@ public class EventTimeTokenBasedAnnotator extends CleartkAnnotator<String> {
   }
 
   public List<IdentifiedAnnotationPair> getCandidateRelationArgumentPairs(JCas jCas, Annotation sentence) {
+    return getCandidateRelationArgumentPairs(
+        JCasUtil.selectCovered(jCas, EventMention.class, sentence),
+        JCasUtil.selectCovered(jCas, TimeMention.class, sentence));
+  }
+
+  private static List<IdentifiedAnnotationPair> getCandidateRelationArgumentPairs(
+      List<EventMention> events, List<TimeMention> times) {
     List<IdentifiedAnnotationPair> pairs = Lists.newArrayList();
-    for (EventMention event : JCasUtil.selectCovered(jCas, EventMention.class, sentence)) {
+    for (EventMention event : events) {
       // ignore subclasses like Procedure and Disease/Disorder
       if (event.getClass().equals(EventMention.class)) {
-        for (TimeMention time : JCasUtil.selectCovered(jCas, TimeMention.class, sentence)) {
+        for (TimeMention time : times) {
           pairs.add(new IdentifiedAnnotationPair(event, time));
         }
       }
     }
     return pairs;
   }
+
+  /**
+   * The candidate pairs of one sentence and what was made of them.
+   */
+  private static class SentenceInstances {
+    final List<IdentifiedAnnotationPair> pairs = new ArrayList<>();
+    final List<List<Feature>> features = new ArrayList<>();
+    final List<String> categories = new ArrayList<>();
+    CompletableFuture<List<ScoredOutcome<String>>> predictions = null;
+  }
 }
@@ -0,0 +1,188 @@
+package org.apache.ctakes.neural.ae;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.ctakes.temporal.ae.TemporalRelationExtractorAnnotator.IdentifiedAnnotationPair;
+import org.apache.ctakes.typesystem.type.relation.BinaryTextRelation;
+import org.apache.ctakes.typesystem.type.textsem.EventMention;
+import org.apache.uima.jcas.tcas.Annotation;
+
+/**
+ * The token distances of the gold event-event relations within sentences, and how many of
+ * those relations the candidate pairs miss. The distances are saved as lines of a distance
+ * and the number of gold pairs at that distance, so that a distance bound keeping a given
+ * share of the gold pairs can be chosen for the candidate pairs later.
+ */
+public class PairDistanceStatistics {
+
+  private final TreeMap<Integer, Integer> goldPairsByDistance = new TreeMap<>();
+  private int goldPairs = 0;
+  private int missedGoldPairs = 0;
+
+  /**
+   * @return <code>goldRelations</code> by their first argument, to hand to
+   * {@link #add(EventPairGenerator.TokenDistances, List, Map, List)} for every sentence of
+   * their document
+   */
+  public static Map<Annotation, List<BinaryTextRelation>> byFirstArgument(
+      Collection<BinaryTextRelation> goldRelations) {
+    Map<Annotation, List<BinaryTextRelation>> relations = new HashMap<>();
+    for(BinaryTextRelation relation : goldRelations) {
+      Annotation arg1 = relation.getArg1().getArgument();
+      List<BinaryTextRelation> ofArg1 = relations.get(arg1);
+      if(ofArg1 == null) {
+        ofArg1 = new ArrayList<>(2);
+        relations.put(arg1, ofArg1);
+      }
+      ofArg1.add(relation);
+    }
+    return relations;
+  }
+
+  /**
+   * Counts the gold relations between the plain events of a sentence, and those of them that
+   * are not among <code>candidatePairs</code> in either order. Only the relations of the
+   * events of the sentence are looked at.
+   *
+   * @param distances the token distances within the sentence
+   * @param events the events of the sentence
+   * @param goldRelations the gold relations of the document, see {@link #byFirstArgument}
+   */
+  public void add(EventPairGenerator.TokenDistances distances, List<EventMention> events,
+      Map<Annotation, List<BinaryTextRelation>> goldRelations, List<IdentifiedAnnotationPair> candidatePairs) {
+    List<EventMention> plainEvents = EventPairGenerator.getPlainEvents(events);
+    Set<EventMention> inSentence = null;
+    AnnotationPairIndex<IdentifiedAnnotationPair> candidates = null;
+    for(EventMention event : plainEvents) {
+      List<BinaryTextRelation> relations = goldRelations.get(event);
+      if(relations == null) {
+        continue;
+      }
+      for(BinaryTextRelation relation : relations) {
+        Annotation arg2 = relation.getArg2().getArgument();
+        if(inSentence == null) {
+          inSentence = new HashSet<>(plainEvents);
+        }
+        if(arg2 == event || !inSentence.contains(arg2)) {
+          continue;
+        }
+        add(distances.between(event, arg2), 1);
+        if(candidates == null) {
+          candidates = new AnnotationPairIndex<>(candidatePairs.size());
+          for(IdentifiedAnnotationPair pair : candidatePairs) {
+            candidates.put(pair.getArg1(), pair.getArg2(), pair);
+          }
+        }
+        if(!candidates.containsEither(event, arg2)) {
+          this.missedGoldPairs++;
+        }
+      }
+    }
+  }
+
+  private void add(int distance, int count) {
+    Integer before = this.goldPairsByDistance.get(distance);
+    this.goldPairsByDistance.put(distance, before == null ? count : before + count);
+    this.goldPairs += count;
+  }
+
+  public int getGoldPairs() {
+    return this.goldPairs;
+  }
+
+  /**
+   * @return the number of gold pairs that were not among the candidate pairs
+   */
+  public int getMissedGoldPairs() {
+    return this.missedGoldPairs;
+  }
+
+  /**
+   * @return the smallest token distance that at least <code>coverage</code> of the gold pairs
+   * are within, or {@link EventPairGenerator#UNBOUNDED} if there are no gold pairs
+   */
+  public int getDistanceCovering(double coverage) {
+    // a coverage of 0.99 of 100 pairs needs 99 of them, not 100 for the rounding of 0.99
+    double needed = Math.ceil(coverage * this.goldPairs - 1e-9);
+    int covered = 0;
+    for(Map.Entry<Integer, Integer> entry : this.goldPairsByDistance.entrySet()) {
+      covered += entry.getValue();
+      if(covered >= needed) {
+        return entry.getKey();
+      }
+    }
+    return EventPairGenerator.UNBOUNDED;
+  }
+
+  /**
+   * @return the coverage a float configuration parameter stands for: the double of its decimal
+   * value, so that 0.99f means 0.99 rather than 0.9900000095
+   */
+  public static double toCoverage(float coverage) {
+    return Double.parseDouble(Float.toString(coverage));
+  }
+
+  /**
+   * @return the share of the gold pairs that are more than <code>distance</code> tokens apart
+   */
+  public double getShareBeyond(int distance) {
+    if(this.goldPairs == 0) {
+      return 0;
+    }
+    int beyond = 0;
+    for(int count : this.goldPairsByDistance.tailMap(distance, false).values()) {
+      beyond += count;
+    }
+    return (double) beyond / this.goldPairs;
+  }
+
+  public void write(File file) throws IOException {
+    try(PrintWriter out = new PrintWriter(file)) {
+      for(Map.Entry<Integer, Integer> entry : this.goldPairsByDistance.entrySet()) {
+        out.println(entry.getKey() + "\t" + entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * @return the statistics of the gold pairs saved with {@link #write(File)}
+   */
+  public static PairDistanceStatistics read(File file) throws IOException {
+    PairDistanceStatistics statistics = new PairDistanceStatistics();
+    try(BufferedReader in = new BufferedReader(new FileReader(file))) {
+      String line;
+      while((line = in.readLine()) != null) {
+        if(line.trim().isEmpty()) {
+          continue;
+        }
+        String[] fields = line.trim().split("\t");
+        statistics.add(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]));
+      }
+    }
+    return statistics;
+  }
+
+  /**
+   * @return how many gold pairs the candidate pairs missed, and how many a distance bound
+   * keeping <code>coverage</code> of them would leave out
+   */
+  public String getReport(double coverage) {
+    int bound = getDistanceCovering(coverage);
+    return String.format("%d of %d gold event pairs (%.2f%%) are not among the candidate pairs;"
+        + " a bound of %d tokens between the events would leave out %.2f%% of them",
+        this.missedGoldPairs, this.goldPairs, this.goldPairs == 0 ? 0.0 : 100.0 * this.missedGoldPairs / this.goldPairs,
+        bound, 100.0 * getShareBeyond(bound));
+  }
+}
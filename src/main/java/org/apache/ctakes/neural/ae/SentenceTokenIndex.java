@@ -0,0 +1,267 @@
+package org.apache.ctakes.neural.ae;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.ctakes.temporal.nn.data.ArgContextProvider;
+import org.apache.ctakes.typesystem.type.syntax.BaseToken;
+import org.apache.ctakes.typesystem.type.textsem.EventMention;
+import org.apache.ctakes.typesystem.type.textsem.TimeMention;
+import org.apache.ctakes.typesystem.type.textspan.Sentence;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.jcas.tcas.Annotation;
+import org.cleartk.ml.Feature;
+
+/**
+ * The tokens, events and times of every sentence of a document, collected once per document.
+ * The index does not change after it is built, so it can be shared by threads. Token contexts
+ * are then cut out of the sentence's token offsets by binary search instead of selecting the
+ * tokens around each candidate pair again. The lowercased features of every token and mention
+ * are made once as well, and shared by all the contexts they appear in.
+ */
+public class SentenceTokenIndex {
+
+  private final Map<Sentence, SentenceTokens> tokensBySentence = new HashMap<>();
+  private final String text;
+  private final Map<Sentence, Collection<EventMention>> eventsBySentence;
+  private final Map<Sentence, Collection<TimeMention>> timesBySentence;
+  private final Map<Annotation, Feature[]> mentionFeatures = new HashMap<>();
+  private final Map<String, Feature[]> tagFeatures = new ConcurrentHashMap<>();
+  private final Feature empty = new Feature("");
+
+  public SentenceTokenIndex(JCas jCas) {
+    this.text = jCas.getDocumentText();
+    for(Map.Entry<Sentence, Collection<BaseToken>> entry : JCasUtil.indexCovered(jCas, Sentence.class, BaseToken.class).entrySet()) {
+      this.tokensBySentence.put(entry.getKey(), new SentenceTokens(entry.getValue(), this.text, this.empty));
+    }
+    this.eventsBySentence = JCasUtil.indexCovered(jCas, Sentence.class, EventMention.class);
+    this.timesBySentence = JCasUtil.indexCovered(jCas, Sentence.class, TimeMention.class);
+    for(Collection<EventMention> events : this.eventsBySentence.values()) {
+      for(EventMention event : events) {
+        this.mentionFeatures.put(event, toFeatures(event.getCoveredText(), this.empty));
+      }
+    }
+    for(Collection<TimeMention> times : this.timesBySentence.values()) {
+      for(TimeMention time : times) {
+        this.mentionFeatures.put(time, toFeatures(time.getCoveredText(), this.empty));
+      }
+    }
+  }
+
+  /**
+   * @return the events covered by <code>sentence</code> (subtypes included), in index order
+   */
+  public List<EventMention> getEvents(Sentence sentence) {
+    return asList(this.eventsBySentence.get(sentence));
+  }
+
+  /**
+   * @return the times covered by <code>sentence</code>, in index order
+   */
+  public List<TimeMention> getTimes(Sentence sentence) {
+    return asList(this.timesBySentence.get(sentence));
+  }
+
+  /**
+   * The features the token annotators make of {@link ArgContextProvider#getTokenContext}: up
+   * to <code>window</code> tokens of the sentence before <code>arg1</code>, the tagged
+   * arguments, the tokens between them and up to <code>window</code> tokens of the sentence
+   * after <code>arg2</code>, joined by spaces with line breaks turned into spaces, then split
+   * at every space like {@link String#split} does and each part lowercased. Both arguments
+   * have to be in <code>sentence</code>. Only the list is new; the features in it are shared
+   * with every other context of the document.
+   */
+  public List<Feature> getTokenContextFeatures(Sentence sentence, Annotation arg1, String tag1,
+      Annotation arg2, String tag2, int window) {
+    SentenceTokens tokens = getTokens(sentence);
+    Feature[] tags1 = getTagFeatures(tag1);
+    Feature[] tags2 = getTagFeatures(tag2);
+    int preceding = tokens.countEndingBy(arg1.getBegin());
+    int betweenFrom = tokens.betweenFrom(arg1, arg2);
+    int betweenTo = tokens.betweenTo(arg1, arg2);
+    int following = tokens.firstBeginningAt(arg2.getEnd());
+    int followingTo = Math.min(tokens.size(), following + window);
+    List<Feature> features = new ArrayList<>(2 * window + Math.max(0, betweenTo - betweenFrom) + 8);
+
+    tokens.addFeatures(features, Math.max(0, preceding - window), preceding);
+    features.add(tags1[0]);
+    addAll(features, getMentionFeatures(arg1));
+    features.add(tags1[1]);
+    tokens.addFeatures(features, betweenFrom, betweenTo);
+    features.add(tags2[0]);
+    addAll(features, getMentionFeatures(arg2));
+    features.add(tags2[1]);
+    tokens.addFeatures(features, following, followingTo);
+
+    // split drops the empty strings at the end:
+    while(features.get(features.size() - 1) == this.empty) {
+      features.remove(features.size() - 1);
+    }
+    return features;
+  }
+
+  /**
+   * @return the number of tokens between annotations of <code>sentence</code>, counted over the
+   * token offsets of this index
+   */
+  public EventPairGenerator.TokenDistances getTokenDistances(Sentence sentence) {
+    SentenceTokens tokens = getTokens(sentence);
+    return new EventPairGenerator.TokenDistances(tokens.begins, tokens.ends);
+  }
+
+  private SentenceTokens getTokens(Sentence sentence) {
+    SentenceTokens tokens = this.tokensBySentence.get(sentence);
+    return tokens == null ? new SentenceTokens(Collections.<BaseToken>emptyList(), this.text, this.empty) : tokens;
+  }
+
+  private Feature[] getMentionFeatures(Annotation mention) {
+    Feature[] features = this.mentionFeatures.get(mention);
+    return features == null ? toFeatures(mention.getCoveredText(), this.empty) : features;
+  }
+
+  /**
+   * @return the opening and closing tag features of <code>tag</code>
+   */
+  private Feature[] getTagFeatures(String tag) {
+    Feature[] features = this.tagFeatures.get(tag);
+    if(features == null) {
+      features = new Feature[]{
+          new Feature(("<" + tag + ">").toLowerCase()),
+          new Feature(("</" + tag + ">").toLowerCase())};
+      this.tagFeatures.put(tag, features);
+    }
+    return features;
+  }
+
+  /**
+   * @return a feature for each space-separated part of <code>text</code>, lowercased, empty
+   * parts included
+   */
+  private static Feature[] toFeatures(String text, Feature empty) {
+    String[] parts = replaceLineBreaks(text).toLowerCase().split(" ", -1);
+    Feature[] features = new Feature[parts.length];
+    for(int i = 0; i < parts.length; i++) {
+      features[i] = parts[i].isEmpty() ? empty : new Feature(parts[i]);
+    }
+    return features;
+  }
+
+  private static void addAll(List<Feature> features, Feature[] more) {
+    for(Feature feature : more) {
+      features.add(feature);
+    }
+  }
+
+  private static <T> List<T> asList(Collection<T> annotations) {
+    if(annotations == null) {
+      return Collections.emptyList();
+    }
+    return new ArrayList<>(annotations);
+  }
+
+  private static String replaceLineBreaks(String text) {
+    if(text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+      return text;
+    }
+    return text.replace('\n', ' ').replace('\r', ' ');
+  }
+
+  /**
+   * The offsets of the tokens of one sentence. Tokens do not overlap, so both the begins and
+   * the ends are sorted. The features of the tokens are only made, from the document text,
+   * once a context of the sentence needs them; a thread that finds them missing makes its
+   * own, equal ones.
+   */
+  private static class SentenceTokens {
+    private final int[] begins;
+    private final int[] ends;
+    private final String text;
+    private final Feature empty;
+    private volatile Feature[][] features = null;
+
+    SentenceTokens(Collection<BaseToken> tokens, String text, Feature empty) {
+      this.begins = new int[tokens.size()];
+      this.ends = new int[tokens.size()];
+      this.text = text;
+      this.empty = empty;
+      int i = 0;
+      for(BaseToken token : tokens) {
+        this.begins[i] = token.getBegin();
+        this.ends[i] = token.getEnd();
+        i++;
+      }
+    }
+
+    int size() {
+      return this.begins.length;
+    }
+
+    /**
+     * @return the number of tokens that end at or before <code>offset</code>
+     */
+    int countEndingBy(int offset) {
+      int low = 0;
+      int high = this.ends.length;
+      while(low < high) {
+        int mid = (low + high) >>> 1;
+        if(this.ends[mid] <= offset) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    /**
+     * @return the index of the first token that begins at or after <code>offset</code>
+     */
+    int firstBeginningAt(int offset) {
+      int low = 0;
+      int high = this.begins.length;
+      while(low < high) {
+        int mid = (low + high) >>> 1;
+        if(this.begins[mid] < offset) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    /**
+     * @return the first token between the arguments, whichever comes first
+     */
+    int betweenFrom(Annotation arg1, Annotation arg2) {
+      return firstBeginningAt(arg1.getEnd() > arg2.getBegin() ? arg2.getEnd() : arg1.getEnd());
+    }
+
+    /**
+     * @return the end of the tokens between the arguments, whichever comes first
+     */
+    int betweenTo(Annotation arg1, Annotation arg2) {
+      return countEndingBy(arg1.getEnd() > arg2.getBegin() ? arg1.getBegin() : arg2.getBegin());
+    }
+
+    void addFeatures(List<Feature> features, int from, int to) {
+      Feature[][] tokenFeatures = this.features;
+      if(tokenFeatures == null) {
+        tokenFeatures = new Feature[this.begins.length][];
+        for(int i = 0; i < this.begins.length; i++) {
+          tokenFeatures[i] = toFeatures(this.text.substring(this.begins[i], this.ends[i]), this.empty);
+        }
+        this.features = tokenFeatures;
+      }
+      for(int i = from; i < to; i++) {
+        addAll(features, tokenFeatures[i]);
+      }
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package org.apache.ctakes.neural.ae;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.ctakes.typesystem.type.textspan.Sentence;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+
+/**
+ * Runs a task per sentence of a document and hands back the results in sentence order. With
+ * one thread the tasks run one after the other on the calling thread; with more, they run side
+ * by side on worker threads, so the tasks must only read the CAS and leave anything that
+ * writes (the data writer, new annotations) to the caller, which gets the results in the same
+ * order either way.
+ */
+public class SentenceWorkers {
+
+  public interface SentenceTask<T> {
+    public T run(Sentence sentence) throws Exception;
+  }
+
+  private final ExecutorService workers;
+
+  /**
+   * @param threads the number of worker threads; 1 or less runs the tasks on the calling thread
+   */
+  public SentenceWorkers(int threads) {
+    if(threads > 1) {
+      this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable body) {
+          Thread thread = new Thread(body, "sentence-worker");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    } else {
+      this.workers = null;
+    }
+  }
+
+  /**
+   * @return the result of <code>task</code> for each of <code>sentences</code>, in their order
+   */
+  public <T> List<T> run(Collection<Sentence> sentences, final SentenceTask<T> task)
+      throws AnalysisEngineProcessException {
+    List<T> results = new ArrayList<>(sentences.size());
+    if(this.workers == null) {
+      for(Sentence sentence : sentences) {
+        try {
+          results.add(task.run(sentence));
+        } catch (AnalysisEngineProcessException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new AnalysisEngineProcessException(e);
+        }
+      }
+      return results;
+    }
+
+    List<Future<T>> futures = new ArrayList<>(sentences.size());
+    for(final Sentence sentence : sentences) {
+      futures.add(this.workers.submit(new Callable<T>() {
+        @Override
+        public T call() throws Exception {
+          return task.run(sentence);
+        }
+      }));
+    }
+    try {
+      for(Future<T> future : futures) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AnalysisEngineProcessException(e);
+    } catch (ExecutionException e) {
+      if(e.getCause() instanceof AnalysisEngineProcessException) {
+        throw (AnalysisEngineProcessException) e.getCause();
+      }
+      throw new AnalysisEngineProcessException(e.getCause());
+    } finally {
+      // after a failure, the tasks of the rest of the document are not needed
+      for(Future<T> future : futures) {
+        future.cancel(true);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Stops the worker threads.
+   */
+  public void shutdown() {
+    if(this.workers != null) {
+      this.workers.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package org.apache.ctakes.neural.ae;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.ctakes.temporal.ae.feature.TemporalAttributeFeatureExtractor;
+import org.apache.ctakes.typesystem.type.textsem.EventMention;
+import org.apache.ctakes.typesystem.type.textsem.IdentifiedAnnotation;
+import org.apache.ctakes.typesystem.type.textsem.TimeMention;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.JCas;
+import org.cleartk.ml.Feature;
+
+/**
+ * The features of {@link TemporalAttributeFeatureExtractor}, split by argument: the
+ * contextual modality of the event and the class of the time, which is called
+ * <code>Time-Class-</code> if the time is the second argument and <code>Timex-Class-</code>
+ * if it is the first. Pairs that are not one event and one time get no features.
+ */
+public class TemporalAttributeArgumentExtractor extends ArgumentFeaturesExtractor {
+
+  @Override
+  protected boolean applies(IdentifiedAnnotation arg1, IdentifiedAnnotation arg2) {
+    return (arg1 instanceof EventMention && arg2 instanceof TimeMention)
+        || (arg1 instanceof TimeMention && arg2 instanceof EventMention);
+  }
+
+  @Override
+  protected List<Feature> extractArg1(JCas jCas, IdentifiedAnnotation arg1) {
+    if(arg1 instanceof TimeMention) {
+      return timeClass("Timex-Class-", (TimeMention) arg1);
+    }
+    return modality(jCas, arg1);
+  }
+
+  @Override
+  protected List<Feature> extractArg2(JCas jCas, IdentifiedAnnotation arg2) {
+    if(arg2 instanceof TimeMention) {
+      return timeClass("Time-Class-", (TimeMention) arg2);
+    }
+    return modality(jCas, arg2);
+  }
+
+  private static List<Feature> timeClass(String name, TimeMention time) {
+    List<Feature> features = new ArrayList<>();
+    features.add(new Feature(name, time.getTimeClass()));
+    return features;
+  }
+
+  /**
+   * The modality of the first event covering <code>event</code>, as the original extractor
+   * looks it up.
+   */
+  private static List<Feature> modality(JCas jCas, IdentifiedAnnotation event) {
+    List<Feature> features = new ArrayList<>();
+    EventMention covering = JCasUtil.selectCovering(jCas, EventMention.class, event.getBegin(), event.getEnd()).get(0);
+    if(covering != null && covering.getEvent() != null
+        && covering.getEvent().getProperties().getContextualModality() != null) {
+      features.add(new Feature("Event-Modality-", covering.getEvent().getProperties().getContextualModality()));
+    }
+    return features;
+  }
+}
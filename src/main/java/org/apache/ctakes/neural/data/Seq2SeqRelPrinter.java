@@ -24,12 +24,10 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
+import org.apache.ctakes.neural.ae.AnnotationPairIndex;
 import org.apache.ctakes.temporal.duration.Utils;
 import org.apache.ctakes.temporal.eval.CommandLine;
 import org.apache.ctakes.temporal.eval.THYMEData;
@@ -157,29 +155,29 @@ public class Seq2SeqRelPrinter {
       }
 
       // can't iterate over binary text relations in a sentence, so need a lookup
-      Map<List<Annotation>, BinaryTextRelation> relationLookup = new HashMap<>();
+      AnnotationPairIndex<BinaryTextRelation> relationLookup = new AnnotationPairIndex<>();
       if(isTraining) {
         for(BinaryTextRelation relation : JCasUtil.select(goldView, TemporalTextRelation.class)) {
           Annotation arg1 = relation.getArg1().getArgument();
           Annotation arg2 = relation.getArg2().getArgument();
 
-          if(relationLookup.get(Arrays.asList(arg1, arg2)) != null) {
+          if(relationLookup.get(arg1, arg2) != null) {
             // there is already a relation between arg1 and arg2
             // only store if it is 'contains' relation 
             if(relation.getCategory().equals("CONTAINS")) {
-              relationLookup.put(Arrays.asList(arg1, arg2), relation);
+              relationLookup.put(arg1, arg2, relation);
             } else {
               System.out.println("skipping relation: " + arg1.getCoveredText() + " ... " + arg2.getCoveredText());
             }
           } else {
-            relationLookup.put(Arrays.asList(arg1, arg2), relation);
+            relationLookup.put(arg1, arg2, relation);
           }
         }
       } else {
         for(BinaryTextRelation relation : JCasUtil.select(goldView, TemporalTextRelation.class)) {
           Annotation arg1 = relation.getArg1().getArgument();
           Annotation arg2 = relation.getArg2().getArgument();
-          relationLookup.put(Arrays.asList(arg1, arg2), relation);
+          relationLookup.put(arg1, arg2, relation);
         }
       }
 
@@ -198,8 +196,8 @@ public class Seq2SeqRelPrinter {
 
         for(EventMention event : events) {
           for(TimeMention time : times) {
-            BinaryTextRelation timeEventRelation = relationLookup.get(Arrays.asList(time, event));
-            BinaryTextRelation eventTimeRelation = relationLookup.get(Arrays.asList(event, time));
+            BinaryTextRelation timeEventRelation = relationLookup.get(time, event);
+            BinaryTextRelation eventTimeRelation = relationLookup.get(event, time);
 
             if(timeEventRelation != null) {
               if(timeEventRelation.getCategory().equals("CONTAINS")) {
@@ -20,11 +20,9 @@ package org.apache.ctakes.neural.data;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
+import org.apache.ctakes.neural.ae.AnnotationPairIndex;
 import org.apache.ctakes.relationextractor.data.analysis.Utils;
 import org.apache.ctakes.typesystem.type.relation.BinaryTextRelation;
 import org.apache.ctakes.typesystem.type.textspan.Sentence;
@@ -126,11 +124,11 @@ public class SharpRelationViewer {
       
       // can't iterate over binary text relations in a sentence, so need
       // a lookup from pair of annotations to binary text relation
-      Map<List<Annotation>, BinaryTextRelation> relationLookup = new HashMap<>();
+      AnnotationPairIndex<BinaryTextRelation> relationLookup = new AnnotationPairIndex<>();
       for(BinaryTextRelation relation : JCasUtil.select(goldView, BinaryTextRelation.class)) {
         Annotation arg1 = relation.getArg1().getArgument();
         Annotation arg2 = relation.getArg2().getArgument();
-        relationLookup.put(Arrays.asList(arg1, arg2), relation);
+        relationLookup.put(arg1, arg2, relation);
       }
  
       File noteFile = new File(ViewUriUtil.getURI(jCas).toString());
@@ -144,7 +142,7 @@ public class SharpRelationViewer {
             if(annot1 == annot2) {
               continue;
             }
-            BinaryTextRelation relation = relationLookup.get(Arrays.asList(annot1, annot2));
+            BinaryTextRelation relation = relationLookup.get(annot1, annot2);
             if(relation != null) {
               if(relationType.equals("all") || relation.getCategory().equals(relationType)) {
                 String text;
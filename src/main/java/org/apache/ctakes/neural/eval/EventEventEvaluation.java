@@ -26,16 +26,16 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.ctakes.neural.ae.AnnotationPairIndex;
 import org.apache.ctakes.neural.ae.EventEventFeatureBasedAnnotator;
 import org.apache.ctakes.neural.ae.EventEventTokenBasedAnnotator;
 import org.apache.ctakes.neural.keras.KerasStringOutcomeDataWriter;
 import org.apache.ctakes.neural.keras.ScriptStringFeatureDataWriter;
+import org.apache.ctakes.neural.keras.SharedJarClassifierFactory;
 import org.apache.ctakes.relationextractor.eval.RelationExtractorEvaluation.HashableArguments;
 import org.apache.ctakes.temporal.ae.baselines.RecallBaselineEventTimeRelationAnnotator;
 import org.apache.ctakes.temporal.eval.EvaluationOfEventEventThymeRelations.RemoveCrossSentenceRelations;
@@ -77,10 +77,8 @@ import org.cleartk.ml.tksvmlight.model.CompositeKernel.ComboOperator;
 import org.cleartk.util.ViewUriUtil;
 
 import com.google.common.base.Function;
-import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.lexicalscope.jewel.cli.CliFactory;
 import com.lexicalscope.jewel.cli.Option;
@@ -111,6 +109,18 @@ EvaluationOfTemporalRelations_ImplBase{
 
     @Option
     public boolean getSkipWrite();
+
+    @Option(defaultToNull=true)
+    public Float getPrefilterThreshold();
+
+    @Option(defaultToNull=true)
+    public Integer getMaxTokenDistance();
+
+    @Option(defaultToNull=true)
+    public Integer getMaxPairsPerSentence();
+
+    @Option(defaultToNull=true)
+    public Float getPairDistanceCoverage();
   }
 
   //  defaultParams = new ParameterSettings(DEFAULT_BOTH_DIRECTIONS, DEFAULT_DOWNSAMPLE, "tk",
@@ -191,6 +201,10 @@ EvaluationOfTemporalRelations_ImplBase{
       //do closure on system, but not on gold, to calculate recall
       evaluation.skipTrain = options.getSkipTrain();
       evaluation.skipWrite = options.getSkipWrite();
+      evaluation.trainPrefilter = options.getPrefilterThreshold() != null;
+      evaluation.maxTokenDistance = options.getMaxTokenDistance();
+      evaluation.maxPairsPerSentence = options.getMaxPairsPerSentence();
+      evaluation.pairDistanceCoverage = options.getPairDistanceCoverage();
       if(evaluation.skipTrain && options.getTest()){
         evaluation.prepareXMIsFor(testing);
       }else{
@@ -215,6 +229,20 @@ EvaluationOfTemporalRelations_ImplBase{
       System.err.println("Gold relations #: "+ goldRelationCount);
       System.err.println("# of gold relations whose arguments are close: "+ closeGoldRelationCount);
 
+      if(options.getPrefilterThreshold() != null){
+        // test the same models again, with the pre-filter in front of the classifier
+        evaluation.skipTrain = true;
+        evaluation.prefilterThreshold = options.getPrefilterThreshold();
+        AnnotationStatistics<String> prefilterStats = evaluation.testOnTrain ?
+            evaluation.trainAndTest(training, training) : evaluation.trainAndTest(training, testing);
+        System.err.println("With the pre-filter at " + evaluation.prefilterThreshold + ":");
+        System.err.println(prefilterStats);
+        System.err.println(String.format("Pre-filter changes precision by %+.4f, recall by %+.4f and F1 by %+.4f",
+            prefilterStats.precision() - params.stats.precision(),
+            prefilterStats.recall() - params.stats.recall(),
+            prefilterStats.f1() - params.stats.f1()));
+      }
+
       if(options.getUseTmp()){
         // won't work because it's not empty. should we be concerned with this or is it responsibility of 
         // person invoking the tmp flag?
@@ -232,6 +260,13 @@ EvaluationOfTemporalRelations_ImplBase{
   protected boolean skipTrain=false;
   public boolean skipWrite = false;
   protected boolean testOnTrain=false;
+  // with --prefilterThreshold the pre-filter is trained too, but only tested once the threshold is set
+  protected Float prefilterThreshold = null;
+  protected boolean trainPrefilter = false;
+  // bounds of the candidate event pairs; null for the annotator's default
+  protected Integer maxTokenDistance = null;
+  protected Integer maxPairsPerSentence = null;
+  protected Float pairDistanceCoverage = null;
 
   public EventEventEvaluation(
       File baseDirectory,
@@ -294,22 +329,31 @@ EvaluationOfTemporalRelations_ImplBase{
       
       aggregateBuilder.add(AnalysisEngineFactory.createEngineDescription(Overlap2Contains.class));
 
+      List<Object> parameters = Lists.<Object>newArrayList(
+          CleartkAnnotator.PARAM_IS_TRAINING,
+          true,
+          DefaultDataWriterFactory.PARAM_DATA_WRITER_CLASS_NAME,
+          KerasStringOutcomeDataWriter.class,
+          DirectoryDataWriterFactory.PARAM_OUTPUT_DIRECTORY,
+          new File(directory,"event-event"),
+          ScriptStringFeatureDataWriter.PARAM_SCRIPT_DIR,
+          "scripts/");
+      addCandidatePairParameters(parameters, directory, this.maxTokenDistance, this.maxPairsPerSentence, this.pairDistanceCoverage, true);
+      if(this.trainPrefilter){
+        parameters.add(EventEventFeatureBasedAnnotator.PARAM_PREFILTER_DIRECTORY);
+        parameters.add(new File(directory,"event-event-prefilter"));
+      }
       aggregateBuilder.add(
           AnalysisEngineFactory.createEngineDescription(EventEventFeatureBasedAnnotator.class,
-              CleartkAnnotator.PARAM_IS_TRAINING,
-              true,
-              DefaultDataWriterFactory.PARAM_DATA_WRITER_CLASS_NAME,
-              KerasStringOutcomeDataWriter.class,
-              DirectoryDataWriterFactory.PARAM_OUTPUT_DIRECTORY,
-              new File(directory,"event-event"),
-              ScriptStringFeatureDataWriter.PARAM_SCRIPT_DIR,
-              "scripts/"
-              ) );
+              parameters.toArray()) );
 
       SimplePipeline.runPipeline(collectionReader, aggregateBuilder.createAggregate());
     }
     
     JarClassifierBuilder.trainAndPackage(new File(directory,"event-event"));
+    if(this.trainPrefilter){
+      JarClassifierBuilder.trainAndPackage(new File(directory,"event-event-prefilter"));
+    }
   }
 
   @Override
@@ -347,12 +391,23 @@ EvaluationOfTemporalRelations_ImplBase{
 
     aggregateBuilder.add(AnalysisEngineFactory.createEngineDescription(RemoveRelations.class));
     
+    List<Object> parameters = Lists.<Object>newArrayList(
+        CleartkAnnotator.PARAM_IS_TRAINING,
+        false,
+        CleartkAnnotator.PARAM_CLASSIFIER_FACTORY_CLASS_NAME,
+        SharedJarClassifierFactory.class.getName(),
+        GenericJarClassifierFactory.PARAM_CLASSIFIER_JAR_PATH,
+        new File(new File(directory,"event-event"), "model.jar").getPath());
+    addCandidatePairParameters(parameters, directory, this.maxTokenDistance, this.maxPairsPerSentence, this.pairDistanceCoverage, false);
+    if(this.prefilterThreshold != null){
+      parameters.add(EventEventFeatureBasedAnnotator.PARAM_PREFILTER_JAR_PATH);
+      parameters.add(new File(new File(directory,"event-event-prefilter"), "model.jar").getPath());
+      parameters.add(EventEventFeatureBasedAnnotator.PARAM_PREFILTER_THRESHOLD);
+      parameters.add(this.prefilterThreshold);
+    }
     aggregateBuilder.add(this.baseline ? RecallBaselineEventTimeRelationAnnotator.createAnnotatorDescription(directory) :
       AnalysisEngineFactory.createEngineDescription(EventEventFeatureBasedAnnotator.class,
-          CleartkAnnotator.PARAM_IS_TRAINING,
-          false,
-          GenericJarClassifierFactory.PARAM_CLASSIFIER_JAR_PATH,
-          new File(new File(directory,"event-event"), "model.jar").getPath()));
+          parameters.toArray()));
 
     //count how many system predicted relations, their arguments are close to each other, without any other event in between
     aggregateBuilder.add(AnalysisEngineFactory.createEngineDescription(CountCloseRelation.class));
@@ -439,6 +494,32 @@ EvaluationOfTemporalRelations_ImplBase{
     return stats;
   }
 
+  /**
+   * Adds the bounds of the candidate pairs to the annotator parameters. Training always saves
+   * the distances of the gold pairs, and testing bounds the pairs by them if a coverage is set.
+   * Null bounds leave the annotator's defaults.
+   */
+  static void addCandidatePairParameters(List<Object> parameters, File directory, Integer maxTokenDistance,
+      Integer maxPairsPerSentence, Float pairDistanceCoverage, boolean training){
+    if(maxTokenDistance != null){
+      parameters.add(EventEventFeatureBasedAnnotator.PARAM_MAX_TOKEN_DISTANCE);
+      parameters.add(maxTokenDistance);
+    }
+    if(maxPairsPerSentence != null){
+      parameters.add(EventEventFeatureBasedAnnotator.PARAM_MAX_PAIRS_PER_SENTENCE);
+      parameters.add(maxPairsPerSentence);
+    }
+    File pairDistanceFile = new File(new File(directory,"event-event"), "pair-distances.txt");
+    if(training || pairDistanceCoverage != null){
+      parameters.add(EventEventFeatureBasedAnnotator.PARAM_PAIR_DISTANCE_FILE);
+      parameters.add(pairDistanceFile);
+    }
+    if(pairDistanceCoverage != null){
+      parameters.add(EventEventFeatureBasedAnnotator.PARAM_PAIR_DISTANCE_COVERAGE);
+      parameters.add(pairDistanceCoverage);
+    }
+  }
+
   public static class AddEEPotentialRelations extends org.apache.uima.fit.component.JCasAnnotator_ImplBase {
     public static final String PARAM_RELATION_VIEW = "RelationView";
     @ConfigurationParameter(name = PARAM_RELATION_VIEW,mandatory=false)
@@ -453,7 +534,8 @@ EvaluationOfTemporalRelations_ImplBase{
         throw new AnalysisEngineProcessException(e);
       }
 
-      Set<List<EventMention>> relationLookup = new HashSet<>();
+      // the relation each added relation was copied from
+      AnnotationPairIndex<TemporalTextRelation> relationLookup = new AnnotationPairIndex<>();
 
       Map<EventMention, Collection<EventMention>> coveringMap =
           JCasUtil.indexCovering(relationView, EventMention.class, EventMention.class);
@@ -464,23 +546,20 @@ EvaluationOfTemporalRelations_ImplBase{
           EventMention event1 = (EventMention) arg1;
           EventMention event2 = (EventMention) arg2;
           for(EventMention covEventA : coveringMap.get(event1)){
-            List<EventMention> key = Arrays.asList(covEventA, event2);
-            if(!relationLookup.contains(key) && !hasOverlap(covEventA,event2)){
-              relationLookup.add(key);
+            if(!relationLookup.containsKey(covEventA, event2) && !hasOverlap(covEventA,event2)){
+              relationLookup.put(covEventA, event2, relation);
               createRelation(relationView, covEventA, event2, relation.getCategory());
             }
             for(EventMention covEventB : coveringMap.get(event2)){
-              key = Arrays.asList(covEventA, covEventB);
-              if(!relationLookup.contains(key) && !hasOverlap(covEventA,covEventB)){
-                relationLookup.add(key);
+              if(!relationLookup.containsKey(covEventA, covEventB) && !hasOverlap(covEventA,covEventB)){
+                relationLookup.put(covEventA, covEventB, relation);
                 createRelation(relationView, covEventA, covEventB, relation.getCategory());
               }
             }
           }
           for(EventMention covEventB : coveringMap.get(event2)){
-            List<EventMention> key = Arrays.asList(event1, covEventB);
-            if(!relationLookup.contains(key) && !hasOverlap(event1,covEventB)){
-              relationLookup.add(key);
+            if(!relationLookup.containsKey(event1, covEventB) && !hasOverlap(event1,covEventB)){
+              relationLookup.put(event1, covEventB, relation);
               createRelation(relationView, event1, covEventB, relation.getCategory());
             }
           }
@@ -549,14 +628,13 @@ EvaluationOfTemporalRelations_ImplBase{
         }
       }
 
-      Map<List<Annotation>, TemporalTextRelation> relationLookup = new HashMap<>();
+      AnnotationPairIndex<TemporalTextRelation> relationLookup = new AnnotationPairIndex<>();
       for (TemporalTextRelation relation : Lists.newArrayList(JCasUtil.select(goldView, TemporalTextRelation.class))) {
         Annotation arg1 = relation.getArg1().getArgument();
         Annotation arg2 = relation.getArg2().getArgument();
-        // The key is a list of args so we can do bi-directional lookup
-        List<Annotation> key = Arrays.asList(arg1, arg2);
-        if(!relationLookup.containsKey(key)){
-          relationLookup.put(key, relation);
+        // The key is the ordered pair of args so we can do bi-directional lookup
+        if(!relationLookup.containsKey(arg1, arg2)){
+          relationLookup.put(arg1, arg2, relation);
         }
       }
 
@@ -612,16 +690,15 @@ EvaluationOfTemporalRelations_ImplBase{
       } catch (CASException e) {
         throw new AnalysisEngineProcessException(e);
       }
-      Map<List<Annotation>, BinaryTextRelation> relationLookup;
-      relationLookup = new HashMap<>();
+      AnnotationPairIndex<BinaryTextRelation> relationLookup;
+      relationLookup = new AnnotationPairIndex<>();
       for (BinaryTextRelation relation : Lists.newArrayList(JCasUtil.select(relationView, BinaryTextRelation.class))) {
         Annotation arg1 = relation.getArg1().getArgument();
         Annotation arg2 = relation.getArg2().getArgument();
         String relationType = relation.getCategory();
-        // The key is a list of args so we can do bi-directional lookup
-        List<Annotation> key = Arrays.asList(arg1, arg2);
-        if(relationLookup.containsKey(key)){
-          BinaryTextRelation storedRel = relationLookup.get(key);
+        // The key is the ordered pair of args so we can do bi-directional lookup
+        if(relationLookup.containsKey(arg1, arg2)){
+          BinaryTextRelation storedRel = relationLookup.get(arg1, arg2);
           String reln = storedRel.getCategory();
           if(!relationType.equals(reln)){//if there is category conflicts
             if(relationType.startsWith("OVERLAP") ){//current relation is too general, remove it
@@ -633,12 +710,12 @@ EvaluationOfTemporalRelations_ImplBase{
               storedRel.getArg1().removeFromIndexes();
               storedRel.getArg2().removeFromIndexes();
               storedRel.removeFromIndexes();
-              relationLookup.put(key, relation);
+              relationLookup.put(arg1, arg2, relation);
             }else if(relationType.startsWith("CONTAINS")){//contain is dominant
               storedRel.getArg1().removeFromIndexes();
               storedRel.getArg2().removeFromIndexes();
               storedRel.removeFromIndexes(jCas);
-              relationLookup.put(key, relation);
+              relationLookup.put(arg1, arg2, relation);
             }else if(reln.startsWith("CONTAINS")){
               relation.getArg1().removeFromIndexes();
               relation.getArg2().removeFromIndexes();
@@ -654,7 +731,7 @@ EvaluationOfTemporalRelations_ImplBase{
             relation.removeFromIndexes(jCas);
           }
         }else{//if the relation is new, then added it to lookup
-          relationLookup.put(key, relation);
+          relationLookup.put(arg1, arg2, relation);
         }
 
       }
@@ -667,17 +744,28 @@ EvaluationOfTemporalRelations_ImplBase{
     @Override
     public void process(JCas jCas) throws AnalysisEngineProcessException {
 
-      Multimap<List<Annotation>, BinaryTextRelation> annotationsToRelation = HashMultimap.create();
+      // the relations of each argument pair, in the same hash set HashMultimap.create() gives a key,
+      // so the duplicates below are removed exactly as before
+      AnnotationPairIndex<Set<BinaryTextRelation>> annotationsToRelation = new AnnotationPairIndex<>();
+      // the inferred relations depend on the order TLinkTypeArray2 gets the relations in, so they
+      // still go in the order of a hash map keyed by the argument lists; the lists are made once per
+      // pair, and every lookup goes through the index
+      Map<List<Annotation>, Set<BinaryTextRelation>> closureOrder = Maps.newHashMap();
       for (BinaryTextRelation relation : JCasUtil.select(jCas, BinaryTextRelation.class)){
         String relationType = relation.getCategory();
         if(validTemporalType(relationType)){
           Annotation arg1 = relation.getArg1().getArgument();
           Annotation arg2 = relation.getArg2().getArgument();
-          annotationsToRelation.put(Arrays.asList(arg1, arg2), relation);
+          Set<BinaryTextRelation> relations = annotationsToRelation.get(arg1, arg2);
+          if(relations == null){
+            relations = Sets.newHashSetWithExpectedSize(8);
+            annotationsToRelation.put(arg1, arg2, relations);
+            closureOrder.put(Arrays.asList(arg1, arg2), relations);
+          }
+          relations.add(relation);
         }
       }
-      for (List<Annotation> span: Lists.newArrayList(annotationsToRelation.keySet())){
-        Collection<BinaryTextRelation> relations = annotationsToRelation.get(span);
+      for (Set<BinaryTextRelation> relations: annotationsToRelation.values()){
         if(relations.size()>1){//if same span maps to multiple relations
           Set<String> types = Sets.newHashSet();
           for(BinaryTextRelation relation: relations){
@@ -685,7 +773,7 @@ EvaluationOfTemporalRelations_ImplBase{
           }
           if(types.size()>1){
             for(BinaryTextRelation relation: Lists.newArrayList(relations)){
-              annotationsToRelation.remove(span, relation);
+              relations.remove(relation);
               relation.getArg1().removeFromIndexes();
               relation.getArg2().removeFromIndexes();
               relation.removeFromIndexes();
@@ -693,7 +781,7 @@ EvaluationOfTemporalRelations_ImplBase{
           }else if(types.size()==1){
             for (int i =1; i< relations.size(); i++){
               BinaryTextRelation relation = (BinaryTextRelation) relations.toArray()[i];
-              annotationsToRelation.remove(span, relation);
+              relations.remove(relation);
               relation.getArg1().removeFromIndexes();
               relation.getArg2().removeFromIndexes();
               relation.removeFromIndexes();
@@ -702,7 +790,10 @@ EvaluationOfTemporalRelations_ImplBase{
         }
       }
 
-      ArrayList<BinaryTextRelation> temporalRelation = new ArrayList<>(annotationsToRelation.values());//new ArrayList<BinaryTextRelation>();
+      ArrayList<BinaryTextRelation> temporalRelation = new ArrayList<>();
+      for (Set<BinaryTextRelation> relations: closureOrder.values()){
+        temporalRelation.addAll(relations);
+      }
 
       if (!temporalRelation.isEmpty()){
         TLinkTypeArray2 relationArray = new TLinkTypeArray2(temporalRelation, new AnnotationIdCollection(temporalRelation));
@@ -716,8 +807,8 @@ EvaluationOfTemporalRelations_ImplBase{
             continue;
           }
           //check if the inferred relation new:
-          Collection<BinaryTextRelation> relations = annotationsToRelation.get(Arrays.asList(arg1.getArgument(), arg2.getArgument()));
-          if(relations.isEmpty()){ //if haven't seen this inferred relation before, then add this relation
+          Set<BinaryTextRelation> relations = annotationsToRelation.get(arg1.getArgument(), arg2.getArgument());
+          if(relations == null || relations.isEmpty()){ //if haven't seen this inferred relation before, then add this relation
             arg1.addToIndexes();
             arg2.addToIndexes();
             relation.addToIndexes();
@@ -0,0 +1,279 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ctakes.neural.eval;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.ctakes.neural.ae.EventEventFeatureBasedAnnotator;
+import org.apache.ctakes.neural.ae.EventTimeTokenBasedAnnotator;
+import org.apache.ctakes.neural.eval.EventTimeEvaluation.TempRelOptions;
+import org.apache.ctakes.neural.keras.KerasStringOutcomeDataWriter;
+import org.apache.ctakes.neural.keras.ScriptStringFeatureDataWriter;
+import org.apache.ctakes.neural.keras.ScriptStringOutcomeClassifierBuilder;
+import org.apache.ctakes.neural.keras.TrainingListener;
+import org.apache.ctakes.neural.keras.TrainingProgress;
+import org.apache.ctakes.temporal.eval.EvaluationOfEventTimeRelations.ParameterSettings;
+import org.apache.ctakes.temporal.eval.I2B2Data;
+import org.apache.ctakes.temporal.eval.THYMEData;
+import org.apache.ctakes.typesystem.type.relation.BinaryTextRelation;
+import org.apache.ctakes.typesystem.type.textsem.EventMention;
+import org.apache.ctakes.typesystem.type.textsem.TimeMention;
+import org.apache.uima.collection.CollectionReader;
+import org.apache.uima.fit.factory.AggregateBuilder;
+import org.apache.uima.fit.factory.AnalysisEngineFactory;
+import org.apache.uima.fit.pipeline.SimplePipeline;
+import org.cleartk.ml.CleartkAnnotator;
+import org.cleartk.ml.jar.DefaultDataWriterFactory;
+import org.cleartk.ml.jar.DirectoryDataWriterFactory;
+import org.cleartk.ml.jar.JarClassifierBuilder;
+
+import com.google.common.collect.Lists;
+import com.lexicalscope.jewel.cli.CliFactory;
+import com.lexicalscope.jewel.cli.Option;
+
+/**
+ * Trains the event-time and event-event models together: the corpus is preprocessed once,
+ * both training sets are written in the same pass, and the two training scripts then run
+ * side by side. The models end up where {@link EventTimeEvaluation} and
+ * {@link EventEventEvaluation} put them, so those can be run with --skip-train afterwards.
+ * Like an event-event evaluation it saves the distances of the gold event pairs for
+ * --pairDistanceCoverage and takes the same --maxTokenDistance and --maxPairsPerSentence
+ * bounds, which the evaluation should then be given as well; --trainPrefilter also trains
+ * the pre-filter that --prefilterThreshold tests.
+ *
+ * One pass can serve both models because each annotator looks up the gold label of a
+ * candidate pair by its arguments, so the event-event relations left in the CAS never match
+ * an event-time candidate and vice versa.
+ */
+public class EventRelationTraining extends EventTimeEvaluation {
+  static interface TrainingOptions extends TempRelOptions{
+    @Option
+    public boolean getTrainPrefilter();
+
+    @Option(defaultToNull=true)
+    public Integer getMaxTokenDistance();
+
+    @Option(defaultToNull=true)
+    public Integer getMaxPairsPerSentence();
+  }
+
+  // the event-event settings of EventEventEvaluation that change what training writes:
+  protected boolean trainPrefilter = false;
+  protected Integer maxTokenDistance = null;
+  protected Integer maxPairsPerSentence = null;
+
+  public static void main(String[] args) throws Exception {
+    TrainingOptions options = CliFactory.parseArguments(TrainingOptions.class, args);
+    List<Integer> trainItems = null;
+    List<Integer> devItems = null;
+
+    List<Integer> patientSets = options.getPatients().getList();
+    if(options.getXMLFormat() == XMLFormat.I2B2){
+      trainItems = I2B2Data.getTrainPatientSets(options.getXMLDirectory());
+      devItems = I2B2Data.getDevPatientSets(options.getXMLDirectory());
+    }else{
+      trainItems = THYMEData.getPatientSets(patientSets, options.getTrainRemainders().getList());
+      devItems = THYMEData.getPatientSets(patientSets, options.getDevRemainders().getList());
+    }
+    ParameterSettings params = allParams;
+
+    File workingDir = new File("target/eval/thyme/");
+    if(!workingDir.exists()) workingDir.mkdirs();
+    EventRelationTraining training = new EventRelationTraining(
+        workingDir,
+        options.getRawTextDirectory(),
+        options.getXMLDirectory(),
+        options.getXMLFormat(),
+        options.getSubcorpus(),
+        options.getXMIDirectory(),
+        options.getTreebankDirectory(),
+        options.getClosure(),
+        options.getPrintErrors(),
+        options.getPrintFormattedRelations(),
+        options.getBaseline(),
+        options.getUseGoldAttributes(),
+        options.getKernelParams(),
+        params);
+    training.skipWrite = options.getSkipWrite();
+    training.trainPrefilter = options.getTrainPrefilter();
+    training.maxTokenDistance = options.getMaxTokenDistance();
+    training.maxPairsPerSentence = options.getMaxPairsPerSentence();
+    training.prepareXMIsFor(patientSets);
+
+    List<Integer> items = trainItems;
+    if(options.getTest()){
+      items.addAll(devItems);
+    }
+    Collections.sort(items);
+
+    // same directory as Evaluation_ImplBase.trainAndTest uses:
+    File directory = new File(workingDir, "train_and_test");
+    directory.mkdirs();
+    training.train(training.getCollectionReader(items), directory);
+  }
+
+  public EventRelationTraining(
+      File baseDirectory,
+      File rawTextDirectory,
+      File xmlDirectory,
+      XMLFormat xmlFormat,
+      Subcorpus subcorpus,
+      File xmiDirectory,
+      File treebankDirectory,
+      boolean useClosure,
+      boolean printErrors,
+      boolean printRelations,
+      boolean baseline,
+      boolean useGoldAttributes,
+      String kernelParams,
+      ParameterSettings params){
+    super(
+        baseDirectory,
+        rawTextDirectory,
+        xmlDirectory,
+        xmlFormat,
+        subcorpus,
+        xmiDirectory,
+        treebankDirectory,
+        useClosure,
+        printErrors,
+        printRelations,
+        baseline,
+        useGoldAttributes,
+        kernelParams,
+        params);
+  }
+
+  @Override
+  protected void train(CollectionReader collectionReader, File directory) throws Exception {
+
+    if(this.skipTrain) return;
+
+    if(!this.skipWrite){
+      AggregateBuilder aggregateBuilder = this.getPreprocessorAggregateBuilder();
+      aggregateBuilder.add(CopyFromGold.getDescription(EventMention.class, TimeMention.class, BinaryTextRelation.class));
+      aggregateBuilder.add(AnalysisEngineFactory.createEngineDescription(RemoveCrossSentenceRelations.class));
+      if(!this.useGoldAttributes){
+        aggregateBuilder.add(AnalysisEngineFactory.createEngineDescription(RemoveGoldAttributes.class));
+      }
+      // both evaluations keep only CONTAINS; neither step looks at the argument types, so they
+      // can run before the relations are split by type:
+      aggregateBuilder.add(AnalysisEngineFactory.createEngineDescription(RemoveNonContainsRelations.class));
+      aggregateBuilder.add(AnalysisEngineFactory.createEngineDescription(Overlap2Contains.class));
+
+      aggregateBuilder.add(
+          AnalysisEngineFactory.createEngineDescription(EventTimeTokenBasedAnnotator.class,
+              CleartkAnnotator.PARAM_IS_TRAINING,
+              true,
+              DefaultDataWriterFactory.PARAM_DATA_WRITER_CLASS_NAME,
+              KerasStringOutcomeDataWriter.class,
+              DirectoryDataWriterFactory.PARAM_OUTPUT_DIRECTORY,
+              new File(directory,"event-time"),
+              ScriptStringFeatureDataWriter.PARAM_SCRIPT_DIR,
+              "scripts/"
+              ));
+      List<Object> parameters = Lists.<Object>newArrayList(
+          CleartkAnnotator.PARAM_IS_TRAINING,
+          true,
+          DefaultDataWriterFactory.PARAM_DATA_WRITER_CLASS_NAME,
+          KerasStringOutcomeDataWriter.class,
+          DirectoryDataWriterFactory.PARAM_OUTPUT_DIRECTORY,
+          new File(directory,"event-event"),
+          ScriptStringFeatureDataWriter.PARAM_SCRIPT_DIR,
+          "scripts/");
+      EventEventEvaluation.addCandidatePairParameters(parameters, directory, this.maxTokenDistance, this.maxPairsPerSentence, null, true);
+      if(this.trainPrefilter){
+        parameters.add(EventEventFeatureBasedAnnotator.PARAM_PREFILTER_DIRECTORY);
+        parameters.add(new File(directory,"event-event-prefilter"));
+      }
+      aggregateBuilder.add(
+          AnalysisEngineFactory.createEngineDescription(EventEventFeatureBasedAnnotator.class,
+              parameters.toArray()));
+
+      SimplePipeline.runPipeline(collectionReader, aggregateBuilder.createAggregate());
+    }
+
+    if(this.trainPrefilter){
+      trainAndPackageAll(new File(directory,"event-time"), new File(directory,"event-event"), new File(directory,"event-event-prefilter"));
+    }else{
+      trainAndPackageAll(new File(directory,"event-time"), new File(directory,"event-event"));
+    }
+  }
+
+  /**
+   * Trains and packages the models in <code>modelDirs</code> at the same time, each training
+   * script in its own process, and waits for all of them. The progress of each is printed
+   * with the name of its directory, since their output is interleaved.
+   */
+  static void trainAndPackageAll(File... modelDirs) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(modelDirs.length);
+    try{
+      List<Future<Void>> trainings = new ArrayList<>();
+      for(final File modelDir : modelDirs){
+        trainings.add(executor.submit(new Callable<Void>(){
+          @Override
+          public Void call() throws Exception {
+            TrainingListener printer = new TrainingListener(){
+              @Override
+              public void progress(TrainingProgress progress) {
+                System.out.println(modelDir.getName() + ": " + progress);
+              }
+              @Override
+              public void output(String line, boolean error) {
+                // already logged by the builder
+              }
+            };
+            ScriptStringOutcomeClassifierBuilder.addTrainingListener(modelDir, printer);
+            try{
+              JarClassifierBuilder.trainAndPackage(modelDir);
+            }finally{
+              ScriptStringOutcomeClassifierBuilder.removeTrainingListener(modelDir, printer);
+            }
+            return null;
+          }
+        }));
+      }
+      Exception failure = null;
+      for(int i = 0; i < modelDirs.length; i++){
+        try{
+          trainings.get(i).get();
+        }catch(ExecutionException e){
+          Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+          System.err.println("Training the model in " + modelDirs[i] + " failed: " + cause);
+          if(failure == null){
+            failure = cause;
+          }
+        }
+      }
+      if(failure != null){
+        throw failure;
+      }
+    }finally{
+      executor.shutdownNow();
+    }
+  }
+}
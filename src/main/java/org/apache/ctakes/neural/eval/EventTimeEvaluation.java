@@ -29,14 +29,15 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Deque;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.ctakes.neural.ae.AnnotationPairIndex;
 import org.apache.ctakes.neural.ae.EventTimeTokenBasedAnnotator;
 import org.apache.ctakes.neural.keras.KerasStringOutcomeDataWriter;
 import org.apache.ctakes.neural.keras.ScriptStringFeatureDataWriter;
+import org.apache.ctakes.neural.keras.SharedJarClassifierFactory;
 import org.apache.ctakes.relationextractor.eval.RelationExtractorEvaluation.HashableArguments;
 import org.apache.ctakes.temporal.ae.baselines.RecallBaselineEventTimeRelationAnnotator;
 import org.apache.ctakes.temporal.eval.EvaluationOfEventTimeRelations.ParameterSettings;
@@ -344,6 +345,8 @@ public class EventTimeEvaluation extends EvaluationOfTemporalRelations_ImplBase{
       AnalysisEngineFactory.createEngineDescription(EventTimeTokenBasedAnnotator.class,
           CleartkAnnotator.PARAM_IS_TRAINING,
           false,
+          CleartkAnnotator.PARAM_CLASSIFIER_FACTORY_CLASS_NAME,
+          SharedJarClassifierFactory.class.getName(),
           GenericJarClassifierFactory.PARAM_CLASSIFIER_JAR_PATH,
           new File(new File(directory,"event-time"), "model.jar").getPath()));
 
@@ -652,14 +655,13 @@ public class EventTimeEvaluation extends EvaluationOfTemporalRelations_ImplBase{
         }
       }
 
-      Map<List<Annotation>, TemporalTextRelation> relationLookup = new HashMap<>();
+      AnnotationPairIndex<TemporalTextRelation> relationLookup = new AnnotationPairIndex<>();
       for (TemporalTextRelation relation : Lists.newArrayList(JCasUtil.select(goldView, TemporalTextRelation.class))) {
         Annotation arg1 = relation.getArg1().getArgument();
         Annotation arg2 = relation.getArg2().getArgument();
-        // The key is a list of args so we can do bi-directional lookup
-        List<Annotation> key = Arrays.asList(arg1, arg2);
-        if(!relationLookup.containsKey(key)){
-          relationLookup.put(key, relation);
+        // The key is the ordered pair of args so we can do bi-directional lookup
+        if(!relationLookup.containsKey(arg1, arg2)){
+          relationLookup.put(arg1, arg2, relation);
         }
       }
 
@@ -845,16 +847,15 @@ public class EventTimeEvaluation extends EvaluationOfTemporalRelations_ImplBase{
       } catch (CASException e) {
         throw new AnalysisEngineProcessException(e);
       }
-      Map<List<Annotation>, BinaryTextRelation> relationLookup;
-      relationLookup = new HashMap<>();
+      AnnotationPairIndex<BinaryTextRelation> relationLookup;
+      relationLookup = new AnnotationPairIndex<>();
       for (BinaryTextRelation relation : Lists.newArrayList(JCasUtil.select(relationView, BinaryTextRelation.class))) {
         Annotation arg1 = relation.getArg1().getArgument();
         Annotation arg2 = relation.getArg2().getArgument();
         String relationType = relation.getCategory();
-        // The key is a list of args so we can do bi-directional lookup
-        List<Annotation> key = Arrays.asList(arg1, arg2);
-        if(relationLookup.containsKey(key)){
-          BinaryTextRelation storedRel = relationLookup.get(key);
+        // The key is the ordered pair of args so we can do bi-directional lookup
+        if(relationLookup.containsKey(arg1, arg2)){
+          BinaryTextRelation storedRel = relationLookup.get(arg1, arg2);
           String reln = storedRel.getCategory();
           if(!relationType.equals(reln)){//if there is category conflicts
             if(relationType.startsWith("OVERLAP") ){//current relation is too general, remove it
@@ -866,12 +867,12 @@ public class EventTimeEvaluation extends EvaluationOfTemporalRelations_ImplBase{
               storedRel.getArg1().removeFromIndexes();
               storedRel.getArg2().removeFromIndexes();
               storedRel.removeFromIndexes();
-              relationLookup.put(key, relation);
+              relationLookup.put(arg1, arg2, relation);
             }else if(relationType.startsWith("CONTAINS")){//contain is dominant
               storedRel.getArg1().removeFromIndexes();
               storedRel.getArg2().removeFromIndexes();
               storedRel.removeFromIndexes(jCas);
-              relationLookup.put(key, relation);
+              relationLookup.put(arg1, arg2, relation);
             }else if(reln.startsWith("CONTAINS")){
               relation.getArg1().removeFromIndexes();
               relation.getArg2().removeFromIndexes();
@@ -887,7 +888,7 @@ public class EventTimeEvaluation extends EvaluationOfTemporalRelations_ImplBase{
             relation.removeFromIndexes(jCas);
           }
         }else{//if the relation is new, then added it to lookup
-          relationLookup.put(key, relation);
+          relationLookup.put(arg1, arg2, relation);
         }
 
       }
@@ -900,17 +901,28 @@ public class EventTimeEvaluation extends EvaluationOfTemporalRelations_ImplBase{
     @Override
     public void process(JCas jCas) throws AnalysisEngineProcessException {
 
-      Multimap<List<Annotation>, BinaryTextRelation> annotationsToRelation = HashMultimap.create();
+      // the relations of each argument pair, in the same hash set HashMultimap.create() gives a key,
+      // so the duplicates below are removed exactly as before
+      AnnotationPairIndex<Set<BinaryTextRelation>> annotationsToRelation = new AnnotationPairIndex<>();
+      // the inferred relations depend on the order TLinkTypeArray2 gets the relations in, so they
+      // still go in the order of a hash map keyed by the argument lists; the lists are made once per
+      // pair, and every lookup goes through the index
+      Map<List<Annotation>, Set<BinaryTextRelation>> closureOrder = Maps.newHashMap();
       for (BinaryTextRelation relation : JCasUtil.select(jCas, BinaryTextRelation.class)){
         String relationType = relation.getCategory();
         if(validTemporalType(relationType)){
           Annotation arg1 = relation.getArg1().getArgument();
           Annotation arg2 = relation.getArg2().getArgument();
-          annotationsToRelation.put(Arrays.asList(arg1, arg2), relation);
+          Set<BinaryTextRelation> relations = annotationsToRelation.get(arg1, arg2);
+          if(relations == null){
+            relations = Sets.newHashSetWithExpectedSize(8);
+            annotationsToRelation.put(arg1, arg2, relations);
+            closureOrder.put(Arrays.asList(arg1, arg2), relations);
+          }
+          relations.add(relation);
         }
       }
-      for (List<Annotation> span: Lists.newArrayList(annotationsToRelation.keySet())){
-        Collection<BinaryTextRelation> relations = annotationsToRelation.get(span);
+      for (Set<BinaryTextRelation> relations: annotationsToRelation.values()){
         if(relations.size()>1){//if same span maps to multiple relations
           Set<String> types = Sets.newHashSet();
           for(BinaryTextRelation relation: relations){
@@ -918,7 +930,7 @@ public class EventTimeEvaluation extends EvaluationOfTemporalRelations_ImplBase{
           }
           if(types.size()>1){
             for(BinaryTextRelation relation: Lists.newArrayList(relations)){
-              annotationsToRelation.remove(span, relation);
+              relations.remove(relation);
               relation.getArg1().removeFromIndexes();
               relation.getArg2().removeFromIndexes();
               relation.removeFromIndexes();
@@ -926,7 +938,7 @@ public class EventTimeEvaluation extends EvaluationOfTemporalRelations_ImplBase{
           }else if(types.size()==1){
             for (int i =1; i< relations.size(); i++){
               BinaryTextRelation relation = (BinaryTextRelation) relations.toArray()[i];
-              annotationsToRelation.remove(span, relation);
+              relations.remove(relation);
               relation.getArg1().removeFromIndexes();
               relation.getArg2().removeFromIndexes();
               relation.removeFromIndexes();
@@ -935,7 +947,10 @@ public class EventTimeEvaluation extends EvaluationOfTemporalRelations_ImplBase{
         }
       }
 
-      ArrayList<BinaryTextRelation> temporalRelation = new ArrayList<>(annotationsToRelation.values());
+      ArrayList<BinaryTextRelation> temporalRelation = new ArrayList<>();
+      for (Set<BinaryTextRelation> relations: closureOrder.values()){
+        temporalRelation.addAll(relations);
+      }
 
       if (!temporalRelation.isEmpty()){
         TLinkTypeArray2 relationArray = new TLinkTypeArray2(temporalRelation, new AnnotationIdCollection(temporalRelation));
@@ -949,8 +964,8 @@ public class EventTimeEvaluation extends EvaluationOfTemporalRelations_ImplBase{
             continue;
           }
           //check if the inferred relation new:
-          Collection<BinaryTextRelation> relations = annotationsToRelation.get(Arrays.asList(arg1.getArgument(), arg2.getArgument()));
-          if(relations.isEmpty()){ //if haven't seen this inferred relation before, then add this relation
+          Set<BinaryTextRelation> relations = annotationsToRelation.get(arg1.getArgument(), arg2.getArgument());
+          if(relations == null || relations.isEmpty()){ //if haven't seen this inferred relation before, then add this relation
             arg1.addToIndexes();
             arg2.addToIndexes();
             relation.addToIndexes();
@@ -0,0 +1,70 @@
+package org.apache.ctakes.neural.keras;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.cleartk.ml.Classifier;
+import org.cleartk.ml.CleartkProcessingException;
+import org.cleartk.ml.Feature;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * A classifier that accepts instances without waiting for their outcomes, so that the
+ * caller can extract the features of the next instances while earlier ones are being
+ * classified.
+ */
+@Beta
+public interface AsyncBatchClassifier<OUTCOME_TYPE> extends BatchClassifier<OUTCOME_TYPE> {
+
+  /**
+   * @return a future completed with the outcome of the instance
+   */
+  public CompletableFuture<OUTCOME_TYPE> classifyAsync(List<Feature> features) throws CleartkProcessingException;
+
+  /**
+   * @return a future completed with one outcome per instance, in the same order as
+   *  <code>instances</code>
+   */
+  public CompletableFuture<List<OUTCOME_TYPE>> classifyBatchAsync(List<List<Feature>> instances) throws CleartkProcessingException;
+
+  /**
+   * Submits all instances to <code>classifier</code> without waiting if it is an
+   * {@link AsyncBatchClassifier}; other classifiers label them right away.
+   */
+  public static <T> CompletableFuture<List<T>> submitAll(Classifier<T> classifier, List<List<Feature>> instances)
+      throws CleartkProcessingException {
+    if(classifier instanceof AsyncBatchClassifier){
+      return ((AsyncBatchClassifier<T>) classifier).classifyBatchAsync(instances);
+    }
+    return CompletableFuture.completedFuture(BatchClassifier.classifyAll(classifier, instances));
+  }
+
+  /**
+   * Waits for the submitted batches and concatenates their outcomes in submission order.
+   */
+  public static <T> List<T> collect(List<CompletableFuture<List<T>>> futures)
+      throws CleartkProcessingException {
+    List<T> outcomes = new ArrayList<>();
+    for(CompletableFuture<List<T>> future : futures){
+      outcomes.addAll(await(future));
+    }
+    return outcomes;
+  }
+
+  /**
+   * Waits for <code>future</code>, reporting failures as {@link CleartkProcessingException}s.
+   */
+  public static <T> T await(CompletableFuture<T> future) throws CleartkProcessingException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CleartkProcessingException(e);
+    } catch (ExecutionException e) {
+      throw new CleartkProcessingException(e.getCause());
+    }
+  }
+}
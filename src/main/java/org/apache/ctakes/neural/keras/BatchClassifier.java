@@ -0,0 +1,41 @@
+package org.apache.ctakes.neural.keras;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cleartk.ml.Classifier;
+import org.cleartk.ml.CleartkProcessingException;
+import org.cleartk.ml.Feature;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * A classifier that can label many instances in a single call, so that backends with a
+ * per-call cost (e.g. a round-trip to an external process) pay it once per batch instead
+ * of once per instance.
+ */
+@Beta
+public interface BatchClassifier<OUTCOME_TYPE> extends Classifier<OUTCOME_TYPE> {
+
+  /**
+   * @param instances the feature lists of the instances to classify
+   * @return one outcome per instance, in the same order as <code>instances</code>
+   */
+  public List<OUTCOME_TYPE> classifyBatch(List<List<Feature>> instances) throws CleartkProcessingException;
+
+  /**
+   * Classifies all instances with <code>classifier</code>, in one call if it is a
+   * {@link BatchClassifier} and one instance at a time otherwise.
+   */
+  public static <T> List<T> classifyAll(Classifier<T> classifier, List<List<Feature>> instances)
+      throws CleartkProcessingException {
+    if(classifier instanceof BatchClassifier){
+      return ((BatchClassifier<T>) classifier).classifyBatch(instances);
+    }
+    List<T> outcomes = new ArrayList<>(instances.size());
+    for(List<Feature> features : instances){
+      outcomes.add(classifier.classify(features));
+    }
+    return outcomes;
+  }
+}
@@ -0,0 +1,294 @@
+package org.apache.ctakes.neural.keras;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.cleartk.ml.CleartkProcessingException;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * All the models packaged in one model directory (<code>model_0</code> up to
+ * <code>model_N</code>), run side by side on worker threads, one task per model and batch.
+ * Their predictions are combined by {@link #COMBINE_AVERAGE averaging} the class
+ * probabilities, or by a {@link #COMBINE_VOTE majority vote}; a vote returns as soon as
+ * every instance has a label more than half of the models agree on, without waiting for the
+ * remaining models. With {@link #COMBINE_SINGLE}, or a directory with a single model, only
+ * <code>model_0</code> runs, on the calling thread.
+ */
+@Beta
+public class KerasEnsemble implements Closeable {
+  /**
+   * Configuration parameter choosing how the models of an ensemble are combined:
+   * {@link #COMBINE_SINGLE}, {@link #COMBINE_AVERAGE} or {@link #COMBINE_VOTE}. Read by
+   * {@link KerasJvmStringOutcomeClassifier} and {@link ScriptStringOutcomeClassifier}.
+   */
+  public static final String PARAM_COMBINE = "KerasEnsembleCombine";
+  public static final String COMBINE_SINGLE = "single";
+  public static final String COMBINE_AVERAGE = "average";
+  public static final String COMBINE_VOTE = "vote";
+
+  private final List<KerasSequentialModel> models;
+  private boolean single = false;
+  private boolean vote = false;
+  private final ExecutorService workers;
+
+  public KerasEnsemble(List<KerasSequentialModel> models){
+    this.models = models;
+    if(models.size() > 1){
+      int threads = Math.min(models.size(), Runtime.getRuntime().availableProcessors());
+      this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+        @Override
+        public Thread newThread(Runnable body) {
+          Thread thread = new Thread(body, "keras-ensemble");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }else{
+      this.workers = null;
+    }
+  }
+
+  /**
+   * Loads every model in <code>modelDir</code>, {@link #COMBINE_AVERAGE averaged} until
+   * {@link #setCombine(String)} says otherwise.
+   */
+  public static KerasEnsemble load(File modelDir) throws IOException {
+    List<KerasSequentialModel> models = new ArrayList<>();
+    while(new File(modelDir, "model_" + models.size() + ".json").exists()){
+      int num = models.size();
+      KerasSequentialModel model = new KerasSequentialModel(new File(modelDir, "model_" + num + ".json"), new File(modelDir, "model_" + num + ".h5"));
+      if(num > 0 && model.getInputLength() != models.get(0).getInputLength()){
+        throw new IOException("Model " + num + " has input length " + model.getInputLength() + " but model 0 has " + models.get(0).getInputLength());
+      }
+      models.add(model);
+    }
+    if(models.isEmpty()){
+      throw new IOException("No model_0.json in " + modelDir);
+    }
+    return new KerasEnsemble(models);
+  }
+
+  /**
+   * @return the number of <code>model_N.json</code> files in <code>modelDir</code>
+   */
+  static int count(File modelDir){
+    int num = 0;
+    while(new File(modelDir, "model_" + num + ".json").exists()){
+      num++;
+    }
+    return num;
+  }
+
+  /**
+   * @param combine one of {@link #COMBINE_SINGLE}, {@link #COMBINE_AVERAGE} and
+   * {@link #COMBINE_VOTE}
+   */
+  public void setCombine(String combine){
+    checkCombine(combine);
+    this.single = combine.equals(COMBINE_SINGLE);
+    this.vote = combine.equals(COMBINE_VOTE);
+  }
+
+  static void checkCombine(String combine){
+    if(!combine.equals(COMBINE_SINGLE) && !combine.equals(COMBINE_AVERAGE) && !combine.equals(COMBINE_VOTE)){
+      throw new IllegalArgumentException("Unknown value of " + PARAM_COMBINE + ": " + combine);
+    }
+  }
+
+  public int size(){
+    return this.models.size();
+  }
+
+  public int getInputLength(){
+    return this.models.get(0).getInputLength();
+  }
+
+  /**
+   * @param rows the padded word indices of each instance
+   * @return the class id the ensemble gives each instance
+   */
+  public int[] predict(List<int[]> rows) throws CleartkProcessingException {
+    return predict(rows, null);
+  }
+
+  /**
+   * @param rows the padded word indices of each instance
+   * @param distributions if not null, receives for each instance the class probabilities
+   * averaged over the models that were waited for
+   * @return the class id the ensemble gives each instance
+   */
+  public int[] predict(final List<int[]> rows, float[][] distributions) throws CleartkProcessingException {
+    if(this.workers == null || this.single){
+      float[][] scores = score(this.models.get(0), rows);
+      if(distributions != null){
+        System.arraycopy(scores, 0, distributions, 0, scores.length);
+      }
+      return argmax(scores);
+    }
+
+    CompletionService<float[][]> completion = new ExecutorCompletionService<>(this.workers);
+    List<Future<float[][]>> tasks = new ArrayList<>();
+    for(final KerasSequentialModel model : this.models){
+      tasks.add(completion.submit(new Callable<float[][]>(){
+        @Override
+        public float[][] call() {
+          return score(model, rows);
+        }
+      }));
+    }
+
+    Tally tally = new Tally(this.models.size(), this.vote);
+    try{
+      while(!tally.add(completion.take().get())){
+        // wait for the next model
+      }
+    }catch(InterruptedException e){
+      Thread.currentThread().interrupt();
+      throw new CleartkProcessingException(e);
+    }catch(ExecutionException e){
+      throw new CleartkProcessingException(e.getCause());
+    }finally{
+      // a vote that is already decided does not need the remaining models:
+      for(Future<float[][]> task : tasks){
+        task.cancel(false);
+      }
+    }
+    return tally.classIds(distributions);
+  }
+
+  /**
+   * The scores of the models of an ensemble for one batch, added as the models finish.
+   */
+  static class Tally {
+    private final int models;
+    private final boolean vote;
+    private float[][] sums = null;
+    private int[][] votes = null;
+    private int done = 0;
+
+    Tally(int models, boolean vote){
+      this.models = models;
+      this.vote = vote;
+    }
+
+    /**
+     * @param scores the class probabilities one model gives each instance
+     * @return true once the models still to come cannot change the result
+     */
+    boolean add(float[][] scores){
+      this.done++;
+      if(this.sums == null){
+        this.sums = new float[scores.length][scores.length == 0 ? 0 : scores[0].length];
+        this.votes = new int[scores.length][this.sums.length == 0 ? 0 : this.sums[0].length];
+      }
+      for(int i = 0; i < scores.length; i++){
+        for(int j = 0; j < scores[i].length; j++){
+          this.sums[i][j] += scores[i][j];
+        }
+        this.votes[i][argmax(scores[i])]++;
+      }
+      return this.done == this.models || (this.vote && hasMajority());
+    }
+
+    int getNumInstances(){
+      return this.sums == null ? 0 : this.sums.length;
+    }
+
+    /**
+     * @param distributions if not null, receives for each instance the class probabilities
+     * averaged over the models added so far
+     * @return the class id of each instance
+     */
+    int[] classIds(float[][] distributions){
+      int[] classIds = new int[this.sums.length];
+      for(int i = 0; i < classIds.length; i++){
+        classIds[i] = this.vote ? winner(this.votes[i], this.sums[i]) : argmax(this.sums[i]);
+        if(distributions != null){
+          distributions[i] = new float[this.sums[i].length];
+          for(int j = 0; j < this.sums[i].length; j++){
+            distributions[i][j] = this.sums[i][j] / this.done;
+          }
+        }
+      }
+      return classIds;
+    }
+
+    /**
+     * @return true if every instance has a label with more than half of all the models' votes
+     */
+    private boolean hasMajority(){
+      for(int[] counts : this.votes){
+        if(2 * counts[argmax(counts)] <= this.models){
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Stops the worker threads.
+   */
+  @Override
+  public void close(){
+    if(this.workers != null){
+      this.workers.shutdownNow();
+    }
+  }
+
+  private static float[][] score(KerasSequentialModel model, List<int[]> rows){
+    float[][] scores = new float[rows.size()][];
+    for(int i = 0; i < scores.length; i++){
+      scores[i] = model.predict(rows.get(i));
+    }
+    return scores;
+  }
+
+  /**
+   * @return the label with the most votes, ties going to the higher summed probability
+   */
+  private static int winner(int[] counts, float[] sums){
+    int best = 0;
+    for(int i = 1; i < counts.length; i++){
+      if(counts[i] > counts[best] || (counts[i] == counts[best] && sums[i] > sums[best])) best = i;
+    }
+    return best;
+  }
+
+  private static int[] argmax(float[][] scores){
+    int[] best = new int[scores.length];
+    for(int i = 0; i < scores.length; i++){
+      best[i] = argmax(scores[i]);
+    }
+    return best;
+  }
+
+  private static int argmax(float[] scores){
+    int best = 0;
+    for(int i = 1; i < scores.length; i++){
+      if(scores[i] > scores[best]) best = i;
+    }
+    return best;
+  }
+
+  private static int argmax(int[] counts){
+    int best = 0;
+    for(int i = 1; i < counts.length; i++){
+      if(counts[i] > counts[best]) best = i;
+    }
+    return best;
+  }
+}
@@ -0,0 +1,126 @@
+package org.apache.ctakes.neural.keras;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.uima.UimaContext;
+import org.apache.uima.fit.descriptor.ConfigurationParameter;
+import org.apache.uima.fit.factory.initializable.Initializable;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.cleartk.ml.CleartkProcessingException;
+import org.cleartk.ml.Feature;
+import org.cleartk.ml.encoder.features.FeaturesEncoder;
+import org.cleartk.ml.encoder.outcome.OutcomeEncoder;
+import org.cleartk.ml.jar.Classifier_ImplBase;
+import org.cleartk.ml.util.featurevector.FeatureVector;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * Runs the models written by <code>ft_train.py</code> and the <code>cnn*_train.py</code>
+ * scripts inside the JVM instead of piping instances to a classify script. Reads the same
+ * artifacts the script does (the model architecture and weights plus the vocabulary, label
+ * and length tables exported as text next to the pickles) from the unpacked model
+ * directory, and reproduces the script's encoding: whitespace tokens, out of vocabulary tokens
+ * mapped to the index of <code>oov_word</code>, truncation to the training length and zero
+ * padding at the front. All packaged models are loaded and run as a {@link KerasEnsemble}.
+ */
+@Beta
+public class KerasJvmStringOutcomeClassifier extends Classifier_ImplBase<FeatureVector, String, Integer> implements ScoringClassifier<String>, Initializable, Closeable {
+  /**
+   * How the packaged models are combined, see {@link KerasEnsemble#PARAM_COMBINE}. They run
+   * on threads of their own, so the default averages all of them.
+   */
+  @ConfigurationParameter(name=KerasEnsemble.PARAM_COMBINE, mandatory=false)
+  public String combine = KerasEnsemble.COMBINE_AVERAGE;
+
+  private KerasEnsemble models = null;
+  private KerasModelTables tables = null;
+
+  public KerasJvmStringOutcomeClassifier(
+      FeaturesEncoder<FeatureVector> featuresEncoder,
+      OutcomeEncoder<String, Integer> outcomeEncoder,
+      File modelDir) throws IOException {
+    super(featuresEncoder, outcomeEncoder);
+
+    this.tables = new KerasModelTables(modelDir);
+    this.models = KerasEnsemble.load(modelDir);
+    if(this.models.getInputLength() != this.tables.getMaxlen()){
+      this.models.close();
+      throw new IOException("Model input length " + this.models.getInputLength() + " does not match " + KerasModelTables.MAXLEN_FILE);
+    }
+    this.models.setCombine(this.combine);
+  }
+
+  @Override
+  public void initialize(UimaContext context)
+      throws ResourceInitializationException {
+    String combineParam = (String) context.getConfigParameterValue(KerasEnsemble.PARAM_COMBINE);
+    if(combineParam != null){
+      this.combine = combineParam;
+    }
+    try{
+      this.models.setCombine(this.combine);
+    }catch(IllegalArgumentException e){
+      throw new ResourceInitializationException(e);
+    }
+  }
+
+  @Override
+  public String classify(List<Feature> features)
+      throws CleartkProcessingException {
+    return classifyBatch(Collections.singletonList(features)).get(0);
+  }
+
+  @Override
+  public List<String> classifyBatch(List<List<Feature>> instances)
+      throws CleartkProcessingException {
+    List<int[]> rows = new ArrayList<>(instances.size());
+    for(List<Feature> features : instances){
+      rows.add(this.tables.encode(features));
+    }
+    int[] classIds = this.models.predict(rows);
+    List<String> labels = new ArrayList<>(instances.size());
+    for(int classId : classIds){
+      labels.add(this.tables.getLabel(classId));
+    }
+    return labels;
+  }
+
+  @Override
+  public ScoredOutcome<String> classifyWithScores(List<Feature> features)
+      throws CleartkProcessingException {
+    return classifyBatchWithScores(Collections.singletonList(features)).get(0);
+  }
+
+  @Override
+  public List<ScoredOutcome<String>> classifyBatchWithScores(List<List<Feature>> instances)
+      throws CleartkProcessingException {
+    List<int[]> rows = new ArrayList<>(instances.size());
+    for(List<Feature> features : instances){
+      rows.add(this.tables.encode(features));
+    }
+    float[][] distributions = new float[instances.size()][];
+    int[] classIds = this.models.predict(rows, distributions);
+    List<ScoredOutcome<String>> outcomes = new ArrayList<>(instances.size());
+    for(int i = 0; i < classIds.length; i++){
+      Map<String, Double> scores = new LinkedHashMap<>();
+      for(int j = 0; j < distributions[i].length; j++){
+        scores.put(this.tables.getLabel(j), (double) distributions[i][j]);
+      }
+      outcomes.add(new ScoredOutcome<>(this.tables.getLabel(classIds[i]), scores));
+    }
+    return outcomes;
+  }
+
+  @Override
+  public void close(){
+    this.models.close();
+  }
+}
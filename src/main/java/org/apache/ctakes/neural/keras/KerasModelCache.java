@@ -0,0 +1,165 @@
+package org.apache.ctakes.neural.keras;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Directory of unpacked models shared by every load in every JVM on the machine. Each model
+ * lives in a subdirectory named after the digest of its packaged files, so loading a model
+ * that was unpacked before copies nothing. A model is extracted into a staging directory
+ * first, which gets a {@link #COMPLETE_MARKER} listing its files, and is then renamed into
+ * place. A subdirectory without the marker, or missing one of the files it lists (left
+ * behind by an older version, or damaged since), is extracted again.
+ */
+class KerasModelCache {
+  /**
+   * System property overriding the cache location; by default it is
+   * <code>ctakes-neural-models</code> in the temporary directory.
+   */
+  public static final String CACHE_DIR_PROPERTY = "ctakes.neural.keras.cache";
+
+  /**
+   * The file naming the files of a completely extracted model, one per line.
+   */
+  static final String COMPLETE_MARKER = ".complete";
+
+  private static final String STAGING_PREFIX = ".unpack-";
+  static final int BUFFER_SIZE = 1 << 16;
+
+  static File getRoot() throws IOException {
+    File root = new File(System.getProperty(CACHE_DIR_PROPERTY,
+        new File(System.getProperty("java.io.tmpdir"), "ctakes-neural-models").getPath()));
+    Files.createDirectories(root.toPath());
+    return root;
+  }
+
+  /**
+   * @return the directory of the model with this digest, or null if it was never completely
+   * unpacked
+   */
+  static File lookup(String digest) throws IOException {
+    File dir = new File(getRoot(), digest);
+    return isComplete(dir) ? dir : null;
+  }
+
+  /**
+   * @return whether <code>dir</code> has the marker and every file the marker names
+   */
+  static boolean isComplete(File dir) throws IOException {
+    File marker = new File(dir, COMPLETE_MARKER);
+    if(!marker.isFile()){
+      return false;
+    }
+    for(String name : Files.readAllLines(marker.toPath(), StandardCharsets.UTF_8)){
+      if(!name.isEmpty() && !new File(dir, name).isFile()){
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return a new empty directory, on the same file system as the cache, to extract into
+   */
+  static File stage() throws IOException {
+    return Files.createTempDirectory(getRoot().toPath(), STAGING_PREFIX).toFile();
+  }
+
+  /**
+   * Marks a fully extracted staging directory complete and moves it into the cache under
+   * <code>digest</code>, replacing an incomplete directory there. If another load got there
+   * first with a complete copy, that copy is kept and the staging directory deleted.
+   *
+   * @return the directory holding the model
+   */
+  static File publish(File staging, String digest) throws IOException {
+    List<String> names = new ArrayList<>();
+    for(File file : staging.listFiles()){
+      names.add(file.getName());
+    }
+    Files.write(new File(staging, COMPLETE_MARKER).toPath(), names, StandardCharsets.UTF_8);
+
+    File target = new File(getRoot(), digest);
+    if(target.exists() && !isComplete(target)){
+      // move the broken copy out of the way first, so no load sees it half deleted:
+      File stale = new File(getRoot(), STAGING_PREFIX + "stale-" + staging.getName());
+      try{
+        Files.move(target.toPath(), stale.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        delete(stale);
+      }catch(IOException e){
+        // another load is replacing it as well
+      }
+    }
+    try{
+      Files.move(staging.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }catch(IOException e){
+      // depending on the platform, losing the race surfaces as one of several exceptions:
+      delete(staging);
+      if(!isComplete(target)){
+        throw e;
+      }
+    }
+    return target;
+  }
+
+  static void delete(File dir){
+    File[] files = dir.listFiles();
+    if(files != null){
+      for(File file : files){
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  static MessageDigest newDigest(){
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Adds an entry name to a digest; its content is added as it is copied.
+   */
+  static void updateName(MessageDigest digest, String name){
+    digest.update(name.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+  }
+
+  /**
+   * @return the digest of the named files in <code>dir</code>, in the order they are packaged
+   */
+  static String digestFiles(File dir, List<String> names) throws IOException {
+    MessageDigest digest = newDigest();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    for(String name : names){
+      updateName(digest, name);
+      try(InputStream in = new FileInputStream(new File(dir, name))){
+        int n;
+        while((n = in.read(buffer)) > 0){
+          digest.update(buffer, 0, n);
+        }
+      }
+    }
+    return toHex(digest);
+  }
+
+  static String toHex(MessageDigest digest){
+    StringBuilder hex = new StringBuilder();
+    for(byte b : digest.digest()){
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+}
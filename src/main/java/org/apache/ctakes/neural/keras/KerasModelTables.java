@@ -0,0 +1,156 @@
+package org.apache.ctakes.neural.keras;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.cleartk.ml.Feature;
+
+/**
+ * The vocabulary, label index and sequence length a keras model was trained with, as
+ * exported in text form by the training scripts and packaged next to the model. Lets the
+ * Java side turn features into the same token ids the scripts use and read class ids back
+ * as labels.
+ */
+class KerasModelTables {
+  static final String VOCAB_FILE = "word2int.txt";
+  static final String LABELS_FILE = "label2int.txt";
+  static final String MAXLEN_FILE = "maxlen.txt";
+  static final String OOV_WORD = "oov_word";
+  static final String[] FILES = new String[]{ VOCAB_FILE, LABELS_FILE, MAXLEN_FILE };
+
+  private StringIntMap word2int = null;
+  private String[] int2label = null;
+  private int maxlen;
+  private int oovIndex;
+
+  KerasModelTables(File modelDir) throws IOException {
+    this.word2int = readIndex(new File(modelDir, VOCAB_FILE));
+    List<String> labels = readLines(new File(modelDir, LABELS_FILE));
+    this.int2label = new String[labels.size()];
+    for(String line : labels){
+      int tab = line.lastIndexOf('\t');
+      if(tab < 0) continue;
+      this.int2label[Integer.parseInt(line.substring(tab + 1))] = line.substring(0, tab);
+    }
+    try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(new File(modelDir, MAXLEN_FILE))))){
+      this.maxlen = Integer.parseInt(reader.readLine().trim());
+    }
+    this.oovIndex = this.word2int.get(OOV_WORD, 0);
+  }
+
+  /**
+   * @return true if all tables are present in <code>dir</code>
+   */
+  static boolean exist(File dir){
+    for(String fn : FILES){
+      if(!new File(dir, fn).exists()) return false;
+    }
+    return true;
+  }
+
+  int getMaxlen(){
+    return this.maxlen;
+  }
+
+  int getNumLabels(){
+    return this.int2label.length;
+  }
+
+  String getLabel(int classId){
+    return this.int2label[classId];
+  }
+
+  /**
+   * Same as the script side: split the feature values on whitespace, look up each token
+   * (out of vocabulary tokens get the index of {@link #OOV_WORD}) and keep the first
+   * maxlen indices.
+   */
+  int[] lookup(List<Feature> features){
+    int[] ids = new int[this.maxlen];
+    int n = collect(features, ids);
+    return n == ids.length ? ids : Arrays.copyOf(ids, n);
+  }
+
+  /**
+   * Fills <code>row</code>, which has maxlen slots, with the ids of {@link #lookup(List)}
+   * padded at the front with 0, like keras' <code>pad_sequences</code> does on the script
+   * side.
+   */
+  void encode(List<Feature> features, int[] row){
+    int n = collect(features, row);
+    System.arraycopy(row, 0, row, row.length - n, n);
+    Arrays.fill(row, 0, row.length - n, 0);
+  }
+
+  /**
+   * @return a new row with the padded ids of <code>features</code>
+   */
+  int[] encode(List<Feature> features){
+    int[] row = new int[this.maxlen];
+    encode(features, row);
+    return row;
+  }
+
+  /**
+   * Writes the ids of the first tokens into <code>ids</code>, scanning the feature values in
+   * place instead of splitting them.
+   *
+   * @return the number of ids written
+   */
+  private int collect(List<Feature> features, int[] ids){
+    int n = 0;
+    for(Feature feature : features){
+      String value = String.valueOf(feature.getValue());
+      int end = 0;
+      while(n < ids.length){
+        int start = end;
+        while(start < value.length() && isSpace(value.charAt(start))) start++;
+        if(start == value.length()) break;
+        end = start;
+        while(end < value.length() && !isSpace(value.charAt(end))) end++;
+        ids[n++] = this.word2int.get(value, start, end, this.oovIndex);
+      }
+      if(n == ids.length) break;
+    }
+    return n;
+  }
+
+  /**
+   * @return whether <code>c</code> is in the <code>\s</code> class the tokens used to be
+   * split on
+   */
+  private static boolean isSpace(char c){
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  /**
+   * Reads a <code>token TAB index</code> table as written by the training script.
+   */
+  private static StringIntMap readIndex(File file) throws IOException {
+    List<String> lines = readLines(file);
+    StringIntMap index = new StringIntMap(lines.size());
+    for(String line : lines){
+      int tab = line.lastIndexOf('\t');
+      if(tab < 0) continue;
+      index.put(line.substring(0, tab), Integer.parseInt(line.substring(tab + 1)));
+    }
+    return index;
+  }
+
+  private static List<String> readLines(File file) throws IOException {
+    List<String> lines = new ArrayList<>();
+    try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)))){
+      String line;
+      while((line = reader.readLine()) != null){
+        lines.add(line);
+      }
+    }
+    return lines;
+  }
+}
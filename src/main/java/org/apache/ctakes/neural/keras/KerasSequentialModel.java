@@ -0,0 +1,626 @@
+package org.apache.ctakes.neural.keras;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.annotations.Beta;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import io.jhdf.HdfFile;
+import io.jhdf.api.Dataset;
+import io.jhdf.api.Node;
+
+/**
+ * Forward pass of a Keras <code>Sequential</code> model in plain Java, read from the
+ * architecture JSON written by <code>model.to_json()</code> and the weights file written by
+ * <code>model.save_weights()</code>. Only the layers our training scripts use are supported:
+ * the embedding-bag model of <code>ft_train.py</code> and the convolutional models of
+ * <code>cnn_train.py</code> (four merged branches) and <code>cnn1filter_train.py</code>.
+ * Loading any other layer fails so the caller can fall back to the script classifier.
+ * <p>
+ * Every shape is fixed by the embedding's input length, so the activations of each layer
+ * live in buffers allocated once per thread and reused for every instance. The kernels are
+ * plain loops with a contiguous innermost loop, which HotSpot vectorizes.
+ */
+@Beta
+public class KerasSequentialModel {
+
+  private Embedding embedding = null;
+  private Merge merge = null;
+  private List<Layer> layers = new ArrayList<>();
+  private int inputLength;
+  private ThreadLocal<float[][]> buffers = null;
+
+  public KerasSequentialModel(File archFile, File weightsFile) throws IOException {
+    JsonObject arch;
+    try(Reader reader = new FileReader(archFile)){
+      arch = new JsonParser().parse(reader).getAsJsonObject();
+    }
+    init(arch, readWeights(weightsFile));
+  }
+
+  private KerasSequentialModel(JsonObject arch, Weights weights) throws IOException {
+    init(arch, weights);
+  }
+
+  private void init(JsonObject arch, Weights weights) throws IOException {
+    if(!"Sequential".equals(arch.get("class_name").getAsString())){
+      throw new IOException("Only Sequential models are supported: " + arch.get("class_name"));
+    }
+    // keras < 2.2 writes the layer list as the config, later versions nest it under "layers":
+    JsonElement config = arch.get("config");
+    JsonArray layerConfigs = config.isJsonArray() ? config.getAsJsonArray() : config.getAsJsonObject().getAsJsonArray("layers");
+
+    int steps = 0;
+    int width = 0;
+    for(JsonElement element : layerConfigs){
+      JsonObject layer = element.getAsJsonObject();
+      String className = layer.get("class_name").getAsString();
+      JsonObject layerConfig = layer.getAsJsonObject("config");
+      String layerName = layerConfig.get("name").getAsString();
+      List<float[]> layerWeights = weights.arrays.get(layerName);
+
+      if(className.equals("Embedding") || className.equals("Merge")){
+        if(this.embedding != null || this.merge != null || !this.layers.isEmpty()){
+          throw new IOException(className + " is only supported as the first layer");
+        }
+        if(className.equals("Embedding")){
+          this.inputLength = getInt(layerConfig, "input_length");
+          this.embedding = new Embedding(layerWeights.get(0), getInt(layerConfig, "output_dim"));
+          steps = this.inputLength;
+          width = this.embedding.dim;
+        }else{
+          this.merge = new Merge(layerConfig, weights);
+          this.inputLength = this.merge.branches.get(0).inputLength;
+          steps = 1;
+          width = this.merge.width;
+        }
+        continue;
+      }
+
+      Layer next;
+      if(className.equals("GlobalAveragePooling1D")){
+        next = new GlobalAveragePooling1D();
+      }else if(className.equals("GlobalMaxPooling1D")){
+        next = new GlobalMaxPooling1D();
+      }else if(className.equals("Dense")){
+        next = new Dense(layerWeights.get(0), layerWeights.get(1),
+            getInt(layerConfig, "units", "output_dim"),
+            getActivation(layerConfig));
+      }else if(className.equals("Convolution1D") || className.equals("Conv1D")){
+        checkValidPadding(layerConfig);
+        if(layerConfig.has("data_format") && !"channels_last".equals(layerConfig.get("data_format").getAsString())){
+          throw new IOException("Only channels_last convolutions are supported: " + layerConfig);
+        }
+        int filters = getInt(layerConfig, "filters", "nb_filter");
+        int kernelSize = getInt(layerConfig, "kernel_size", "filter_length");
+        float[] kernel = layerWeights.get(0);
+        checkConvKernelShape(layerName, weights.shapes.get(layerName).get(0), kernelSize, width, filters);
+        if(weights.isTheano()){
+          kernel = flipKernel(kernel, kernelSize);
+        }
+        next = new Conv1D(kernel, layerWeights.get(1), filters, kernelSize,
+            getInt(layerConfig, 1, "strides", "subsample_length"),
+            getActivation(layerConfig));
+      }else if(className.equals("MaxPooling1D")){
+        checkValidPadding(layerConfig);
+        int pool = getInt(layerConfig, "pool_size", "pool_length");
+        next = new MaxPooling1D(pool, getInt(layerConfig, pool, "strides", "stride"));
+      }else if(className.equals("Flatten")){
+        next = new Flatten();
+      }else if(className.equals("Activation")){
+        next = new Activation(getActivation(layerConfig));
+      }else if(className.equals("Dropout")){
+        // identity at inference time
+        continue;
+      }else{
+        throw new IOException("Unsupported layer type: " + className);
+      }
+      if(steps == 0){
+        throw new IOException("Model does not start with an Embedding or Merge layer");
+      }
+      next.setInputShape(steps, width);
+      if(next.outSteps < 1){
+        throw new IOException(className + " needs more than " + steps + " input steps");
+      }
+      steps = next.outSteps;
+      width = next.outWidth;
+      this.layers.add(next);
+    }
+    if(steps == 0){
+      throw new IOException("Model does not start with an Embedding or Merge layer");
+    }
+
+    final int[] sizes = new int[this.layers.size() + 1];
+    sizes[0] = this.embedding != null ? this.inputLength * this.embedding.dim : this.merge.width;
+    for(int i = 0; i < this.layers.size(); i++){
+      sizes[i+1] = this.layers.get(i).outSteps * this.layers.get(i).outWidth;
+    }
+    this.buffers = new ThreadLocal<float[][]>(){
+      @Override
+      protected float[][] initialValue() {
+        float[][] bufs = new float[sizes.length][];
+        for(int i = 0; i < sizes.length; i++){
+          bufs[i] = new float[sizes[i]];
+        }
+        return bufs;
+      }
+    };
+  }
+
+  /**
+   * @return the number of word indices {@link #predict(int[])} expects
+   */
+  public int getInputLength(){
+    return this.inputLength;
+  }
+
+  /**
+   * @param ids the (already truncated and padded) word indices of one instance
+   * @return the output of the last layer, i.e. the class probabilities for our models
+   */
+  public float[] predict(int[] ids){
+    float[] out = forward(ids);
+    return Arrays.copyOf(out, out.length);
+  }
+
+  /**
+   * Runs the model on this thread's buffers; the returned array is overwritten by the next call.
+   */
+  private float[] forward(int[] ids){
+    if(ids.length != this.inputLength){
+      throw new IllegalArgumentException("Expected " + this.inputLength + " indices but got " + ids.length);
+    }
+    float[][] bufs = this.buffers.get();
+    float[] x = bufs[0];
+    if(this.embedding != null){
+      this.embedding.forward(ids, x);
+    }else{
+      this.merge.forward(ids, x);
+    }
+    for(int i = 0; i < this.layers.size(); i++){
+      x = this.layers.get(i).forward(x, bufs[i+1]);
+    }
+    return x;
+  }
+
+  static class Embedding {
+    private final float[] table;
+    private final int dim;
+
+    Embedding(float[] table, int dim){
+      this.table = table;
+      this.dim = dim;
+    }
+
+    void forward(int[] ids, float[] out){
+      for(int i = 0; i < ids.length; i++){
+        System.arraycopy(table, ids[i] * dim, out, i * dim, dim);
+      }
+    }
+  }
+
+  /**
+   * Keras 1 <code>Merge</code> of several sequential branches that all see the same input,
+   * concatenating their (flat) outputs.
+   */
+  static class Merge {
+    private final List<KerasSequentialModel> branches = new ArrayList<>();
+    private final int width;
+
+    Merge(JsonObject config, Weights weights) throws IOException {
+      if(!"concat".equals(config.get("mode").getAsString())){
+        throw new IOException("Only concat merges are supported");
+      }
+      int total = 0;
+      for(JsonElement branch : config.getAsJsonArray("layers")){
+        KerasSequentialModel model = new KerasSequentialModel(branch.getAsJsonObject(), weights);
+        if(!this.branches.isEmpty() && model.inputLength != this.branches.get(0).inputLength){
+          throw new IOException("Merged branches have different input lengths");
+        }
+        Layer last = model.layers.isEmpty() ? null : model.layers.get(model.layers.size()-1);
+        if(last == null || last.outSteps != 1){
+          throw new IOException("Only merges of flat branch outputs are supported");
+        }
+        total += last.outWidth;
+        this.branches.add(model);
+      }
+      this.width = total;
+    }
+
+    void forward(int[] ids, float[] out){
+      int offset = 0;
+      for(KerasSequentialModel branch : this.branches){
+        float[] y = branch.forward(ids);
+        System.arraycopy(y, 0, out, offset, y.length);
+        offset += y.length;
+      }
+    }
+  }
+
+  /**
+   * A layer with shapes fixed at load time. Inputs and outputs are <code>steps x width</code>
+   * matrices stored row-major (vectors have a single step).
+   */
+  static abstract class Layer {
+    int inSteps;
+    int inWidth;
+    int outSteps;
+    int outWidth;
+
+    void setInputShape(int steps, int width){
+      this.inSteps = steps;
+      this.inWidth = width;
+      this.outSteps = steps;
+      this.outWidth = width;
+    }
+
+    /**
+     * @return the array holding the output: <code>out</code>, or <code>in</code> for layers
+     *  that work in place
+     */
+    abstract float[] forward(float[] in, float[] out);
+  }
+
+  static class GlobalAveragePooling1D extends Layer {
+    @Override
+    void setInputShape(int steps, int width){
+      super.setInputShape(steps, width);
+      this.outSteps = 1;
+    }
+
+    @Override
+    float[] forward(float[] in, float[] out){
+      Arrays.fill(out, 0.0f);
+      for(int step = 0; step < inSteps; step++){
+        int offset = step * inWidth;
+        for(int j = 0; j < inWidth; j++){
+          out[j] += in[offset + j];
+        }
+      }
+      for(int j = 0; j < inWidth; j++){
+        out[j] /= inSteps;
+      }
+      return out;
+    }
+  }
+
+  static class GlobalMaxPooling1D extends Layer {
+    @Override
+    void setInputShape(int steps, int width){
+      super.setInputShape(steps, width);
+      this.outSteps = 1;
+    }
+
+    @Override
+    float[] forward(float[] in, float[] out){
+      System.arraycopy(in, 0, out, 0, inWidth);
+      for(int step = 1; step < inSteps; step++){
+        int offset = step * inWidth;
+        for(int j = 0; j < inWidth; j++){
+          out[j] = Math.max(out[j], in[offset + j]);
+        }
+      }
+      return out;
+    }
+  }
+
+  static class Dense extends Layer {
+    private final float[] kernel; // inputs x units, row-major as keras stores it
+    private final float[] bias;
+    private final int units;
+    private final String activation;
+
+    Dense(float[] kernel, float[] bias, int units, String activation){
+      this.kernel = kernel;
+      this.bias = bias;
+      this.units = units;
+      this.activation = activation;
+    }
+
+    @Override
+    void setInputShape(int steps, int width){
+      super.setInputShape(steps, width);
+      this.outWidth = units;
+    }
+
+    @Override
+    float[] forward(float[] in, float[] out){
+      // keras applies Dense to the last axis, so each step is transformed independently:
+      for(int step = 0; step < inSteps; step++){
+        int inOffset = step * inWidth;
+        int outOffset = step * units;
+        System.arraycopy(bias, 0, out, outOffset, units);
+        // walk the kernel row by row so the inner loop is contiguous:
+        for(int i = 0; i < inWidth; i++){
+          float value = in[inOffset + i];
+          if(value == 0.0f) continue;
+          axpy(value, kernel, i * units, out, outOffset, units);
+        }
+        activate(activation, out, outOffset, units);
+      }
+      return out;
+    }
+  }
+
+  /**
+   * Valid (unpadded) 1D convolution with the kernel in tensorflow layout,
+   * <code>kernel_size x input_dim x filters</code> (keras 1 stores it with an extra axis of
+   * size one between the first two, which leaves the flat layout unchanged).
+   */
+  static class Conv1D extends Layer {
+    private final float[] kernel;
+    private final float[] bias;
+    private final int filters;
+    private final int kernelSize;
+    private final int stride;
+    private final String activation;
+
+    Conv1D(float[] kernel, float[] bias, int filters, int kernelSize, int stride, String activation){
+      this.kernel = kernel;
+      this.bias = bias;
+      this.filters = filters;
+      this.kernelSize = kernelSize;
+      this.stride = stride;
+      this.activation = activation;
+    }
+
+    @Override
+    void setInputShape(int steps, int width){
+      super.setInputShape(steps, width);
+      this.outSteps = (steps - kernelSize) / stride + 1;
+      this.outWidth = filters;
+    }
+
+    @Override
+    float[] forward(float[] in, float[] out){
+      for(int t = 0; t < outSteps; t++){
+        int outOffset = t * filters;
+        System.arraycopy(bias, 0, out, outOffset, filters);
+        // the receptive field of step t is contiguous in the input, and so is the kernel:
+        int inOffset = t * stride * inWidth;
+        int window = kernelSize * inWidth;
+        for(int i = 0; i < window; i++){
+          float value = in[inOffset + i];
+          if(value == 0.0f) continue;
+          axpy(value, kernel, i * filters, out, outOffset, filters);
+        }
+        activate(activation, out, outOffset, filters);
+      }
+      return out;
+    }
+  }
+
+  static class MaxPooling1D extends Layer {
+    private final int pool;
+    private final int stride;
+
+    MaxPooling1D(int pool, int stride){
+      this.pool = pool;
+      this.stride = stride;
+    }
+
+    @Override
+    void setInputShape(int steps, int width){
+      super.setInputShape(steps, width);
+      this.outSteps = (steps - pool) / stride + 1;
+    }
+
+    @Override
+    float[] forward(float[] in, float[] out){
+      for(int t = 0; t < outSteps; t++){
+        int outOffset = t * inWidth;
+        int inOffset = t * stride * inWidth;
+        System.arraycopy(in, inOffset, out, outOffset, inWidth);
+        for(int p = 1; p < pool; p++){
+          int offset = inOffset + p * inWidth;
+          for(int j = 0; j < inWidth; j++){
+            out[outOffset + j] = Math.max(out[outOffset + j], in[offset + j]);
+          }
+        }
+      }
+      return out;
+    }
+  }
+
+  static class Flatten extends Layer {
+    @Override
+    void setInputShape(int steps, int width){
+      super.setInputShape(steps, width);
+      this.outSteps = 1;
+      this.outWidth = steps * width;
+    }
+
+    @Override
+    float[] forward(float[] in, float[] out){
+      // row-major storage is already the flattened order
+      return in;
+    }
+  }
+
+  static class Activation extends Layer {
+    private final String activation;
+
+    Activation(String activation){
+      this.activation = activation;
+    }
+
+    @Override
+    float[] forward(float[] in, float[] out){
+      for(int step = 0; step < inSteps; step++){
+        activate(activation, in, step * inWidth, inWidth);
+      }
+      return in;
+    }
+  }
+
+  /**
+   * <code>y[yOffset:yOffset+length] += a * x[xOffset:xOffset+length]</code>
+   */
+  static void axpy(float a, float[] x, int xOffset, float[] y, int yOffset, int length){
+    for(int j = 0; j < length; j++){
+      y[yOffset + j] += a * x[xOffset + j];
+    }
+  }
+
+  static void activate(String activation, float[] x, int offset, int length){
+    if(activation.equals("linear")){
+      return;
+    }else if(activation.equals("relu")){
+      for(int i = offset; i < offset + length; i++){
+        if(x[i] < 0.0f) x[i] = 0.0f;
+      }
+    }else if(activation.equals("tanh")){
+      for(int i = offset; i < offset + length; i++){
+        x[i] = (float) Math.tanh(x[i]);
+      }
+    }else if(activation.equals("sigmoid")){
+      for(int i = offset; i < offset + length; i++){
+        x[i] = (float) (1.0 / (1.0 + Math.exp(-x[i])));
+      }
+    }else if(activation.equals("softmax")){
+      float max = Float.NEGATIVE_INFINITY;
+      for(int i = offset; i < offset + length; i++){
+        max = Math.max(max, x[i]);
+      }
+      float sum = 0.0f;
+      for(int i = offset; i < offset + length; i++){
+        x[i] = (float) Math.exp(x[i] - max);
+        sum += x[i];
+      }
+      for(int i = offset; i < offset + length; i++){
+        x[i] /= sum;
+      }
+    }else{
+      throw new IllegalArgumentException("Unsupported activation: " + activation);
+    }
+  }
+
+  private static String getActivation(JsonObject config) throws IOException {
+    String activation = config.has("activation") ? config.get("activation").getAsString() : "linear";
+    if(!activation.matches("linear|relu|tanh|sigmoid|softmax")){
+      throw new IOException("Unsupported activation: " + activation);
+    }
+    return activation;
+  }
+
+  private static void checkValidPadding(JsonObject config) throws IOException {
+    for(String name : new String[]{"padding", "border_mode"}){
+      if(config.has(name) && !"valid".equals(config.get(name).getAsString())){
+        throw new IOException("Only valid padding is supported: " + config);
+      }
+    }
+  }
+
+  /**
+   * Reads an integer setting, trying each name in turn since keras 1 and 2 name some
+   * settings differently (keras 2 wraps 1D sizes and strides in a list).
+   */
+  static int getInt(JsonObject config, String... names) throws IOException {
+    for(String name : names){
+      if(config.has(name) && !config.get(name).isJsonNull()){
+        JsonElement value = config.get(name);
+        return value.isJsonArray() ? value.getAsJsonArray().get(0).getAsInt() : value.getAsInt();
+      }
+    }
+    throw new IOException("Layer config is missing " + names[0] + ": " + config);
+  }
+
+  /**
+   * Same as {@link #getInt(JsonObject, String...)} but returns <code>defaultValue</code> when
+   * none of the settings is present (keras uses null for e.g. a pooling stride equal to the pool).
+   */
+  static int getInt(JsonObject config, int defaultValue, String... names) throws IOException {
+    for(String name : names){
+      if(config.has(name) && !config.get(name).isJsonNull()){
+        return getInt(config, name);
+      }
+    }
+    return defaultValue;
+  }
+
+  /**
+   * Checks a convolution kernel against the tensorflow layout {@link Conv1D} assumes,
+   * <code>kernel_size x input_dim x filters</code>, or keras 1's
+   * <code>kernel_size x 1 x input_dim x filters</code>.
+   */
+  static void checkConvKernelShape(String layerName, int[] shape, int kernelSize, int inputDim, int filters) throws IOException {
+    int[] expected = new int[]{ kernelSize, inputDim, filters };
+    int[] keras1 = new int[]{ kernelSize, 1, inputDim, filters };
+    if(!Arrays.equals(shape, expected) && !Arrays.equals(shape, keras1)){
+      throw new IOException("Kernel of " + layerName + " has shape " + Arrays.toString(shape)
+          + " but a kernel_size x input_dim x filters kernel would be " + Arrays.toString(expected));
+    }
+  }
+
+  /**
+   * Theano convolves where tensorflow correlates, so keras models saved with the theano
+   * backend have their kernels reversed along the steps, which keras itself undoes with
+   * <code>convert_kernel</code> when such weights are loaded under tensorflow.
+   */
+  static float[] flipKernel(float[] kernel, int kernelSize){
+    int step = kernel.length / kernelSize;
+    float[] flipped = new float[kernel.length];
+    for(int k = 0; k < kernelSize; k++){
+      System.arraycopy(kernel, k * step, flipped, (kernelSize - 1 - k) * step, step);
+    }
+    return flipped;
+  }
+
+  /**
+   * The weights of a model: the flattened arrays of every layer and their shapes, keyed by
+   * layer name, in the order keras lists them (e.g. kernel before bias), and the backend they
+   * were saved with.
+   */
+  static class Weights {
+    final Map<String, List<float[]>> arrays = new HashMap<>();
+    final Map<String, List<int[]>> shapes = new HashMap<>();
+    String backend = null;
+
+    boolean isTheano(){
+      return "theano".equals(this.backend);
+    }
+  }
+
+  static Weights readWeights(File weightsFile) throws IOException {
+    Weights weights = new Weights();
+    try(HdfFile hdf = new HdfFile(weightsFile)){
+      // keras writes the backend as a scalar string; files from before keras 1.2 have none
+      if(hdf.getAttributes().containsKey("backend")){
+        Object backend = hdf.getAttribute("backend").getData();
+        weights.backend = backend instanceof String[] ? ((String[]) backend)[0] : String.valueOf(backend);
+      }
+      for(String layerName : (String[]) hdf.getAttribute("layer_names").getData()){
+        Node layerGroup = hdf.getByPath(layerName);
+        List<float[]> layerWeights = new ArrayList<>();
+        List<int[]> layerShapes = new ArrayList<>();
+        // layers without weights get an empty float array from h5py, which reads back as null
+        Object weightNames = layerGroup.getAttribute("weight_names").getData();
+        for(String weightName : weightNames instanceof String[] ? (String[]) weightNames : new String[0]){
+          Dataset dataset = hdf.getDatasetByPath(layerName + "/" + weightName);
+          Object data = dataset.getDataFlat();
+          if(!(data instanceof float[])){
+            throw new IOException("Expected float32 weights in " + dataset.getPath());
+          }
+          layerWeights.add((float[]) data);
+          layerShapes.add(dataset.getDimensions());
+        }
+        weights.arrays.put(layerName, layerWeights);
+        weights.shapes.put(layerName, layerShapes);
+      }
+    }catch(RuntimeException e){
+      throw new IOException("Could not read keras weights from " + weightsFile, e);
+    }
+    return weights;
+  }
+}
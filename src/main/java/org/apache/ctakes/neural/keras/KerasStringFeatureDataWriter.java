@@ -3,9 +3,6 @@ package org.apache.ctakes.neural.keras;
 import java.io.File;
 import java.io.FileNotFoundException;
 
-import org.apache.ctakes.temporal.keras.KerasStringOutcomeClassifierBuilder;
-import org.apache.ctakes.temporal.keras.ScriptStringOutcomeDataWriter;
-
 import com.google.common.annotations.Beta;
 
 /**
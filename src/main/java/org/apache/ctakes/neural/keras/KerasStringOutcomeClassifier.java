@@ -2,7 +2,6 @@ package org.apache.ctakes.neural.keras;
 
 import java.io.File;
 
-import org.apache.ctakes.temporal.keras.ScriptStringOutcomeClassifier;
 import org.cleartk.ml.encoder.features.FeaturesEncoder;
 import org.cleartk.ml.encoder.outcome.OutcomeEncoder;
 import org.cleartk.ml.util.featurevector.FeatureVector;
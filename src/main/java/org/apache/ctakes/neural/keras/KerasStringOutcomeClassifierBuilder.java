@@ -2,17 +2,20 @@ package org.apache.ctakes.neural.keras;
 
 import java.io.File;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.Attributes;
 import java.util.jar.JarInputStream;
 import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 
-import org.apache.ctakes.temporal.keras.KerasStringOutcomeClassifier;
-import org.apache.ctakes.temporal.keras.ScriptStringOutcomeClassifier;
-import org.apache.ctakes.temporal.keras.ScriptStringOutcomeClassifierBuilder;
 import org.apache.uima.util.Level;
+import org.cleartk.ml.Classifier;
 import org.cleartk.ml.jar.JarStreams;
 
 import com.google.common.annotations.Beta;
-import com.google.common.io.Files;
 
 /**
  * <br>
@@ -24,24 +27,66 @@ import com.google.common.io.Files;
  * 
  */
 @Beta
-public class KerasStringOutcomeClassifierBuilder extends ScriptStringOutcomeClassifierBuilder<ScriptStringOutcomeClassifier> {
+public class KerasStringOutcomeClassifierBuilder extends ScriptStringOutcomeClassifierBuilder<Classifier<String>> {
+  /**
+   * System property choosing how a packaged model is run: {@link #ENGINE_SCRIPT} (the default)
+   * pipes instances to the classify script, {@link #ENGINE_JVM} runs the forward pass in
+   * Java with {@link KerasJvmStringOutcomeClassifier}.
+   */
+  public static final String ENGINE_PROPERTY = "ctakes.neural.keras.engine";
+  public static final String ENGINE_SCRIPT = "script";
+  public static final String ENGINE_JVM = "jvm";
+
+  /**
+   * Manifest attribute recording that the vocabulary, label and length tables were packaged
+   * with the model; the JVM engine and the binary script protocol need them.
+   */
+  public static final Attributes.Name JVM_ARTIFACTS_PARAM = new Attributes.Name("JvmArtifacts");
+
+  /**
+   * Manifest attribute holding the digest of the packaged model files, under which the model
+   * is unpacked in the {@link KerasModelCache}. Loading a model that is already there skips
+   * the extraction entirely.
+   */
+  public static final Attributes.Name MODEL_DIGEST_PARAM = new Attributes.Name("ModelDigest");
+
+  @Override
+  public void trainClassifier(File dir, String... args) throws Exception {
+    super.trainClassifier(dir, args);
+
+    // the manifest is written before any entries, so decide here whether the tables go in:
+    boolean withTables = KerasModelTables.exist(dir);
+    this.manifest.getMainAttributes().put(JVM_ARTIFACTS_PARAM, Boolean.toString(withTables));
+    this.manifest.getMainAttributes().put(MODEL_DIGEST_PARAM, KerasModelCache.digestFiles(dir, getModelFilenames(dir, withTables)));
+  }
 
   @Override
   public void packageClassifier(File dir, JarOutputStream modelStream) throws IOException {
     super.packageClassifier(dir, modelStream);
     
-    JarStreams.putNextJarEntry(modelStream, "outcome-lookup.txt", new File(dir, "outcome-lookup.txt"));
-    
+    for(String fn : getModelFilenames(dir, hasJvmArtifacts(this.manifest))){
+      JarStreams.putNextJarEntry(modelStream, fn, new File(dir, fn).getAbsoluteFile());
+    }
+  }
+
+  /**
+   * @return the names of the files that make up the model in <code>dir</code>, in the order
+   * they are packaged: the outcome lookup, the tables if requested, then each model's
+   * architecture and weights
+   */
+  private static List<String> getModelFilenames(File dir, boolean withTables){
+    List<String> names = new ArrayList<>();
+    names.add("outcome-lookup.txt");
+    if(withTables){
+      names.addAll(Arrays.asList(KerasModelTables.FILES));
+    }
     int modelNum = 0;
-    while(true){
-      File modelArchFile = new File(dir, getArchFilename(modelNum));
-      File modelWeightsFile = new File(dir, getWeightsFilename(modelNum));
-      if(!modelArchFile.exists()) break;
-      
-      JarStreams.putNextJarEntry(modelStream, modelArchFile.getName(), modelArchFile.getAbsoluteFile());
-      JarStreams.putNextJarEntry(modelStream, modelWeightsFile.getName(), modelWeightsFile.getAbsoluteFile());
+    while(new File(dir, getArchFilename(modelNum)).exists()){
+      names.add(getArchFilename(modelNum));
+      names.add(getWeightsFilename(modelNum));
       modelNum++;
     }
+    return names;
   }
     
   @Override
@@ -49,14 +94,41 @@ public class KerasStringOutcomeClassifierBuilder extends ScriptStringOutcomeClas
       throws IOException {
     super.unpackageClassifier(modelStream);
     
-    
-    // create the model dir to unpack all the model files
-    this.modelDir = Files.createTempDir();
-    
     // grab the script dir from the manifest:
     this.scriptDir = new File(modelStream.getManifest().getMainAttributes().getValue(SCRIPT_DIR_PARAM));
-    
-    extractFileToDir(modelDir, modelStream, "outcome-lookup.txt");
+
+    // models packaged with their digest are only extracted the first time they are loaded:
+    String packagedDigest = modelStream.getManifest().getMainAttributes().getValue(MODEL_DIGEST_PARAM);
+    if(packagedDigest != null){
+      this.modelDir = KerasModelCache.lookup(packagedDigest);
+      if(this.modelDir != null) return;
+    }
+
+    // extract to a staging dir, then move it into the cache under the digest it is looked up by,
+    // or without one in the manifest, under the digest of what we read:
+    File staging = KerasModelCache.stage();
+    MessageDigest digest = KerasModelCache.newDigest();
+    try{
+      extractModelFiles(staging, modelStream, digest);
+    }catch(IOException e){
+      KerasModelCache.delete(staging);
+      throw e;
+    }
+    String contentDigest = KerasModelCache.toHex(digest);
+    if(packagedDigest != null && !packagedDigest.equals(contentDigest)){
+      logger.log(Level.WARNING, "Model files do not match the digest " + packagedDigest + " in the manifest (they digest to " + contentDigest + ")");
+    }
+    this.modelDir = KerasModelCache.publish(staging, packagedDigest != null ? packagedDigest : contentDigest);
+  }
+
+  private static void extractModelFiles(File dir, JarInputStream modelStream, MessageDigest digest) throws IOException {
+    extractFileToDir(dir, modelStream, "outcome-lookup.txt", digest);
+
+    if(hasJvmArtifacts(modelStream.getManifest())){
+      for(String fn : KerasModelTables.FILES){
+        extractFileToDir(dir, modelStream, fn, digest);
+      }
+    }
 
     int modelNum = 0;
     while(true){
@@ -64,22 +136,33 @@ public class KerasStringOutcomeClassifierBuilder extends ScriptStringOutcomeClas
       String wtsFn = getWeightsFilename(modelNum);
       
       try{
-        extractFileToDir(modelDir, modelStream, archFn);
-        extractFileToDir(modelDir, modelStream, wtsFn);
+        extractFileToDir(dir, modelStream, archFn, digest);
       }catch(IOException e){
-        logger.log(Level.WARNING, "Encountered the following exception: " + e.getMessage());
+        // no more models
         break;
       }
+      extractFileToDir(dir, modelStream, wtsFn, digest);
       modelNum++;
     }
   }
   
   
   @Override
-  protected KerasStringOutcomeClassifier newClassifier() {
+  protected Classifier<String> newClassifier() {
+    if(ENGINE_JVM.equals(System.getProperty(ENGINE_PROPERTY, ENGINE_SCRIPT))){
+      try {
+        return new KerasJvmStringOutcomeClassifier(this.featuresEncoder, this.outcomeEncoder, this.modelDir);
+      } catch (IOException e) {
+        throw new RuntimeException("Model in " + this.modelDir + " cannot be run by the JVM engine", e);
+      }
+    }
     return new KerasStringOutcomeClassifier(this.featuresEncoder, this.outcomeEncoder, this.modelDir, this.scriptDir);
   }
 
+  private static boolean hasJvmArtifacts(Manifest manifest){
+    return Boolean.parseBoolean(manifest.getMainAttributes().getValue(JVM_ARTIFACTS_PARAM));
+  }
+
   private static String getArchFilename(int num){
     return "model_"+num+".json";
   }
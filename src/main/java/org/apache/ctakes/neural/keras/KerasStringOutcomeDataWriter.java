@@ -3,8 +3,6 @@ package org.apache.ctakes.neural.keras;
 import java.io.File;
 import java.io.FileNotFoundException;
 
-import org.apache.ctakes.temporal.keras.KerasStringOutcomeClassifierBuilder;
-import org.apache.ctakes.temporal.keras.ScriptStringFeatureDataWriter;
 import org.cleartk.ml.CleartkProcessingException;
 import org.cleartk.ml.util.featurevector.FeatureVector;
 
@@ -0,0 +1,225 @@
+package org.apache.ctakes.neural.keras;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.cleartk.ml.Classifier;
+import org.cleartk.ml.CleartkProcessingException;
+import org.cleartk.ml.Feature;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * Collects the requests of many concurrent callers (e.g. the replicas of an annotator
+ * processing different documents) into larger batches for one classifier. A batch is sent
+ * as soon as it holds {@link #PARAM_BATCH_SIZE} instances, or when its oldest request has
+ * waited {@link #PARAM_DEADLINE_MILLIS}, so no request waits longer than that before it
+ * reaches the model. Each caller's future completes with just its own labels. Batches always
+ * ask the classifier for scores, so callers with and without them share batches.
+ */
+@Beta
+public class MicroBatchScheduler implements AsyncBatchClassifier<String>, ScoringClassifier<String>, Closeable {
+  /**
+   * Number of instances that triggers sending a batch. The scheduler is only used for shared
+   * classifiers where this is greater than 1.
+   */
+  public static final String PARAM_BATCH_SIZE = "MicroBatchSize";
+
+  /**
+   * Longest time, in milliseconds, a request waits for others to join its batch.
+   */
+  public static final String PARAM_DEADLINE_MILLIS = "MicroBatchDeadlineMillis";
+  public static final int DEFAULT_DEADLINE_MILLIS = 10;
+
+  private final Classifier<String> backend;
+  private final int batchSize;
+  private final long deadlineMillis;
+  private final ScheduledExecutorService timer;
+
+  private List<Request> pending = new ArrayList<>();
+  private int pendingInstances = 0;
+  private ScheduledFuture<?> deadline = null;
+  private boolean closed = false;
+
+  /**
+   * The instances of one caller and the future it waits on.
+   */
+  private static class Request {
+    final List<List<Feature>> instances;
+    final CompletableFuture<List<ScoredOutcome<String>>> future = new CompletableFuture<>();
+
+    Request(List<List<Feature>> instances){
+      this.instances = instances;
+    }
+  }
+
+  public MicroBatchScheduler(Classifier<String> backend, int batchSize, long deadlineMillis){
+    this.backend = backend;
+    this.batchSize = batchSize;
+    this.deadlineMillis = deadlineMillis;
+    this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+      @Override
+      public Thread newThread(Runnable body) {
+        Thread thread = new Thread(body, "micro-batch-deadline");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  @Override
+  public String classify(List<Feature> features) throws CleartkProcessingException {
+    return AsyncBatchClassifier.await(classifyAsync(features));
+  }
+
+  /**
+   * Scores are not batched; they go straight to the classifier.
+   */
+  @Override
+  public Map<String, Double> score(List<Feature> features) throws CleartkProcessingException {
+    return this.backend.score(features);
+  }
+
+  @Override
+  public List<String> classifyBatch(List<List<Feature>> instances) throws CleartkProcessingException {
+    return AsyncBatchClassifier.await(classifyBatchAsync(instances));
+  }
+
+  @Override
+  public CompletableFuture<String> classifyAsync(List<Feature> features) throws CleartkProcessingException {
+    return classifyBatchAsync(Collections.singletonList(features)).thenApply(new Function<List<String>, String>(){
+      @Override
+      public String apply(List<String> labels) {
+        return labels.get(0);
+      }
+    });
+  }
+
+  @Override
+  public ScoredOutcome<String> classifyWithScores(List<Feature> features) throws CleartkProcessingException {
+    return classifyBatchWithScores(Collections.singletonList(features)).get(0);
+  }
+
+  @Override
+  public List<ScoredOutcome<String>> classifyBatchWithScores(List<List<Feature>> instances) throws CleartkProcessingException {
+    return AsyncBatchClassifier.await(classifyBatchWithScoresAsync(instances));
+  }
+
+  @Override
+  public CompletableFuture<List<String>> classifyBatchAsync(List<List<Feature>> instances) throws CleartkProcessingException {
+    return ScoringClassifier.outcomesOf(classifyBatchWithScoresAsync(instances));
+  }
+
+  @Override
+  public CompletableFuture<List<ScoredOutcome<String>>> classifyBatchWithScoresAsync(List<List<Feature>> instances) throws CleartkProcessingException {
+    if(instances.isEmpty()){
+      return CompletableFuture.completedFuture((List<ScoredOutcome<String>>) new ArrayList<ScoredOutcome<String>>());
+    }
+    Request request = new Request(instances);
+    List<Request> batch = null;
+    synchronized(this){
+      if(this.closed){
+        throw new CleartkProcessingException(new IllegalStateException("Scheduler has been closed"));
+      }
+      this.pending.add(request);
+      this.pendingInstances += instances.size();
+      if(this.pendingInstances >= this.batchSize){
+        batch = take();
+      }else if(this.deadline == null){
+        this.deadline = this.timer.schedule(new Runnable(){
+          @Override
+          public void run() {
+            flush();
+          }
+        }, this.deadlineMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    if(batch != null){
+      dispatch(batch);
+    }
+    return request.future;
+  }
+
+  /**
+   * Sends whatever is waiting now, without waiting for the batch to fill.
+   */
+  public void flush(){
+    List<Request> batch;
+    synchronized(this){
+      batch = take();
+    }
+    dispatch(batch);
+  }
+
+  /**
+   * Sends what is waiting and stops the deadline timer; the classifier itself is left open.
+   */
+  @Override
+  public void close(){
+    synchronized(this){
+      this.closed = true;
+    }
+    flush();
+    this.timer.shutdown();
+  }
+
+  private List<Request> take(){
+    List<Request> batch = this.pending;
+    this.pending = new ArrayList<>();
+    this.pendingInstances = 0;
+    if(this.deadline != null){
+      this.deadline.cancel(false);
+      this.deadline = null;
+    }
+    return batch;
+  }
+
+  /**
+   * Sends the instances of all requests as one batch and hands each request its share of
+   * the outcomes.
+   */
+  private void dispatch(final List<Request> batch){
+    if(batch.isEmpty()){
+      return;
+    }
+    List<List<Feature>> instances = new ArrayList<>();
+    for(Request request : batch){
+      instances.addAll(request.instances);
+    }
+    CompletableFuture<List<ScoredOutcome<String>>> outcomes;
+    try{
+      outcomes = ScoringClassifier.submitAllWithScores(this.backend, instances);
+    }catch(CleartkProcessingException | RuntimeException e){
+      for(Request request : batch){
+        request.future.completeExceptionally(e);
+      }
+      return;
+    }
+    outcomes.whenComplete(new BiConsumer<List<ScoredOutcome<String>>, Throwable>(){
+      @Override
+      public void accept(List<ScoredOutcome<String>> outcomes, Throwable failure) {
+        int start = 0;
+        for(Request request : batch){
+          if(failure != null){
+            request.future.completeExceptionally(failure);
+          }else{
+            int end = start + request.instances.size();
+            request.future.complete(new ArrayList<>(outcomes.subList(start, end)));
+            start = end;
+          }
+        }
+      }
+    });
+  }
+}
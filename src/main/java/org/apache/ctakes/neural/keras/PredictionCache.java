@@ -0,0 +1,72 @@
+package org.apache.ctakes.neural.keras;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cleartk.ml.Feature;
+
+/**
+ * Bounded map from an instance, as the classify script would see it, to the label (and
+ * scores) the model gave it. Clinical notes repeat the same token windows a lot, so answering
+ * those from memory saves the round trip to the script. Entries are evicted least recently
+ * used first. One cache belongs to one classifier, so labels of different models never mix.
+ */
+class PredictionCache {
+
+  private final Map<String, ScoredOutcome<String>> labels;
+  private long hits = 0;
+  private long misses = 0;
+
+  PredictionCache(final int capacity){
+    this.labels = new LinkedHashMap<String, ScoredOutcome<String>>(16, 0.75f, true){
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, ScoredOutcome<String>> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * @return the key of an instance: exactly the line the script would be sent
+   */
+  static String key(List<Feature> features){
+    return ScriptClassifierProcess.toLine(features);
+  }
+
+  /**
+   * @return the cached outcome, or null (counted as a miss) if the instance was not seen lately
+   */
+  synchronized ScoredOutcome<String> get(String key){
+    ScoredOutcome<String> label = this.labels.get(key);
+    if(label == null){
+      this.misses++;
+    }else{
+      this.hits++;
+    }
+    return label;
+  }
+
+  synchronized void put(String key, ScoredOutcome<String> label){
+    this.labels.put(key, label);
+  }
+
+  synchronized long getHits(){
+    return this.hits;
+  }
+
+  synchronized long getMisses(){
+    return this.misses;
+  }
+
+  synchronized int size(){
+    return this.labels.size();
+  }
+
+  @Override
+  public synchronized String toString(){
+    return String.format("%d hits, %d misses, %d entries", this.hits, this.misses, this.labels.size());
+  }
+}
@@ -0,0 +1,66 @@
+package org.apache.ctakes.neural.keras;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * The outcome a {@link ScoringClassifier} predicts for one instance, with the probability
+ * the model gives each outcome (for our Keras models, the softmax output).
+ */
+@Beta
+public class ScoredOutcome<OUTCOME_TYPE> {
+
+  private final OUTCOME_TYPE outcome;
+  private final Map<OUTCOME_TYPE, Double> scores;
+
+  public ScoredOutcome(OUTCOME_TYPE outcome, Map<OUTCOME_TYPE, Double> scores){
+    this.outcome = outcome;
+    this.scores = scores;
+  }
+
+  /**
+   * @return an outcome from a classifier that gives no scores
+   */
+  public static <T> ScoredOutcome<T> unscored(T outcome){
+    return new ScoredOutcome<>(outcome, Collections.<T, Double>emptyMap());
+  }
+
+  /**
+   * @return the outcomes of <code>scored</code>, in the same order
+   */
+  public static <T> List<T> outcomes(List<ScoredOutcome<T>> scored){
+    List<T> outcomes = new ArrayList<>(scored.size());
+    for(ScoredOutcome<T> outcome : scored){
+      outcomes.add(outcome.getOutcome());
+    }
+    return outcomes;
+  }
+
+  public OUTCOME_TYPE getOutcome(){
+    return this.outcome;
+  }
+
+  /**
+   * @return the score of every outcome, or an empty map if the classifier gives none
+   */
+  public Map<OUTCOME_TYPE, Double> getScores(){
+    return this.scores;
+  }
+
+  /**
+   * @return the score of the predicted outcome, or 0 if the classifier gives none
+   */
+  public double getConfidence(){
+    Double score = this.scores.get(this.outcome);
+    return score == null ? 0.0 : score;
+  }
+
+  @Override
+  public String toString(){
+    return this.outcome + " " + this.scores;
+  }
+}
@@ -0,0 +1,71 @@
+package org.apache.ctakes.neural.keras;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import org.cleartk.ml.Classifier;
+import org.cleartk.ml.CleartkProcessingException;
+import org.cleartk.ml.Feature;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * A classifier that can give, along with each outcome, the probability of every outcome, so
+ * that callers can keep a confidence with what they annotate and threshold on it later
+ * without running the model again.
+ */
+@Beta
+public interface ScoringClassifier<OUTCOME_TYPE> extends BatchClassifier<OUTCOME_TYPE> {
+
+  public ScoredOutcome<OUTCOME_TYPE> classifyWithScores(List<Feature> features) throws CleartkProcessingException;
+
+  /**
+   * @return one scored outcome per instance, in the same order as <code>instances</code>
+   */
+  public List<ScoredOutcome<OUTCOME_TYPE>> classifyBatchWithScores(List<List<Feature>> instances) throws CleartkProcessingException;
+
+  /**
+   * Like {@link AsyncBatchClassifier#classifyBatchAsync(List)}; classifiers that are not
+   * asynchronous answer right away.
+   */
+  public default CompletableFuture<List<ScoredOutcome<OUTCOME_TYPE>>> classifyBatchWithScoresAsync(List<List<Feature>> instances)
+      throws CleartkProcessingException {
+    return CompletableFuture.completedFuture(classifyBatchWithScores(instances));
+  }
+
+  /**
+   * Submits all instances to <code>classifier</code> like
+   * {@link AsyncBatchClassifier#submitAll(Classifier, List)}, asking for scores if it is a
+   * {@link ScoringClassifier}; the outcomes of other classifiers come without scores.
+   */
+  public static <T> CompletableFuture<List<ScoredOutcome<T>>> submitAllWithScores(Classifier<T> classifier, List<List<Feature>> instances)
+      throws CleartkProcessingException {
+    if(classifier instanceof ScoringClassifier){
+      return ((ScoringClassifier<T>) classifier).classifyBatchWithScoresAsync(instances);
+    }
+    return AsyncBatchClassifier.submitAll(classifier, instances).thenApply(new Function<List<T>, List<ScoredOutcome<T>>>(){
+      @Override
+      public List<ScoredOutcome<T>> apply(List<T> outcomes) {
+        List<ScoredOutcome<T>> scored = new ArrayList<>(outcomes.size());
+        for(T outcome : outcomes){
+          scored.add(ScoredOutcome.unscored(outcome));
+        }
+        return scored;
+      }
+    });
+  }
+
+  /**
+   * @return a future completed with just the outcomes of <code>scored</code>
+   */
+  public static <T> CompletableFuture<List<T>> outcomesOf(CompletableFuture<List<ScoredOutcome<T>>> scored){
+    return scored.thenApply(new Function<List<ScoredOutcome<T>>, List<T>>(){
+      @Override
+      public List<T> apply(List<ScoredOutcome<T>> outcomes) {
+        return ScoredOutcome.outcomes(outcomes);
+      }
+    });
+  }
+}
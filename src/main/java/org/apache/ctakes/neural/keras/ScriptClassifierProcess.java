@@ -0,0 +1,565 @@
+package org.apache.ctakes.neural.keras;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.util.Level;
+import org.apache.uima.util.Logger;
+import org.cleartk.ml.Feature;
+
+/**
+ * One running classify script. Requests are written as soon as they are submitted and a
+ * reader thread completes their futures as the answers come back, so several requests can
+ * be in flight while the caller goes on extracting features. The script answers strictly
+ * in order; the number of instances waiting on it is exposed as its load so that
+ * {@link ScriptStringOutcomeClassifier} can dispatch to the least busy process.
+ * <p>
+ * When the model tables are available the process offers the script a binary protocol
+ * with a {@link #HELLO} line. A script that understands it answers <code>#OK ids</code>
+ * and from then on each request is a big-endian int instance count (0 ends the session)
+ * followed, per instance, by an int length and that many int token ids. The reply is the
+ * int instance count, an int number of scores per instance and, per instance, an int class
+ * id followed by that many float scores. If the script also agrees to {@link #TAGGED},
+ * every request and reply starts with the (positive) int request id, which the reader
+ * checks against the request it expects. If it agrees to {@link #PADDED}, the instance count
+ * is followed by a single row length (the model's maxlen) and the rows, already padded and
+ * truncated the way the model expects, so the script can read the request as one matrix.
+ * With {@link ScriptStringOutcomeClassifier#SHARED_MEMORY_PROPERTY} set, the process also
+ * offers {@link #SHARED_MEMORY}: request and reply frames then go through a
+ * {@link SharedMemoryRing} and the pipe only carries the request id, the marker
+ * {@link #IN_SHARED_MEMORY} and where the frame is. Requests that do not fit in the free
+ * part of the ring go through the pipe as usual. If it agrees to {@link #SCORES}, replies
+ * carry the probability of every label (in class id order) after each class id. Any other
+ * answer (older scripts classify the hello line like an instance) keeps the newline-delimited
+ * text protocol.
+ * <p>
+ * The script's stderr is drained by its own thread so a chatty script cannot block on a full
+ * pipe. When the process dies or answers something unexpected it is killed and every
+ * request still waiting on it fails; {@link ScriptStringOutcomeClassifier} then starts a
+ * replacement and replays them.
+ */
+class ScriptClassifierProcess {
+  private static final Logger logger = UIMAFramework.getLogger(ScriptClassifierProcess.class);
+  public static final String HELLO = "#HELLO";
+  public static final String BINARY_IDS = "ids";
+  public static final String TAGGED = "tagged";
+  public static final String PADDED = "padded";
+  public static final String SHARED_MEMORY = "shm";
+  public static final String SCORES = "scores";
+  static final int IN_SHARED_MEMORY = -1;
+
+  private Process classifierProcess = null;
+  private final int model;
+  private KerasModelTables tables = null;
+  private boolean tagged = false;
+  private boolean padded = false;
+  private int[] row = null;
+  private SharedMemoryRing ring = null;
+  private PrintStream toClassifier = null;
+  private BufferedReader reader = null;
+  private DataOutputStream binaryOut = null;
+  private DataInputStream binaryIn = null;
+  private BufferedReader errReader = null;
+  private final AtomicInteger load = new AtomicInteger();
+  private final BlockingQueue<Request> pending = new LinkedBlockingQueue<>();
+  private int nextRequestId = 1;
+  private Thread replyReader = null;
+  private volatile IOException failure = null;
+  private volatile Request current = null;
+  private volatile long currentSince = 0;
+
+  /**
+   * A submitted request waiting for its answer.
+   */
+  private static class Request {
+    final int id;
+    final int size;
+    final CompletableFuture<List<ScoredOutcome<String>>> future = new CompletableFuture<>();
+    // where the reply goes if the request was written to shared memory:
+    int replyOffset = -1;
+    int replyCapacity = 0;
+
+    Request(int id, int size){
+      this.id = id;
+      this.size = size;
+    }
+  }
+
+  /**
+   * @param model which of the packaged models (<code>model_N</code>) the script loads
+   * @param tables the model's vocabulary and labels, or null to use the text protocol
+   * @param startupTimeoutMillis how long the script may take to load the model and answer
+   * the handshake before it is killed, or 0 to wait forever
+   */
+  ScriptClassifierProcess(File classifyScript, File modelDir, int model, KerasModelTables tables, long startupTimeoutMillis) throws IOException {
+    // start the classifier process running, give it a chance to read the model, and
+    // set classifierProcess to the running classifier
+    this.model = model;
+    this.classifierProcess = Runtime.getRuntime().exec(new String[]{
+        classifyScript.getAbsolutePath(),
+        modelDir.getAbsolutePath(),
+        String.valueOf(model)});
+    final CountDownLatch started = new CountDownLatch(1);
+    final AtomicBoolean timedOut = new AtomicBoolean(false);
+    if(startupTimeoutMillis > 0){
+      // the reads below block until the script writes, so a hung script is killed to end them:
+      final long timeout = startupTimeoutMillis;
+      startDaemon("script-classifier-startup", new Runnable(){
+        @Override
+        public void run() {
+          try{
+            if(!started.await(timeout, TimeUnit.MILLISECONDS)){
+              timedOut.set(true);
+              kill();
+            }
+          }catch(InterruptedException e){
+            // nothing to guard any more
+          }
+        }
+      });
+    }
+    try{
+      start(tables);
+    }catch(IOException e){
+      kill();
+      if(!timedOut.get()){
+        throw e;
+      }
+    }finally{
+      started.countDown();
+    }
+    if(timedOut.get()){
+      throw new IOException("Classify script did not start within " + startupTimeoutMillis + "ms");
+    }
+
+    this.replyReader = startDaemon("script-classifier-replies", new Runnable(){
+      @Override
+      public void run() {
+        readReplies();
+      }
+    });
+  }
+
+  /**
+   * Waits for the script to load the model and agrees on a protocol with it.
+   */
+  private void start(KerasModelTables tables) throws IOException {
+    errReader = new BufferedReader(new InputStreamReader(classifierProcess.getErrorStream()));
+    errReader.readLine(); // read line about which backend it is using.
+    startDaemon("script-classifier-stderr", new Runnable(){
+      @Override
+      public void run() {
+        drainErrors();
+      }
+    });
+
+    OutputStream out = classifierProcess.getOutputStream();
+    InputStream in = classifierProcess.getInputStream();
+    int ringMegabytes = Integer.getInteger(ScriptStringOutcomeClassifier.SHARED_MEMORY_PROPERTY, 0);
+    SharedMemoryRing offeredRing = null;
+    if(tables != null && ringMegabytes > 0){
+      try{
+        offeredRing = new SharedMemoryRing(ringMegabytes << 20);
+      }catch(IOException e){
+        logger.log(Level.WARNING, "Could not create shared memory for the classify script, using pipes only", e);
+      }
+    }
+    List<String> agreed;
+    try{
+      agreed = tables == null ? new ArrayList<String>() : handshake(out, in, offeredRing);
+    }finally{
+      if(offeredRing != null){
+        // the script has mapped it by the time it answers:
+        offeredRing.unlink();
+      }
+    }
+    if(agreed.contains(BINARY_IDS)){
+      this.tables = tables;
+      this.tagged = agreed.contains(TAGGED);
+      this.padded = agreed.contains(PADDED);
+      this.row = new int[tables.getMaxlen()];
+      if(this.tagged && this.padded && agreed.contains(SHARED_MEMORY)){
+        this.ring = offeredRing;
+      }
+      binaryOut = new DataOutputStream(new BufferedOutputStream(out));
+      binaryIn = new DataInputStream(new BufferedInputStream(in));
+    }else{
+      toClassifier = new PrintStream(out);
+      reader = new BufferedReader(new InputStreamReader(in));
+    }
+  }
+
+  private static Thread startDaemon(String name, Runnable body){
+    Thread thread = new Thread(body, name);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * Offers the binary protocol and returns the capabilities the script agreed to. Reads the
+   * answer a byte at a time so nothing after it is buffered away from the stream used for
+   * the rest of the session.
+   */
+  private static List<String> handshake(OutputStream out, InputStream in, SharedMemoryRing ring) throws IOException {
+    String offer = HELLO + " " + BINARY_IDS + " " + TAGGED + " " + PADDED + " " + SCORES;
+    if(ring != null){
+      offer += " " + SHARED_MEMORY + "=" + ring.getFile().getAbsolutePath();
+    }
+    out.write((offer + "\n").getBytes("US-ASCII"));
+    out.flush();
+
+    StringBuilder answer = new StringBuilder();
+    int b;
+    while((b = in.read()) != -1 && b != '\n'){
+      answer.append((char) b);
+    }
+    List<String> fields = Arrays.asList(answer.toString().trim().split("\\s+"));
+    if(!fields.get(0).equals("#OK")){
+      return new ArrayList<>();
+    }
+    return fields.subList(1, fields.size());
+  }
+
+  /**
+   * @return the number of the packaged model the script runs
+   */
+  int getModel(){
+    return this.model;
+  }
+
+  boolean isBinary(){
+    return this.binaryOut != null;
+  }
+
+  /**
+   * @return whether the process has died or been given up on; it answers nothing from then on
+   */
+  boolean isFailed(){
+    return this.failure != null;
+  }
+
+  /**
+   * @return whether the script has been working on one request for longer than the timeout
+   */
+  boolean isStuck(long timeoutNanos){
+    return this.current != null && System.nanoTime() - this.currentSince > timeoutNanos;
+  }
+
+  /**
+   * Kills the process; whatever is waiting on it fails once the reader sees its output end.
+   */
+  void kill(){
+    this.classifierProcess.destroyForcibly();
+  }
+
+  /**
+   * @return the number of instances submitted to this process and not yet answered
+   */
+  int getLoad(){
+    return load.get();
+  }
+
+  /**
+   * Counts <code>instances</code> towards the load of this process before the caller submits
+   * them, so that concurrent dispatchers see it as busy. The reply reader releases them.
+   */
+  void reserve(int instances){
+    load.addAndGet(instances);
+  }
+
+  /**
+   * Writes a batch of instances without waiting for the answer; the caller must have
+   * reserved <code>instances.size()</code> instances.
+   *
+   * @return a future completed with one label per instance, with scores if the script gives
+   * them
+   */
+  CompletableFuture<List<ScoredOutcome<String>>> submit(List<List<Feature>> instances) {
+    Request request;
+    synchronized(this){
+      request = new Request(nextRequestId, instances.size());
+      // ids stay positive so that a lone 0 still ends the session:
+      nextRequestId = nextRequestId == Integer.MAX_VALUE ? 1 : nextRequestId + 1;
+      if(this.failure != null){
+        fail(request, this.failure);
+        return request.future;
+      }
+      // queue before writing so the reader never sees an answer it does not expect:
+      this.pending.add(request);
+      try{
+        if(isBinary()){
+          writeFrame(request, instances);
+        }else if(instances.size() == 1){
+          this.toClassifier.println(toLine(instances.get(0)));
+          this.toClassifier.flush();
+        }else{
+          // write the whole batch and flush once:
+          this.toClassifier.println(ScriptStringOutcomeClassifier.BATCH_HEADER + " " + instances.size());
+          for(List<Feature> features : instances){
+            this.toClassifier.println(toLine(features));
+          }
+          this.toClassifier.flush();
+        }
+      }catch(IOException e){
+        // the answers would no longer line up with the requests, so give up on the process:
+        kill();
+        failAll(e);
+      }
+    }
+    return request.future;
+  }
+
+  /**
+   * Ends the session and waits for the script to exit, killing it if it does not within
+   * <code>timeoutMillis</code>.
+   */
+  void stop(long timeoutMillis) throws InterruptedException {
+    synchronized(this){
+      try{
+        if(isBinary()){
+          this.binaryOut.writeInt(0);
+          this.binaryOut.flush();
+        }else{
+          this.toClassifier.print('\n');
+          this.toClassifier.flush();
+        }
+      }catch(IOException e){
+        // already gone
+      }
+    }
+    if(!classifierProcess.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)){
+      logger.log(Level.WARNING, "Classify script did not exit within " + timeoutMillis + "ms, killing it");
+      kill();
+    }
+    this.replyReader.interrupt();
+  }
+
+  /**
+   * Body of the reader thread: takes the requests in the order they were written and
+   * completes each with the next answer from the script.
+   */
+  private void readReplies(){
+    while(true){
+      Request request;
+      try {
+        request = this.pending.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      this.currentSince = System.nanoTime();
+      this.current = request;
+      try {
+        List<ScoredOutcome<String>> outcomes = isBinary() ? readFrame(request) : readLines(request);
+        this.current = null;
+        finish(request);
+        request.future.complete(outcomes);
+      } catch (IOException e) {
+        this.current = null;
+        // the answers no longer line up with the requests, so make sure the process is gone:
+        kill();
+        synchronized(this){
+          fail(request, e);
+          failAll(e);
+        }
+        return;
+      }
+    }
+  }
+
+  private void finish(Request request){
+    load.addAndGet(-request.size);
+  }
+
+  private void fail(Request request, IOException e){
+    finish(request);
+    request.future.completeExceptionally(e);
+  }
+
+  private synchronized void failAll(IOException e){
+    this.failure = e;
+    List<Request> remaining = new ArrayList<>();
+    this.pending.drainTo(remaining);
+    for(Request request : remaining){
+      fail(request, e);
+    }
+  }
+
+  private void writeFrame(Request request, List<List<Feature>> instances) throws IOException {
+    if(this.tagged){
+      this.binaryOut.writeInt(request.id);
+    }
+    if(this.ring != null && writeShared(request, instances)){
+      this.binaryOut.flush();
+      return;
+    }
+    this.binaryOut.writeInt(instances.size());
+    if(this.padded){
+      this.binaryOut.writeInt(this.row.length);
+      for(List<Feature> features : instances){
+        this.tables.encode(features, this.row);
+        for(int id : this.row){
+          this.binaryOut.writeInt(id);
+        }
+      }
+    }else{
+      for(List<Feature> features : instances){
+        int[] ids = this.tables.lookup(features);
+        this.binaryOut.writeInt(ids.length);
+        for(int id : ids){
+          this.binaryOut.writeInt(id);
+        }
+      }
+    }
+    this.binaryOut.flush();
+  }
+
+  /**
+   * Writes the padded frame of a request into the ring, followed by room for its reply, and
+   * signals where it is.
+   *
+   * @return false if the ring has no room for it right now
+   */
+  private boolean writeShared(Request request, List<List<Feature>> instances) throws IOException {
+    int frameSize = 8 + 4 * instances.size() * this.row.length;
+    int replyCapacity = 8 + 4 * instances.size() * (1 + this.tables.getNumLabels());
+    int offset = this.ring.allocate(frameSize + replyCapacity);
+    if(offset < 0){
+      return false;
+    }
+    ByteBuffer frame = this.ring.region(offset, frameSize);
+    frame.putInt(instances.size());
+    frame.putInt(this.row.length);
+    IntBuffer rows = frame.asIntBuffer();
+    for(List<Feature> features : instances){
+      this.tables.encode(features, this.row);
+      rows.put(this.row);
+    }
+    request.replyOffset = offset + frameSize;
+    request.replyCapacity = replyCapacity;
+
+    this.binaryOut.writeInt(IN_SHARED_MEMORY);
+    this.binaryOut.writeInt(offset);
+    this.binaryOut.writeInt(frameSize);
+    this.binaryOut.writeInt(replyCapacity);
+    return true;
+  }
+
+  private List<ScoredOutcome<String>> readFrame(Request request) throws IOException {
+    if(this.tagged){
+      int id = this.binaryIn.readInt();
+      if(id != request.id){
+        throw new IOException("Classifier answered request " + id + " instead of " + request.id);
+      }
+    }
+    int count = this.binaryIn.readInt();
+    List<ScoredOutcome<String>> outcomes;
+    if(count == IN_SHARED_MEMORY){
+      if(request.replyOffset < 0){
+        throw new IOException("Classifier answered request " + request.id + " in shared memory but it was not sent there");
+      }
+      ByteBuffer reply = this.ring.region(request.replyOffset, request.replyCapacity);
+      outcomes = readOutcomes(request, reply.getInt(), reply.getInt(), reply);
+    }else{
+      outcomes = readOutcomes(request, count, this.binaryIn.readInt(), null);
+    }
+    if(request.replyOffset >= 0){
+      this.ring.free();
+    }
+    return outcomes;
+  }
+
+  /**
+   * Reads the class ids and scores of a reply, from shared memory if <code>shared</code> is
+   * not null and from the pipe otherwise.
+   */
+  private List<ScoredOutcome<String>> readOutcomes(Request request, int count, int numScores, ByteBuffer shared) throws IOException {
+    if(count != request.size){
+      throw new IOException("Classifier answered " + count + " instances instead of " + request.size);
+    }
+    if(numScores != 0 && numScores != this.tables.getNumLabels()){
+      throw new IOException("Classifier sent " + numScores + " scores for " + this.tables.getNumLabels() + " labels");
+    }
+    List<ScoredOutcome<String>> outcomes = new ArrayList<>(count);
+    for(int i = 0; i < count; i++){
+      String label = this.tables.getLabel(shared != null ? shared.getInt() : this.binaryIn.readInt());
+      if(numScores == 0){
+        outcomes.add(ScoredOutcome.unscored(label));
+        continue;
+      }
+      Map<String, Double> scores = new LinkedHashMap<>();
+      for(int j = 0; j < numScores; j++){
+        scores.put(this.tables.getLabel(j), (double) (shared != null ? shared.getFloat() : this.binaryIn.readFloat()));
+      }
+      outcomes.add(new ScoredOutcome<>(label, scores));
+    }
+    return outcomes;
+  }
+
+  private List<ScoredOutcome<String>> readLines(Request request) throws IOException {
+    List<ScoredOutcome<String>> outcomes = new ArrayList<>(request.size);
+    for(int i = 0; i < request.size; i++){
+      String line = reader.readLine();
+      if(line == null){
+        throw new EOFException("Classifier process exited with " + (request.size - i) + " instances unanswered");
+      }
+      outcomes.add(ScoredOutcome.unscored(line));
+    }
+    return outcomes;
+  }
+
+  static String toLine(List<Feature> features){
+    StringBuilder buf = new StringBuilder();
+
+//    for (FeatureVector.Entry featureNode : this.featuresEncoder.encodeAll(features)) {
+//      buf.append(String.format(Locale.US, " %d:%.7f", featureNode.index, featureNode.value));
+//    }
+    for (int i = 0; i < features.size(); i ++){
+    	buf.append(features.get(i).getValue());
+    	if( i < features.size()-1){
+    		buf.append(" ");
+    	}
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Body of the stderr thread: passes everything the script reports on to the log until it
+   * exits.
+   */
+  private void drainErrors(){
+    try{
+      String eLine;
+      while((eLine = errReader.readLine()) != null){
+        logger.log(Level.WARNING, eLine);
+      }
+    }catch(IOException e){
+      // the process is gone
+    }
+  }
+}
@@ -1,14 +1,31 @@
 package org.apache.ctakes.neural.keras;
 
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import org.apache.uima.UIMAFramework;
+import org.apache.uima.UimaContext;
+import org.apache.uima.fit.descriptor.ConfigurationParameter;
+import org.apache.uima.fit.factory.initializable.Initializable;
+import org.apache.uima.resource.ResourceInitializationException;
 import org.apache.uima.util.Level;
 import org.apache.uima.util.Logger;
 import org.cleartk.ml.CleartkProcessingException;
@@ -30,13 +47,97 @@ import com.google.common.annotations.Beta;
  * 
  */
 @Beta
-public abstract class ScriptStringOutcomeClassifier extends Classifier_ImplBase<FeatureVector, String, Integer> {
+public abstract class ScriptStringOutcomeClassifier extends Classifier_ImplBase<FeatureVector, String, Integer> implements AsyncBatchClassifier<String>, ScoringClassifier<String>, Initializable, Closeable {
+  private static final Logger logger = UIMAFramework.getLogger(ScriptStringOutcomeClassifier.class);
+
+  /**
+   * Header line announcing that the next N lines form one batch; the script answers with
+   * N lines, one label per instance, and flushes once.
+   */
+  public static final String BATCH_HEADER = "#BATCH";
+
+  /**
+   * System property giving the size, in megabytes, of a shared memory ring per classify
+   * process. When it is set (and the script supports it) request and reply frames are
+   * exchanged through a memory-mapped file in <code>/dev/shm</code> instead of being copied
+   * through the pipes, which then only carry a few bytes per request.
+   */
+  public static final String SHARED_MEMORY_PROPERTY = "ctakes.neural.keras.shm";
+
+  /**
+   * Number of classify script processes to run against the unpacked model. Each process
+   * is single-threaded, so running several lets one annotator use several cores; batches
+   * are split across them and single instances go to the least loaded one.
+   */
+  public static final String PARAM_NUM_WORKERS = "ScriptClassifierWorkers";
+  @ConfigurationParameter(name=PARAM_NUM_WORKERS, mandatory=false)
+  public int numWorkers = 1;
+
+  /**
+   * Maximum number of requests submitted and not yet answered, over all processes.
+   * {@link #classifyAsync(List)} and {@link #classifyBatchAsync(List)} block when it is
+   * reached, which bounds the memory held by callers that run far ahead of the scripts.
+   */
+  public static final String PARAM_MAX_IN_FLIGHT = "ScriptClassifierMaxInFlight";
+  @ConfigurationParameter(name=PARAM_MAX_IN_FLIGHT, mandatory=false)
+  public int maxInFlight = 64;
+
+  /**
+   * Number of recent predictions to remember, keyed on the exact token sequence of the
+   * instance; repeated instances are then answered without asking the script. 0 (the
+   * default) disables the cache.
+   */
+  public static final String PARAM_PREDICTION_CACHE_SIZE = "ScriptClassifierCacheSize";
+  @ConfigurationParameter(name=PARAM_PREDICTION_CACHE_SIZE, mandatory=false)
+  public int predictionCacheSize = 0;
+
+  /**
+   * Longest time, in milliseconds, a classify process may spend answering one request. A
+   * process that takes longer is killed and restarted, and its requests are replayed. Also
+   * bounds how long a process started after initialization may take to load the model; one
+   * that takes longer is killed and counts as failing to start. 0 (the default) waits forever.
+   */
+  public static final String PARAM_REQUEST_TIMEOUT = "ScriptClassifierTimeoutMillis";
+  @ConfigurationParameter(name=PARAM_REQUEST_TIMEOUT, mandatory=false)
+  public int requestTimeoutMillis = 0;
+
+  /**
+   * Number of times a request is sent before its failure is reported to the caller. When a
+   * process crashes, hangs or answers out of turn it is replaced by a new one and the
+   * requests it had not answered are sent again, so a bad instance can only take down a
+   * bounded number of processes.
+   */
+  public static final String PARAM_MAX_ATTEMPTS = "ScriptClassifierAttempts";
+  @ConfigurationParameter(name=PARAM_MAX_ATTEMPTS, mandatory=false)
+  public int maxAttempts = 2;
+
+  /**
+   * How the models packaged in the model directory are combined, see
+   * {@link KerasEnsemble#PARAM_COMBINE}. The default, {@link KerasEnsemble#COMBINE_SINGLE},
+   * only runs <code>model_0</code>. Otherwise {@link #numWorkers} processes are started for
+   * every model, each loading just that model, and each request goes to one process per
+   * model so that the models answer it in parallel. Their scores are averaged or voted on
+   * as in {@link KerasEnsemble}; a decided vote answers without waiting for the remaining
+   * processes. Needs the model tables, since only the binary protocol carries scores.
+   */
+  @ConfigurationParameter(name=KerasEnsemble.PARAM_COMBINE, mandatory=false)
+  public String combine = KerasEnsemble.COMBINE_SINGLE;
+
+  /**
+   * Time, in milliseconds, each process gets to exit after the session ends before it is killed.
+   */
+  private static final long STOP_TIMEOUT_MILLIS = 10000;
+
   File modelDir = null;
-  Process classifierProcess = null;
-  PrintStream toClassifier = null;
-  BufferedReader reader = null;
-  BufferedReader errReader = null;
-  Logger logger = UIMAFramework.getLogger(ScriptStringOutcomeClassifier.class);
+  File classifyScript = null;
+  KerasModelTables tables = null;
+  List<ScriptClassifierProcess> workers = new CopyOnWriteArrayList<>();
+  Semaphore inFlight = new Semaphore(maxInFlight);
+  PredictionCache predictions = null;
+  int ensembleSize = 1;
+  private ScheduledExecutorService watchdog = null;
+  private final Map<ScriptClassifierProcess, CompletableFuture<Boolean>> replacements = new HashMap<>();
+  private final AtomicBoolean closed = new AtomicBoolean(false);
 
   public ScriptStringOutcomeClassifier(
       FeaturesEncoder<FeatureVector> featuresEncoder,
@@ -46,7 +147,6 @@ public abstract class ScriptStringOutcomeClassifier extends Classifier_ImplBase<
     super(featuresEncoder, outcomeEncoder);
     this.modelDir = modelDir;
     
-    File classifyScript = null;
     for(File file : scriptDir.listFiles()){
       if(file.getName().startsWith("classify.sh")){
         if(classifyScript != null){
@@ -61,19 +161,140 @@ public abstract class ScriptStringOutcomeClassifier extends Classifier_ImplBase<
     }
     
     try {
-      this.classifierProcess = Runtime.getRuntime().exec(new String[]{
-          classifyScript.getAbsolutePath(),
-          modelDir.getAbsolutePath()});
-      // start the classifier process running, give it a chance to read the model, and
-      // set classifierProcess to the running classifier
-      toClassifier = new PrintStream(classifierProcess.getOutputStream());
-      reader = new BufferedReader(new InputStreamReader(classifierProcess.getInputStream()));
-      errReader = new BufferedReader(new InputStreamReader(classifierProcess.getErrorStream()));
-      errReader.readLine(); // read line about which backend it is using.
+      // with the tables packaged next to the model the processes can talk in token ids:
+      if(KerasModelTables.exist(modelDir)){
+        this.tables = new KerasModelTables(modelDir);
+      }
     } catch (IOException e) {
       e.printStackTrace();
       throw new RuntimeException(e);
     }
+
+    // always have one process ready so the classifier works without a UimaContext:
+    addWorkers(0, 1);
+  }
+
+  @Override
+  public void initialize(UimaContext context)
+      throws ResourceInitializationException {
+    String combineParam = (String) context.getConfigParameterValue(KerasEnsemble.PARAM_COMBINE);
+    if(combineParam != null){
+      this.combine = combineParam;
+    }
+    try{
+      KerasEnsemble.checkCombine(this.combine);
+    }catch(IllegalArgumentException e){
+      throw new ResourceInitializationException(e);
+    }
+    if(!this.combine.equals(KerasEnsemble.COMBINE_SINGLE)){
+      if(this.tables == null){
+        throw new ResourceInitializationException(new IOException("Combining models needs the model tables in " + this.modelDir));
+      }
+      this.ensembleSize = KerasEnsemble.count(this.modelDir);
+    }
+
+    // read before starting processes, as it also bounds how long they may take to start:
+    Integer timeoutParam = (Integer) context.getConfigParameterValue(PARAM_REQUEST_TIMEOUT);
+    if(timeoutParam != null){
+      this.requestTimeoutMillis = timeoutParam;
+    }
+
+    Integer workerParam = (Integer) context.getConfigParameterValue(PARAM_NUM_WORKERS);
+    if(workerParam != null){
+      this.numWorkers = workerParam;
+    }
+    for(int model = 0; model < this.ensembleSize; model++){
+      addWorkers(model, this.numWorkers - countWorkers(model));
+    }
+
+    Integer inFlightParam = (Integer) context.getConfigParameterValue(PARAM_MAX_IN_FLIGHT);
+    if(inFlightParam != null){
+      this.maxInFlight = inFlightParam;
+      this.inFlight = new Semaphore(this.maxInFlight);
+    }
+
+    Integer cacheParam = (Integer) context.getConfigParameterValue(PARAM_PREDICTION_CACHE_SIZE);
+    if(cacheParam != null){
+      this.predictionCacheSize = cacheParam;
+    }
+    if(this.predictionCacheSize > 0){
+      this.predictions = new PredictionCache(this.predictionCacheSize);
+    }
+
+    if(this.requestTimeoutMillis > 0 && this.watchdog == null){
+      startWatchdog();
+    }
+
+    Integer attemptsParam = (Integer) context.getConfigParameterValue(PARAM_MAX_ATTEMPTS);
+    if(attemptsParam != null){
+      this.maxAttempts = attemptsParam;
+    }
+  }
+
+  /**
+   * Checks a few times per timeout period for processes stuck on a request and kills them;
+   * their requests then fail and are replayed on a replacement.
+   */
+  private void startWatchdog(){
+    this.watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+      @Override
+      public Thread newThread(Runnable body) {
+        Thread thread = new Thread(body, "script-classifier-watchdog");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(this.requestTimeoutMillis);
+    long period = Math.max(this.requestTimeoutMillis / 4, 10);
+    this.watchdog.scheduleAtFixedRate(new Runnable(){
+      @Override
+      public void run() {
+        for(ScriptClassifierProcess worker : workers){
+          if(worker.isStuck(timeoutNanos)){
+            logger.log(Level.WARNING, "Classify process has not answered within " + requestTimeoutMillis + "ms, killing it");
+            worker.kill();
+          }
+        }
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void addWorkers(int model, int count){
+    try {
+      for(int i = 0; i < count; i++){
+        // all processes read the same unpacked model directory:
+        this.workers.add(new ScriptClassifierProcess(classifyScript, modelDir, model, tables, requestTimeoutMillis));
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      throw new RuntimeException(e);
+    }
+  }
+
+  private int countWorkers(int model){
+    int count = 0;
+    for(ScriptClassifierProcess worker : this.workers){
+      if(worker.getModel() == model) count++;
+    }
+    return count;
+  }
+
+  /**
+   * Picks the process running <code>model</code> with the fewest outstanding instances and
+   * reserves <code>instances</code> on it before releasing the choice to other callers.
+   */
+  private ScriptClassifierProcess reserveWorker(int model, int instances){
+    synchronized(this.workers){
+      ScriptClassifierProcess best = null;
+      for(ScriptClassifierProcess worker : this.workers){
+        if(worker.getModel() != model) continue;
+        if(best == null || worker.getLoad() < best.getLoad()){
+          best = worker;
+        }
+      }
+      best.reserve(instances);
+      return best;
+    }
   }
 
   public String classify(List<Feature> features)
@@ -81,43 +302,314 @@ public abstract class ScriptStringOutcomeClassifier extends Classifier_ImplBase<
     // Encode the features and pass them to the standard input of the classifier process
     // and then read the standard output prediction, which will be in the string format expected by
     // the annotator.    
+    return AsyncBatchClassifier.await(classifyAsync(features));
+  }
 
-    StringBuilder buf = new StringBuilder();
-    
-//    for (FeatureVector.Entry featureNode : this.featuresEncoder.encodeAll(features)) {
-//      buf.append(String.format(Locale.US, " %d:%.7f", featureNode.index, featureNode.value));  
-//    }
-    for (int i = 0; i < features.size(); i ++){
-    	buf.append(features.get(i).getValue());
-    	if( i < features.size()-1){
-    		buf.append(" ");
-    	}
-    }
-
-    this.toClassifier.println(buf);
-    this.toClassifier.flush();
-    
-    String line = "";
-    String eLine = "";
+  @Override
+  public List<String> classifyBatch(List<List<Feature>> instances)
+      throws CleartkProcessingException {
+    return AsyncBatchClassifier.await(classifyBatchAsync(instances));
+  }
+
+  @Override
+  public ScoredOutcome<String> classifyWithScores(List<Feature> features)
+      throws CleartkProcessingException {
+    return AsyncBatchClassifier.await(classifyBatchWithScoresAsync(Collections.singletonList(features))).get(0);
+  }
+
+  @Override
+  public List<ScoredOutcome<String>> classifyBatchWithScores(List<List<Feature>> instances)
+      throws CleartkProcessingException {
+    return AsyncBatchClassifier.await(classifyBatchWithScoresAsync(instances));
+  }
+
+  @Override
+  public CompletableFuture<String> classifyAsync(List<Feature> features)
+      throws CleartkProcessingException {
+    final PredictionCache cache = this.predictions;
+    final String key = cache == null ? null : PredictionCache.key(features);
+    if(cache != null){
+      ScoredOutcome<String> outcome = cache.get(key);
+      if(outcome != null){
+        return CompletableFuture.completedFuture(outcome.getOutcome());
+      }
+    }
+    return submit(Collections.singletonList(features)).thenApply(new Function<List<ScoredOutcome<String>>, String>(){
+      @Override
+      public String apply(List<ScoredOutcome<String>> outcomes) {
+        if(cache != null){
+          cache.put(key, outcomes.get(0));
+        }
+        return outcomes.get(0).getOutcome();
+      }
+    });
+  }
+
+  @Override
+  public CompletableFuture<List<String>> classifyBatchAsync(List<List<Feature>> instances)
+      throws CleartkProcessingException {
+    return ScoringClassifier.outcomesOf(classifyBatchWithScoresAsync(instances));
+  }
+
+  /**
+   * Scores come from scripts that agree to send them; the outcomes of older scripts have none.
+   */
+  @Override
+  public CompletableFuture<List<ScoredOutcome<String>>> classifyBatchWithScoresAsync(List<List<Feature>> instances)
+      throws CleartkProcessingException {
+    final PredictionCache cache = this.predictions;
+    if(cache == null){
+      return dispatch(instances);
+    }
+
+    // answer what we can from the cache and only send the rest:
+    final List<ScoredOutcome<String>> outcomes = new ArrayList<>(instances.size());
+    final List<String> missedKeys = new ArrayList<>();
+    final List<Integer> missedIndices = new ArrayList<>();
+    List<List<Feature>> missed = new ArrayList<>();
+    for(int i = 0; i < instances.size(); i++){
+      String key = PredictionCache.key(instances.get(i));
+      ScoredOutcome<String> outcome = cache.get(key);
+      outcomes.add(outcome);
+      if(outcome == null){
+        missedKeys.add(key);
+        missedIndices.add(i);
+        missed.add(instances.get(i));
+      }
+    }
+    if(missed.isEmpty()){
+      return CompletableFuture.completedFuture(outcomes);
+    }
+    return dispatch(missed).thenApply(new Function<List<ScoredOutcome<String>>, List<ScoredOutcome<String>>>(){
+      @Override
+      public List<ScoredOutcome<String>> apply(List<ScoredOutcome<String>> answers) {
+        for(int j = 0; j < answers.size(); j++){
+          outcomes.set(missedIndices.get(j), answers.get(j));
+          cache.put(missedKeys.get(j), answers.get(j));
+        }
+        return outcomes;
+      }
+    });
+  }
+
+  /**
+   * Splits a batch over the processes and gathers their answers in order.
+   */
+  private CompletableFuture<List<ScoredOutcome<String>>> dispatch(List<List<Feature>> instances)
+      throws CleartkProcessingException {
+    if(instances.isEmpty()){
+      return CompletableFuture.completedFuture((List<ScoredOutcome<String>>) new ArrayList<ScoredOutcome<String>>());
+    }
+
+    // every chunk takes one process per model:
+    int numChunks = Math.min(this.workers.size() / this.ensembleSize, instances.size());
+    if(numChunks == 1){
+      return submit(instances);
+    }
+
+    // split the batch into one contiguous chunk per process so they work on it concurrently:
+    int chunkSize = (instances.size() + numChunks - 1) / numChunks;
+    final List<CompletableFuture<List<ScoredOutcome<String>>>> futures = new ArrayList<>();
+    for(int start = 0; start < instances.size(); start += chunkSize){
+      futures.add(submit(instances.subList(start, Math.min(start + chunkSize, instances.size()))));
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).thenApply(new Function<Void, List<ScoredOutcome<String>>>(){
+      @Override
+      public List<ScoredOutcome<String>> apply(Void done) {
+        List<ScoredOutcome<String>> outcomes = new ArrayList<>();
+        for(CompletableFuture<List<ScoredOutcome<String>>> future : futures){
+          outcomes.addAll(future.join());
+        }
+        return outcomes;
+      }
+    });
+  }
+
+  /**
+   * Sends one request to the least loaded process once the number of requests in flight
+   * allows it.
+   */
+  private CompletableFuture<List<ScoredOutcome<String>>> submit(List<List<Feature>> instances)
+      throws CleartkProcessingException {
+    final Semaphore permits = this.inFlight;
     try {
-      line = reader.readLine();
-      if(line == null){
-         while((eLine = errReader.readLine()) != null){
-           logger.log(Level.SEVERE, eLine);
-         }
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CleartkProcessingException(e);
+    }
+    CompletableFuture<List<ScoredOutcome<String>>> future = this.ensembleSize == 1 ? attempt(instances, 0, 1) : combine(instances);
+    future.whenComplete(new BiConsumer<List<ScoredOutcome<String>>, Throwable>(){
+      @Override
+      public void accept(List<ScoredOutcome<String>> outcomes, Throwable failure) {
+        permits.release();
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Sends a request to one process per model and answers it with the combination of their
+   * scores once the models still working on it cannot change the result.
+   */
+  private CompletableFuture<List<ScoredOutcome<String>>> combine(List<List<Feature>> instances){
+    final CompletableFuture<List<ScoredOutcome<String>>> combined = new CompletableFuture<>();
+    final KerasEnsemble.Tally tally = new KerasEnsemble.Tally(this.ensembleSize, this.combine.equals(KerasEnsemble.COMBINE_VOTE));
+    for(int model = 0; model < this.ensembleSize; model++){
+      attempt(instances, model, 1).whenComplete(new BiConsumer<List<ScoredOutcome<String>>, Throwable>(){
+        @Override
+        public void accept(List<ScoredOutcome<String>> outcomes, Throwable failure) {
+          synchronized(tally){
+            if(combined.isDone()){
+              return;
+            }
+            float[][] scores = failure == null ? toScores(outcomes) : null;
+            if(failure != null){
+              combined.completeExceptionally(failure);
+            }else if(scores == null){
+              combined.completeExceptionally(new IOException("The classify script sent no scores to combine"));
+            }else if(tally.add(scores)){
+              combined.complete(toOutcomes(tally));
+            }
+          }
+        }
+      });
+    }
+    return combined;
+  }
+
+  /**
+   * @return the scores of each outcome in class id order, or null if they have none
+   */
+  private float[][] toScores(List<ScoredOutcome<String>> outcomes){
+    float[][] scores = new float[outcomes.size()][this.tables.getNumLabels()];
+    for(int i = 0; i < scores.length; i++){
+      Map<String, Double> labelScores = outcomes.get(i).getScores();
+      if(labelScores.isEmpty()){
+        return null;
+      }
+      for(int j = 0; j < scores[i].length; j++){
+        scores[i][j] = labelScores.get(this.tables.getLabel(j)).floatValue();
+      }
+    }
+    return scores;
+  }
+
+  private List<ScoredOutcome<String>> toOutcomes(KerasEnsemble.Tally tally){
+    float[][] distributions = new float[tally.getNumInstances()][];
+    int[] classIds = tally.classIds(distributions);
+    List<ScoredOutcome<String>> outcomes = new ArrayList<>(classIds.length);
+    for(int i = 0; i < classIds.length; i++){
+      Map<String, Double> scores = new LinkedHashMap<>();
+      for(int j = 0; j < distributions[i].length; j++){
+        scores.put(this.tables.getLabel(j), (double) distributions[i][j]);
       }
+      outcomes.add(new ScoredOutcome<>(this.tables.getLabel(classIds[i]), scores));
+    }
+    return outcomes;
+  }
+
+  /**
+   * Sends a request to a process running <code>model</code> and, if the process fails before
+   * answering it, replaces the process and sends the request again until it has been tried
+   * {@link #maxAttempts} times.
+   */
+  private CompletableFuture<List<ScoredOutcome<String>>> attempt(final List<List<Feature>> instances, final int model, final int attempt){
+    final ScriptClassifierProcess worker = reserveWorker(model, instances.size());
+    return worker.submit(instances).handle(new BiFunction<List<ScoredOutcome<String>>, Throwable, CompletableFuture<List<ScoredOutcome<String>>>>(){
+      @Override
+      public CompletableFuture<List<ScoredOutcome<String>>> apply(List<ScoredOutcome<String>> outcomes, Throwable failure) {
+        if(failure == null){
+          return CompletableFuture.completedFuture(outcomes);
+        }
+        // replace the process even if the request is not replayed, so later ones find it working:
+        if(closed.get() || !replace(worker) || attempt >= maxAttempts){
+          CompletableFuture<List<ScoredOutcome<String>>> failed = new CompletableFuture<>();
+          failed.completeExceptionally(failure);
+          return failed;
+        }
+        logger.log(Level.WARNING, "Replaying a request of " + instances.size() + " instances after: " + failure.getMessage());
+        return attempt(instances, model, attempt + 1);
+      }
+    }).thenCompose(new Function<CompletableFuture<List<ScoredOutcome<String>>>, CompletableFuture<List<ScoredOutcome<String>>>>(){
+      @Override
+      public CompletableFuture<List<ScoredOutcome<String>>> apply(CompletableFuture<List<ScoredOutcome<String>>> answer) {
+        return answer;
+      }
+    });
+  }
+
+  /**
+   * Swaps a failed process for a new one, unless another request that failed with it has
+   * already done so; requests that fail while the replacement starts wait for it. The
+   * replacement is started without holding the classifier's lock, since loading the model
+   * can take as long as {@link #requestTimeoutMillis}.
+   *
+   * @return false if no process could be started
+   */
+  private boolean replace(ScriptClassifierProcess failed){
+    CompletableFuture<Boolean> replaced;
+    boolean first = false;
+    synchronized(this){
+      if(this.workers.indexOf(failed) < 0){
+        return true;
+      }
+      replaced = this.replacements.get(failed);
+      if(replaced == null){
+        replaced = new CompletableFuture<>();
+        this.replacements.put(failed, replaced);
+        first = true;
+      }
+    }
+    if(!first){
+      return replaced.join();
+    }
+    failed.kill();
+    ScriptClassifierProcess replacement = null;
+    try {
+      replacement = new ScriptClassifierProcess(classifyScript, modelDir, failed.getModel(), tables, requestTimeoutMillis);
     } catch (IOException e) {
-      throw new RuntimeException(e);
+      logger.log(Level.SEVERE, "Could not restart a classify process for " + this.modelDir, e);
     }
-    
-    return line;
+    synchronized(this){
+      this.replacements.remove(failed);
+      if(replacement != null && this.closed.get()){
+        // nobody would stop it:
+        replacement.kill();
+        replacement = null;
+      }
+      if(replacement != null){
+        this.workers.set(this.workers.indexOf(failed), replacement);
+        logger.log(Level.WARNING, "Restarted a classify process for " + this.modelDir);
+      }
+    }
+    replaced.complete(replacement != null);
+    return replacement != null;
   }
 
+  /**
+   * Ends the session with every classify process and waits for them to exit, killing those
+   * that do not. Called when the annotator using the classifier (or the last user of a
+   * shared one) is destroyed; safe to call more than once.
+   */
   @Override
-  protected void finalize() throws Throwable {
-    super.finalize();
-    
-    this.toClassifier.print('\n');
-    classifierProcess.waitFor();
+  public void close() throws IOException {
+    if(!this.closed.compareAndSet(false, true)){
+      return;
+    }
+    if(this.watchdog != null){
+      this.watchdog.shutdownNow();
+    }
+    if(this.predictions != null){
+      logger.log(Level.INFO, "Prediction cache for " + this.modelDir + ": " + this.predictions);
+    }
+    try{
+      for(ScriptClassifierProcess worker : this.workers){
+        worker.stop(STOP_TIMEOUT_MILLIS);
+      }
+    }catch(InterruptedException e){
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
   }
 }
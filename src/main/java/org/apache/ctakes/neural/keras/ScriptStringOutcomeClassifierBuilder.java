@@ -4,30 +4,89 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.jar.Attributes;
 import java.util.jar.JarInputStream;
 
-import org.apache.ctakes.temporal.keras.ScriptStringOutcomeClassifier;
 import org.apache.uima.UIMAFramework;
 import org.apache.uima.util.Level;
 import org.apache.uima.util.Logger;
+import org.cleartk.ml.Classifier;
 import org.cleartk.ml.jar.ClassifierBuilder_ImplBase;
+import org.cleartk.ml.jar.JarClassifierBuilder;
 import org.cleartk.ml.jar.JarStreams;
 import org.cleartk.ml.util.featurevector.FeatureVector;
 
 
-public abstract class ScriptStringOutcomeClassifierBuilder<T extends ScriptStringOutcomeClassifier> extends ClassifierBuilder_ImplBase<T, FeatureVector, String, Integer> {
+public abstract class ScriptStringOutcomeClassifierBuilder<T extends Classifier<String>> extends ClassifierBuilder_ImplBase<T, FeatureVector, String, Integer> {
   public static final Attributes.Name SCRIPT_DIR_PARAM = new Attributes.Name("ScriptDirectory");
   protected static final Logger logger = UIMAFramework.getLogger(ScriptStringOutcomeClassifierBuilder.class);
+
+  /**
+   * System property giving the longest time, in minutes, a training script may run before it
+   * is killed; training fails after that. Unset or 0 means no limit.
+   */
+  public static final String TRAINING_TIMEOUT_PROPERTY = "ctakes.neural.keras.trainTimeoutMinutes";
+  private static final long KILL_GRACE_MILLIS = 10000;
   
   protected File modelDir = null;
   protected File scriptDir = null;
+  private long trainingTimeoutMillis = TimeUnit.MINUTES.toMillis(Long.getLong(TRAINING_TIMEOUT_PROPERTY, 0));
+  private final List<TrainingListener> listeners = new CopyOnWriteArrayList<>();
+  private static final Map<File, List<TrainingListener>> directoryListeners = new ConcurrentHashMap<>();
   
   public void setScriptDirectory(String scriptDir){
     Attributes atts = this.manifest.getMainAttributes();
     atts.put(SCRIPT_DIR_PARAM, scriptDir); 
   }
+
+  /**
+   * Overrides {@link #TRAINING_TIMEOUT_PROPERTY} for this builder; 0 means no limit.
+   */
+  public void setTrainingTimeout(long timeout, TimeUnit unit){
+    this.trainingTimeoutMillis = unit.toMillis(timeout);
+  }
+
+  public void addTrainingListener(TrainingListener listener){
+    this.listeners.add(listener);
+  }
+
+  public void removeTrainingListener(TrainingListener listener){
+    this.listeners.remove(listener);
+  }
+
+  /**
+   * Adds a listener to every training of a model in <code>dir</code>. Builders are usually
+   * created reflectively from the manifest, by {@link JarClassifierBuilder#trainAndPackage},
+   * so this is how the code that starts the training reaches their listeners.
+   */
+  public static void addTrainingListener(File dir, TrainingListener listener){
+    List<TrainingListener> dirListeners = directoryListeners.get(listenerKey(dir));
+    if(dirListeners == null){
+      directoryListeners.putIfAbsent(listenerKey(dir), new CopyOnWriteArrayList<TrainingListener>());
+      dirListeners = directoryListeners.get(listenerKey(dir));
+    }
+    dirListeners.add(listener);
+  }
+
+  public static void removeTrainingListener(File dir, TrainingListener listener){
+    List<TrainingListener> dirListeners = directoryListeners.get(listenerKey(dir));
+    if(dirListeners != null){
+      dirListeners.remove(listener);
+    }
+  }
+
+  private static File listenerKey(File dir){
+    return dir.getAbsoluteFile().toPath().normalize().toFile();
+  }
   
   @Override
   public File getTrainingDataFile(File dir) {
@@ -70,33 +129,107 @@ public abstract class ScriptStringOutcomeClassifierBuilder<T extends ScriptStrin
         arg2
         });
 
-    String line = "";
-
-    BufferedReader reader =
-        new BufferedReader(new InputStreamReader(p.getInputStream()));
-    while ((line = reader.readLine()) != null) {
-      logger.log(Level.INFO, line);
+    List<TrainingListener> trainingListeners = new ArrayList<>(this.listeners);
+    List<TrainingListener> dirListeners = directoryListeners.get(listenerKey(dir));
+    if(dirListeners != null){
+      trainingListeners.addAll(dirListeners);
     }
-    BufferedReader errReader = new BufferedReader(new InputStreamReader(p.getErrorStream()));
-    while((line = errReader.readLine()) != null){
-      logger.log(Level.WARNING, line);
+
+    // both streams are read at once so that the script never blocks on a full pipe:
+    Thread outDrainer = drain(p.getInputStream(), false, trainingListeners);
+    Thread errDrainer = drain(p.getErrorStream(), true, trainingListeners);
+    try{
+      if(this.trainingTimeoutMillis > 0){
+        if(!p.waitFor(this.trainingTimeoutMillis, TimeUnit.MILLISECONDS)){
+          kill(p);
+          throw new RuntimeException("Training script " + trainScript + " did not finish within " + this.trainingTimeoutMillis + "ms and was killed");
+        }
+      }else{
+        p.waitFor();
+      }
+    }catch(InterruptedException e){
+      kill(p);
+      throw e;
+    }finally{
+      outDrainer.join(KILL_GRACE_MILLIS);
+      errDrainer.join(KILL_GRACE_MILLIS);
     }
-    int ret = p.waitFor();
+    int ret = p.exitValue();
     if(ret != 0){
-      throw new RuntimeException();
+      throw new RuntimeException("Training script " + trainScript + " exited with status " + ret);
+    }
+  }
+
+  /**
+   * Starts a thread that logs the lines of one output stream of the training script, stdout
+   * at INFO and stderr at WARNING, and passes them and any progress reports on to the
+   * listeners.
+   */
+  private static Thread drain(final InputStream stream, final boolean error, final List<TrainingListener> listeners){
+    Thread drainer = new Thread(new Runnable(){
+      @Override
+      public void run() {
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(stream))){
+          String line;
+          while((line = reader.readLine()) != null){
+            TrainingProgress progress = TrainingProgress.parse(line);
+            if(progress != null){
+              logger.log(Level.INFO, "Training progress: " + progress);
+            }else{
+              logger.log(error ? Level.WARNING : Level.INFO, line);
+            }
+            for(TrainingListener listener : listeners){
+              if(progress != null){
+                listener.progress(progress);
+              }else{
+                listener.output(line, error);
+              }
+            }
+          }
+        }catch(IOException e){
+          // the script is gone; its exit status tells the rest
+        }
+      }
+    }, error ? "train-script-stderr" : "train-script-stdout");
+    drainer.setDaemon(true);
+    drainer.start();
+    return drainer;
+  }
+
+  /**
+   * Asks the training script to stop, and kills it if it has not within a grace period.
+   */
+  private static void kill(Process p) throws InterruptedException {
+    p.destroy();
+    if(!p.waitFor(KILL_GRACE_MILLIS, TimeUnit.MILLISECONDS)){
+      p.destroyForcibly().waitFor();
     }
   }
 
   protected static void extractFileToDir(File dir, JarInputStream modelStream, String fn) throws IOException{
+    extractFileToDir(dir, modelStream, fn, null);
+  }
+
+  /**
+   * Extracts the next entry, which must be named <code>fn</code>, adding its name and content
+   * to <code>digest</code> unless it is null.
+   */
+  protected static void extractFileToDir(File dir, JarInputStream modelStream, String fn, MessageDigest digest) throws IOException{
     JarStreams.getNextJarEntry(modelStream, fn);
+    if(digest != null){
+      KerasModelCache.updateName(digest, fn);
+    }
     File outFile = new File(dir, fn);
     try(FileOutputStream fos = new FileOutputStream(outFile)){
-      byte[] byteArray = new byte[1024];
+      byte[] byteArray = new byte[KerasModelCache.BUFFER_SIZE];
       int i;
       while ((i = modelStream.read(byteArray)) > 0) 
       {
         //Write the bytes to the output stream
         fos.write(byteArray, 0, i);
+        if(digest != null){
+          digest.update(byteArray, 0, i);
+        }
       }
     }
   }
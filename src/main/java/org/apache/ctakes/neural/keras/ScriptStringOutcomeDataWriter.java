@@ -4,12 +4,11 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.Locale;
 
-import org.apache.ctakes.temporal.keras.ScriptStringOutcomeClassifier;
-import org.apache.ctakes.temporal.keras.ScriptStringOutcomeClassifierBuilder;
 import org.apache.uima.UimaContext;
 import org.apache.uima.fit.descriptor.ConfigurationParameter;
 import org.apache.uima.fit.factory.initializable.Initializable;
 import org.apache.uima.resource.ResourceInitializationException;
+import org.cleartk.ml.Classifier;
 import org.cleartk.ml.CleartkProcessingException;
 import org.cleartk.ml.encoder.features.BooleanEncoder;
 import org.cleartk.ml.encoder.features.FeatureVectorFeaturesEncoder;
@@ -19,7 +18,7 @@ import org.cleartk.ml.encoder.outcome.StringToIntegerOutcomeEncoder;
 import org.cleartk.ml.jar.DataWriter_ImplBase;
 import org.cleartk.ml.util.featurevector.FeatureVector;
 
-public abstract class ScriptStringOutcomeDataWriter<T extends ScriptStringOutcomeClassifierBuilder<ScriptStringOutcomeClassifier>> 
+public abstract class ScriptStringOutcomeDataWriter<T extends ScriptStringOutcomeClassifierBuilder<? extends Classifier<String>>> 
   extends  DataWriter_ImplBase<T, FeatureVector, String,Integer> implements Initializable {
 
   public static final String PARAM_SCRIPT_DIR = "DataWriterScriptDirectory";
@@ -0,0 +1,176 @@
+package org.apache.ctakes.neural.keras;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.uima.UimaContext;
+import org.apache.uima.fit.factory.initializable.Initializable;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.cleartk.ml.Classifier;
+import org.cleartk.ml.ClassifierFactory;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * JVM-wide registry of classifier backends, keyed by the content of the model they were
+ * loaded from. Every annotator that asks for the same model gets its own
+ * {@link SharedStringClassifier} handle on one backend (and so on one set of classify
+ * processes); the backend is closed when the last handle is released.
+ */
+@Beta
+public class SharedClassifierRegistry {
+
+  private static final Map<String, Entry> entries = new HashMap<>();
+
+  /**
+   * One shared backend and the number of handles on it.
+   */
+  static class Entry {
+    final String key;
+    // completed by the thread that loads the backend, outside the registry's lock
+    private final CompletableFuture<Classifier<String>> loaded = new CompletableFuture<>();
+    volatile Classifier<String> backend = null;
+    volatile MicroBatchScheduler scheduler = null;
+    int references = 0;
+    boolean initialized = false;
+
+    Entry(String key){
+      this.key = key;
+    }
+
+    /**
+     * Waits until the backend is loaded, by this thread or another one.
+     */
+    synchronized Classifier<String> awaitBackend() throws IOException {
+      if(this.backend == null){
+        try{
+          this.backend = this.loaded.get();
+        }catch(InterruptedException e){
+          Thread.currentThread().interrupt();
+          throw new IOException(e);
+        }catch(ExecutionException e){
+          Throwable cause = e.getCause();
+          if(cause instanceof IOException){
+            throw (IOException) cause;
+          }
+          throw new IOException(cause);
+        }
+      }
+      return this.backend;
+    }
+
+    /**
+     * Initializes the backend with the context of the first annotator that uses it; later
+     * replicas share its settings (e.g. the number of classify processes). If that context
+     * sets {@link MicroBatchScheduler#PARAM_BATCH_SIZE}, the requests of all handles are
+     * batched together before they reach the backend.
+     */
+    synchronized void initialize(UimaContext context) throws ResourceInitializationException {
+      if(this.initialized){
+        return;
+      }
+      if(this.backend instanceof Initializable){
+        ((Initializable) this.backend).initialize(context);
+      }
+      Integer batchSize = (Integer) context.getConfigParameterValue(MicroBatchScheduler.PARAM_BATCH_SIZE);
+      if(batchSize != null && batchSize > 1){
+        Integer deadline = (Integer) context.getConfigParameterValue(MicroBatchScheduler.PARAM_DEADLINE_MILLIS);
+        this.scheduler = new MicroBatchScheduler(this.backend, batchSize,
+            deadline == null ? MicroBatchScheduler.DEFAULT_DEADLINE_MILLIS : deadline);
+      }
+      this.initialized = true;
+    }
+
+    /**
+     * @return where the handles send their requests: the scheduler if there is one
+     */
+    Classifier<String> target(){
+      MicroBatchScheduler scheduler = this.scheduler;
+      return scheduler == null ? this.backend : scheduler;
+    }
+  }
+
+  /**
+   * Loading a backend (unpacking the model, starting its classify processes) happens
+   * outside the registry's lock, so different models load side by side; whoever asks for a
+   * model that is still loading waits for that one load.
+   *
+   * @param key identifies the model, e.g. a digest of the model jar
+   * @param loader creates the backend if no one holds a handle on this model yet
+   * @return a new handle on the shared backend, to be closed when no longer needed
+   */
+  public static SharedStringClassifier acquire(String key, ClassifierFactory<String> loader) throws IOException {
+    Entry entry;
+    boolean load = false;
+    synchronized(entries){
+      entry = entries.get(key);
+      if(entry == null){
+        entry = new Entry(key);
+        entries.put(key, entry);
+        load = true;
+      }
+      entry.references++;
+    }
+    if(load){
+      try{
+        entry.loaded.complete(loader.createClassifier());
+      }catch(IOException | RuntimeException e){
+        // a failed load is not shared; the next acquire tries again
+        synchronized(entries){
+          if(entries.get(key) == entry){
+            entries.remove(key);
+          }
+        }
+        entry.loaded.completeExceptionally(e);
+      }
+    }
+    try{
+      entry.awaitBackend();
+    }catch(IOException e){
+      synchronized(entries){
+        entry.references--;
+      }
+      throw e;
+    }
+    return new SharedStringClassifier(entry);
+  }
+
+  static void release(Entry entry) throws IOException {
+    synchronized(entries){
+      entry.references--;
+      if(entry.references > 0){
+        return;
+      }
+      entries.remove(entry.key);
+    }
+    if(entry.scheduler != null){
+      entry.scheduler.close();
+    }
+    if(entry.backend instanceof Closeable){
+      ((Closeable) entry.backend).close();
+    }
+  }
+
+  /**
+   * Gives back a classifier an annotator is done with: handles are released to the
+   * registry and classifiers owning resources (like classify processes) are closed.
+   */
+  public static void release(Classifier<?> classifier) throws IOException {
+    if(classifier instanceof Closeable){
+      ((Closeable) classifier).close();
+    }
+  }
+
+  /**
+   * @return the number of backends currently shared
+   */
+  public static int size(){
+    synchronized(entries){
+      return entries.size();
+    }
+  }
+}
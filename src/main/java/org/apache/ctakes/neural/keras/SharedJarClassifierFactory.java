@@ -0,0 +1,102 @@
+package org.apache.ctakes.neural.keras;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.uima.UimaContext;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.cleartk.ml.Classifier;
+import org.cleartk.ml.ClassifierFactory;
+import org.cleartk.ml.jar.JarClassifierFactory;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * Drop-in replacement for {@link JarClassifierFactory} that loads each distinct model jar
+ * once per JVM. Annotators get a {@link SharedStringClassifier} handle on a backend kept in
+ * the {@link SharedClassifierRegistry} under the SHA-256 of the jar's content, so replicas
+ * of a pipeline share one unpacked model and one set of classify processes. Use it by
+ * setting <code>CleartkAnnotator.PARAM_CLASSIFIER_FACTORY_CLASS_NAME</code> to this class;
+ * annotators should release the handle with {@link SharedClassifierRegistry#release} when
+ * they are destroyed.
+ */
+@Beta
+public class SharedJarClassifierFactory extends JarClassifierFactory<String> {
+
+  // digests of the jars hashed so far, by path (and for files, modification time and size)
+  private static final Map<String, String> digests = new ConcurrentHashMap<>();
+
+  private String jarPath = null;
+
+  @Override
+  public void initialize(UimaContext context) throws ResourceInitializationException {
+    super.initialize(context);
+    this.jarPath = (String) context.getConfigParameterValue(PARAM_CLASSIFIER_JAR_PATH);
+  }
+
+  @Override
+  public void setClassifierJarPath(String classifierJarPath) {
+    super.setClassifierJarPath(classifierJarPath);
+    this.jarPath = classifierJarPath;
+  }
+
+  @Override
+  public Classifier<String> createClassifier() throws IOException {
+    return SharedClassifierRegistry.acquire(digest(), new ClassifierFactory<String>(){
+      @Override
+      public Classifier<String> createClassifier() throws IOException {
+        return SharedJarClassifierFactory.super.createClassifier();
+      }
+    });
+  }
+
+  /**
+   * @return the hex SHA-256 of the jar, opened the same way the parent factory opens it; a
+   * jar file is hashed again when its modification time or size changed, a classpath
+   * resource or URL once per JVM
+   */
+  private String digest() throws IOException {
+    String key = this.jarPath;
+    if(this.getClass().getResource(this.jarPath) == null){
+      File file = new File(this.jarPath);
+      if(file.isFile()){
+        key = file.getAbsolutePath() + "@" + file.lastModified() + ":" + file.length();
+      }
+    }
+    String digest = digests.get(key);
+    if(digest == null){
+      digest = hash();
+      digests.put(key, digest);
+    }
+    return digest;
+  }
+
+  private String hash() throws IOException {
+    MessageDigest digest = KerasModelCache.newDigest();
+    InputStream stream = this.getClass().getResourceAsStream(this.jarPath);
+    if(stream == null){
+      try{
+        stream = new URL(this.jarPath).openStream();
+      }catch(MalformedURLException e){
+        stream = new FileInputStream(this.jarPath);
+      }
+    }
+    try{
+      byte[] buffer = new byte[KerasModelCache.BUFFER_SIZE];
+      int n;
+      while((n = stream.read(buffer)) > 0){
+        digest.update(buffer, 0, n);
+      }
+    }finally{
+      stream.close();
+    }
+    return KerasModelCache.toHex(digest);
+  }
+}
@@ -0,0 +1,94 @@
+package org.apache.ctakes.neural.keras;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Memory-mapped file a {@link ScriptClassifierProcess} shares with its classify script, so
+ * request and reply frames do not have to be copied through a pipe. Regions are handed out
+ * in ring order and given back in the same order, which is the order the script answers in;
+ * each region holds one request frame followed by room for its reply. The file lives in
+ * <code>/dev/shm</code> where there is one, and is deleted as soon as both sides have
+ * mapped it, so nothing is left behind if either side dies.
+ */
+class SharedMemoryRing {
+
+  private static final File SHM_DIR = new File("/dev/shm");
+
+  private final File file;
+  private final MappedByteBuffer buffer;
+  private final int capacity;
+  private final Deque<int[]> regions = new ArrayDeque<>();
+  private int head = 0;
+
+  SharedMemoryRing(int capacity) throws IOException {
+    File dir = SHM_DIR.isDirectory() && SHM_DIR.canWrite() ? SHM_DIR : new File(System.getProperty("java.io.tmpdir"));
+    this.file = File.createTempFile("ctakes-neural-", ".ring", dir);
+    this.capacity = capacity;
+    try(RandomAccessFile raf = new RandomAccessFile(this.file, "rw")){
+      raf.setLength(capacity);
+      this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+  }
+
+  File getFile(){
+    return this.file;
+  }
+
+  /**
+   * Deletes the file; the memory stays shared for as long as either side has it mapped.
+   */
+  void unlink(){
+    this.file.delete();
+  }
+
+  /**
+   * @return the offset of a free region of <code>size</code> bytes, or -1 if there is none
+   * right now
+   */
+  synchronized int allocate(int size){
+    int offset;
+    if(this.regions.isEmpty()){
+      offset = size <= this.capacity ? 0 : -1;
+    }else{
+      int tail = this.regions.peekFirst()[0];
+      if(this.head >= tail){
+        // free space is after the head and, once that runs out, before the tail:
+        offset = this.head + size <= this.capacity ? this.head : (size < tail ? 0 : -1);
+      }else{
+        offset = this.head + size < tail ? this.head : -1;
+      }
+    }
+    if(offset >= 0){
+      this.regions.addLast(new int[]{ offset, offset + size });
+      this.head = offset + size;
+    }
+    return offset;
+  }
+
+  /**
+   * Gives back the oldest region still in use.
+   */
+  synchronized void free(){
+    this.regions.pollFirst();
+    if(this.regions.isEmpty()){
+      this.head = 0;
+    }
+  }
+
+  /**
+   * @return a view of the region at <code>offset</code>, positioned at its start
+   */
+  ByteBuffer region(int offset, int size){
+    ByteBuffer view = this.buffer.duplicate();
+    view.limit(offset + size);
+    view.position(offset);
+    return view.slice();
+  }
+}
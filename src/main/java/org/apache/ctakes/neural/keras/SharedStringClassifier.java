@@ -0,0 +1,100 @@
+package org.apache.ctakes.neural.keras;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.uima.UimaContext;
+import org.apache.uima.fit.factory.initializable.Initializable;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.cleartk.ml.Classifier;
+import org.cleartk.ml.CleartkProcessingException;
+import org.cleartk.ml.Feature;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * One annotator's handle on a backend shared through the {@link SharedClassifierRegistry}.
+ * All calls go to the shared backend, through its {@link MicroBatchScheduler} if it has one;
+ * closing the handle releases it.
+ */
+@Beta
+public class SharedStringClassifier implements AsyncBatchClassifier<String>, ScoringClassifier<String>, Initializable, Closeable {
+
+  private final SharedClassifierRegistry.Entry entry;
+  private final AtomicBoolean released = new AtomicBoolean(false);
+
+  SharedStringClassifier(SharedClassifierRegistry.Entry entry){
+    this.entry = entry;
+  }
+
+  @Override
+  public void initialize(UimaContext context) throws ResourceInitializationException {
+    this.entry.initialize(context);
+  }
+
+  @Override
+  public String classify(List<Feature> features) throws CleartkProcessingException {
+    return backend().classify(features);
+  }
+
+  @Override
+  public Map<String, Double> score(List<Feature> features) throws CleartkProcessingException {
+    return backend().score(features);
+  }
+
+  @Override
+  public List<String> classifyBatch(List<List<Feature>> instances) throws CleartkProcessingException {
+    return BatchClassifier.classifyAll(backend(), instances);
+  }
+
+  @Override
+  public ScoredOutcome<String> classifyWithScores(List<Feature> features) throws CleartkProcessingException {
+    return classifyBatchWithScores(Collections.singletonList(features)).get(0);
+  }
+
+  @Override
+  public List<ScoredOutcome<String>> classifyBatchWithScores(List<List<Feature>> instances) throws CleartkProcessingException {
+    return AsyncBatchClassifier.await(classifyBatchWithScoresAsync(instances));
+  }
+
+  @Override
+  public CompletableFuture<List<ScoredOutcome<String>>> classifyBatchWithScoresAsync(List<List<Feature>> instances) throws CleartkProcessingException {
+    return ScoringClassifier.submitAllWithScores(backend(), instances);
+  }
+
+  @Override
+  public CompletableFuture<String> classifyAsync(List<Feature> features) throws CleartkProcessingException {
+    Classifier<String> backend = backend();
+    if(backend instanceof AsyncBatchClassifier){
+      return ((AsyncBatchClassifier<String>) backend).classifyAsync(features);
+    }
+    return CompletableFuture.completedFuture(backend.classify(features));
+  }
+
+  @Override
+  public CompletableFuture<List<String>> classifyBatchAsync(List<List<Feature>> instances) throws CleartkProcessingException {
+    return AsyncBatchClassifier.submitAll(backend(), instances);
+  }
+
+  /**
+   * Releases this handle; the backend is closed once every handle on it is released.
+   */
+  @Override
+  public void close() throws IOException {
+    if(this.released.compareAndSet(false, true)){
+      SharedClassifierRegistry.release(this.entry);
+    }
+  }
+
+  private Classifier<String> backend(){
+    if(this.released.get()){
+      throw new IllegalStateException("Classifier handle has already been released");
+    }
+    return this.entry.target();
+  }
+}
@@ -0,0 +1,104 @@
+package org.apache.ctakes.neural.keras;
+
+/**
+ * Open addressing hash map from strings to ints for the model vocabulary, which is looked up
+ * once per token: values are not boxed, and a token can be looked up as a region of the
+ * feature string it occurs in without cutting it out first.
+ */
+class StringIntMap {
+
+  private String[] keys;
+  private int[] values;
+  private int size = 0;
+
+  StringIntMap(){
+    this(16);
+  }
+
+  StringIntMap(int expectedSize){
+    int capacity = 16;
+    while(capacity < expectedSize * 2){
+      capacity <<= 1;
+    }
+    this.keys = new String[capacity];
+    this.values = new int[capacity];
+  }
+
+  int size(){
+    return this.size;
+  }
+
+  void put(String key, int value){
+    if((this.size + 1) * 2 > this.keys.length){
+      grow();
+    }
+    int slot = slot(key.hashCode());
+    while(this.keys[slot] != null){
+      if(this.keys[slot].equals(key)){
+        this.values[slot] = value;
+        return;
+      }
+      slot = (slot + 1) & (this.keys.length - 1);
+    }
+    this.keys[slot] = key;
+    this.values[slot] = value;
+    this.size++;
+  }
+
+  /**
+   * @return the value of <code>key</code>, or <code>missing</code> if it is not in the map
+   */
+  int get(String key, int missing){
+    return get(key, 0, key.length(), missing);
+  }
+
+  /**
+   * @return the value of the string <code>text[start, end)</code>, or <code>missing</code> if
+   * it is not in the map
+   */
+  int get(CharSequence text, int start, int end, int missing){
+    // same hash as String.hashCode() of the region:
+    int hash = 0;
+    for(int i = start; i < end; i++){
+      hash = 31 * hash + text.charAt(i);
+    }
+    int slot = slot(hash);
+    String key;
+    while((key = this.keys[slot]) != null){
+      if(matches(key, text, start, end)){
+        return this.values[slot];
+      }
+      slot = (slot + 1) & (this.keys.length - 1);
+    }
+    return missing;
+  }
+
+  private int slot(int hash){
+    return (hash ^ (hash >>> 16)) & (this.keys.length - 1);
+  }
+
+  private static boolean matches(String key, CharSequence text, int start, int end){
+    if(key.length() != end - start){
+      return false;
+    }
+    for(int i = 0; i < key.length(); i++){
+      if(key.charAt(i) != text.charAt(start + i)){
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void grow(){
+    String[] oldKeys = this.keys;
+    int[] oldValues = this.values;
+    this.keys = new String[oldKeys.length * 2];
+    this.values = new int[oldKeys.length * 2];
+    this.size = 0;
+    for(int i = 0; i < oldKeys.length; i++){
+      if(oldKeys[i] != null){
+        put(oldKeys[i], oldValues[i]);
+      }
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package org.apache.ctakes.neural.keras;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * Observer of a training script run by {@link ScriptStringOutcomeClassifierBuilder}. Calls
+ * come from the threads reading the script's output, so implementations should return
+ * quickly and be thread safe.
+ */
+@Beta
+public interface TrainingListener {
+
+  /**
+   * Called for each progress line the script reports, normally once per epoch.
+   */
+  public void progress(TrainingProgress progress);
+
+  /**
+   * Called for every other line of output.
+   *
+   * @param error true if the line was written to stderr
+   */
+  public void output(String line, boolean error);
+}
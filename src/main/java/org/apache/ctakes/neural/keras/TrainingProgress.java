@@ -0,0 +1,116 @@
+package org.apache.ctakes.neural.keras;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * One progress report of a training script: a line of the form
+ * <pre>
+ * #PROGRESS epoch=3/10 loss=0.4231 acc=0.8712 examples_per_sec=5120.3
+ * </pre>
+ * as written by <code>scripts/lib/progress.py</code>. Every field but the epoch is optional.
+ */
+@Beta
+public class TrainingProgress {
+  public static final String PROGRESS_HEADER = "#PROGRESS";
+
+  private final int epoch;
+  private final int epochs;
+  private final Map<String, Double> metrics;
+
+  public TrainingProgress(int epoch, int epochs, Map<String, Double> metrics){
+    this.epoch = epoch;
+    this.epochs = epochs;
+    this.metrics = Collections.unmodifiableMap(metrics);
+  }
+
+  /**
+   * @return the progress reported on <code>line</code>, or null if it is not a progress line
+   */
+  public static TrainingProgress parse(String line){
+    String[] fields = line.trim().split("\\s+");
+    if(!fields[0].equals(PROGRESS_HEADER)){
+      return null;
+    }
+    int epoch = -1;
+    int epochs = -1;
+    Map<String, Double> metrics = new LinkedHashMap<>();
+    for(int i = 1; i < fields.length; i++){
+      int split = fields[i].indexOf('=');
+      if(split <= 0){
+        return null;
+      }
+      String name = fields[i].substring(0, split);
+      String value = fields[i].substring(split + 1);
+      try{
+        if(name.equals("epoch")){
+          int slash = value.indexOf('/');
+          epoch = Integer.parseInt(slash < 0 ? value : value.substring(0, slash));
+          epochs = slash < 0 ? -1 : Integer.parseInt(value.substring(slash + 1));
+        }else{
+          metrics.put(name, Double.valueOf(value));
+        }
+      }catch(NumberFormatException e){
+        return null;
+      }
+    }
+    return epoch < 0 ? null : new TrainingProgress(epoch, epochs, metrics);
+  }
+
+  /**
+   * @return the epoch just finished, counting from 1
+   */
+  public int getEpoch(){
+    return this.epoch;
+  }
+
+  /**
+   * @return the number of epochs of the training, or -1 if not reported
+   */
+  public int getEpochs(){
+    return this.epochs;
+  }
+
+  /**
+   * @return the training loss, or NaN if not reported
+   */
+  public double getLoss(){
+    return getMetric("loss");
+  }
+
+  /**
+   * @return the number of training examples per second over the epoch, or NaN if not
+   * reported
+   */
+  public double getExamplesPerSecond(){
+    return getMetric("examples_per_sec");
+  }
+
+  /**
+   * @return the value of a metric the script logged (e.g. "acc" or "val_loss"), or NaN if it
+   * was not reported
+   */
+  public double getMetric(String name){
+    Double value = this.metrics.get(name);
+    return value == null ? Double.NaN : value;
+  }
+
+  public Map<String, Double> getMetrics(){
+    return this.metrics;
+  }
+
+  @Override
+  public String toString(){
+    StringBuilder buffer = new StringBuilder("epoch ").append(this.epoch);
+    if(this.epochs > 0){
+      buffer.append('/').append(this.epochs);
+    }
+    for(Map.Entry<String, Double> metric : this.metrics.entrySet()){
+      buffer.append(", ").append(metric.getKey()).append(' ').append(metric.getValue());
+    }
+    return buffer.toString();
+  }
+}
@@ -0,0 +1,100 @@
+package org.apache.ctakes.neural.keras;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.cleartk.ml.Feature;
+
+/**
+ * Compares the latency and throughput of the JVM engine with the pipe bridge to the classify
+ * script on the same unpacked model directory and instances:
+ *
+ * <pre>
+ * KerasEngineBenchmark &lt;model dir&gt; [&lt;instances file&gt; [&lt;script dir&gt;]]
+ * </pre>
+ *
+ * The instances file has one instance per line (anything after a tab is ignored, so the
+ * <code>expected.txt</code> of the parity fixture works as is) and defaults to the
+ * <code>expected.txt</code> in the model directory. The pipe bridge is only measured when
+ * a directory with <code>classify.sh</code> is given, since it needs the python side with
+ * keras installed. Latency is the time of single <code>classify</code> calls, throughput
+ * that of <code>classifyBatch</code> over {@value #BATCH} instances.
+ */
+public class KerasEngineBenchmark {
+
+  private static final int WARMUP = 200;
+  private static final int CALLS = 2000;
+  private static final int BATCH = 1000;
+  private static final int BATCHES = 20;
+
+  public static void main(String[] args) throws Exception {
+    if(args.length < 1) {
+      System.err.println("Usage: KerasEngineBenchmark <model dir> [<instances file> [<script dir>]]");
+      System.exit(-1);
+    }
+    File modelDir = new File(args[0]);
+    List<List<Feature>> instances = readInstances(args.length > 1 ? new File(args[1]) : new File(modelDir, "expected.txt"));
+
+    KerasJvmStringOutcomeClassifier jvm = new KerasJvmStringOutcomeClassifier(null, null, modelDir);
+    try {
+      measure("jvm", jvm, instances);
+    } finally {
+      jvm.close();
+    }
+
+    if(args.length > 2) {
+      KerasStringOutcomeClassifier script = new KerasStringOutcomeClassifier(null, null, modelDir, new File(args[2]));
+      try {
+        measure("script", script, instances);
+      } finally {
+        script.close();
+      }
+    }
+  }
+
+  private static void measure(String engine, BatchClassifier<String> classifier, List<List<Feature>> instances) throws Exception {
+    for(int i = 0; i < WARMUP; i++) {
+      classifier.classify(instances.get(i % instances.size()));
+    }
+    long[] latencies = new long[CALLS];
+    for(int i = 0; i < CALLS; i++) {
+      long start = System.nanoTime();
+      classifier.classify(instances.get(i % instances.size()));
+      latencies[i] = System.nanoTime() - start;
+    }
+    Arrays.sort(latencies);
+
+    List<List<Feature>> batch = new ArrayList<>(BATCH);
+    for(int i = 0; i < BATCH; i++) {
+      batch.add(instances.get(i % instances.size()));
+    }
+    classifier.classifyBatch(batch);
+    long start = System.nanoTime();
+    for(int i = 0; i < BATCHES; i++) {
+      classifier.classifyBatch(batch);
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    System.out.println(String.format("%s: latency median %.3f ms, p95 %.3f ms; throughput %.0f instances/s",
+        engine, latencies[CALLS / 2] / 1e6, latencies[CALLS * 95 / 100] / 1e6, BATCH * BATCHES / seconds));
+  }
+
+  private static List<List<Feature>> readInstances(File file) throws IOException {
+    List<List<Feature>> instances = new ArrayList<>();
+    try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+      String line;
+      while((line = reader.readLine()) != null) {
+        int tab = line.indexOf('\t');
+        instances.add(Collections.singletonList(new Feature(tab < 0 ? line : line.substring(0, tab))));
+      }
+    }
+    return instances;
+  }
+}
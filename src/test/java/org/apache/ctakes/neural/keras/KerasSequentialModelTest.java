@@ -0,0 +1,127 @@
+package org.apache.ctakes.neural.keras;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.cleartk.ml.Feature;
+import org.junit.Test;
+
+/**
+ * Checks the JVM engine against keras: the layer arithmetic against direct sums over the
+ * tensorflow kernel layout, and a whole packaged cnn model against the probabilities keras
+ * gave the same instances. That fixture, in
+ * <code>src/test/resources/org/apache/ctakes/neural/keras/parity</code>, has the data,
+ * architecture and keras 1.2 file layout of <code>scripts/keras_parity.py</code>, which
+ * rewrites it from keras itself.
+ */
+public class KerasSequentialModelTest {
+
+  private static final float EPSILON = 1e-5f;
+
+  @Test
+  public void conv1dCorrelatesWithTensorflowKernels() {
+    int steps = 6, inputDim = 3, filters = 2, kernelSize = 3;
+    float[][][] w = new float[kernelSize][inputDim][filters];
+    float[] kernel = new float[kernelSize * inputDim * filters];
+    for(int k = 0; k < kernelSize; k++) {
+      for(int c = 0; c < inputDim; c++) {
+        for(int f = 0; f < filters; f++) {
+          w[k][c][f] = 0.1f * (k + 1) - 0.2f * c + 0.3f * f;
+          kernel[(k * inputDim + c) * filters + f] = w[k][c][f];
+        }
+      }
+    }
+    float[] bias = new float[]{ 0.5f, -0.25f };
+    float[] x = new float[steps * inputDim];
+    for(int i = 0; i < x.length; i++) {
+      x[i] = (i % 5) - 1.5f;
+    }
+
+    for(int stride = 1; stride <= 2; stride++) {
+      KerasSequentialModel.Conv1D conv = new KerasSequentialModel.Conv1D(kernel, bias, filters, kernelSize, stride, "linear");
+      conv.setInputShape(steps, inputDim);
+      float[] out = conv.forward(x, new float[conv.outSteps * filters]);
+      assertEquals((steps - kernelSize) / stride + 1, conv.outSteps);
+      for(int t = 0; t < conv.outSteps; t++) {
+        for(int f = 0; f < filters; f++) {
+          float expected = bias[f];
+          for(int k = 0; k < kernelSize; k++) {
+            for(int c = 0; c < inputDim; c++) {
+              expected += x[(t * stride + k) * inputDim + c] * w[k][c][f];
+            }
+          }
+          assertEquals(expected, out[t * filters + f], EPSILON);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void convKernelShapeIsChecked() throws IOException {
+    KerasSequentialModel.checkConvKernelShape("conv", new int[]{ 3, 300, 200 }, 3, 300, 200);
+    KerasSequentialModel.checkConvKernelShape("conv", new int[]{ 3, 1, 300, 200 }, 3, 300, 200);
+    for(int[] shape : new int[][]{ { 200, 300, 3 }, { 200, 300, 3, 1 }, { 3, 200, 300 } }) {
+      try {
+        KerasSequentialModel.checkConvKernelShape("conv", shape, 3, 300, 200);
+        fail("accepted a kernel of shape " + Arrays.toString(shape));
+      } catch (IOException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void theanoKernelsAreFlipped() {
+    float[] kernel = new float[]{ 1, 2, 3, 4, 5, 6 };
+    assertArrayEquals(new float[]{ 5, 6, 3, 4, 1, 2 }, KerasSequentialModel.flipKernel(kernel, 3), 0f);
+  }
+
+  @Test
+  public void matchesKerasOutputs() throws Exception {
+    URL expectedFile = getClass().getResource("parity/expected.txt");
+    assertNotNull("no fixture; run scripts/keras_parity.py", expectedFile);
+    File modelDir = new File(expectedFile.toURI()).getParentFile();
+
+    KerasModelTables tables = new KerasModelTables(modelDir);
+    KerasEnsemble models = KerasEnsemble.load(modelDir);
+    try {
+      assertEquals(tables.getMaxlen(), models.getInputLength());
+      List<int[]> rows = new ArrayList<>();
+      List<float[]> expected = new ArrayList<>();
+      try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(new File(modelDir, "expected.txt")), "UTF-8"))) {
+        String line;
+        while((line = reader.readLine()) != null) {
+          String[] fields = line.split("\t");
+          rows.add(tables.encode(Collections.singletonList(new Feature(fields[0]))));
+          String[] scores = fields[1].split(" ");
+          float[] probabilities = new float[scores.length];
+          for(int i = 0; i < scores.length; i++) {
+            probabilities[i] = Float.parseFloat(scores[i]);
+          }
+          expected.add(probabilities);
+        }
+      }
+
+      float[][] distributions = new float[rows.size()][];
+      models.predict(rows, distributions);
+      for(int i = 0; i < rows.size(); i++) {
+        assertArrayEquals("instance " + i, expected.get(i), distributions[i], EPSILON);
+      }
+    } finally {
+      models.close();
+    }
+  }
+}